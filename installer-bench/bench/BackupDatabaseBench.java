@@ -0,0 +1,63 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * DatabaseManager backup inserts and history queries against a table that
+ * already holds `rows` backups spread over ITEM_COUNT items.
+ *
+ * DatabaseManager derives its paths from user.home when the class is first
+ * initialised, and JMH forks a fresh JVM per parameter set, so pointing
+ * user.home at a temp directory in the trial setup isolates each run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BackupDatabaseBench {
+    private static final int ITEM_COUNT = 20;
+
+    @Param({"100", "1000", "10000"})
+    public int rows;
+
+    private Path home;
+    private Object db;
+    private int inserted;
+
+    @Setup(Level.Trial)
+    public void populate() throws Throwable {
+        home = Files.createTempDirectory("dbbench");
+        System.setProperty("user.home", home.toString());
+        db = (Object) InstallerApi.DB_GET_INSTANCE.invokeExact();
+        for (int i = 0; i < rows; i++) {
+            String unused = (String) InstallerApi.DB_SAVE_BACKUP.invokeExact(db, "item" + (i % ITEM_COUNT), "/dev/null");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws Throwable {
+        InstallerApi.DELETE_DIRECTORY.invokeExact(home.toFile());
+    }
+
+    @Benchmark
+    public String saveBackup() throws Throwable {
+        return (String) InstallerApi.DB_SAVE_BACKUP.invokeExact(db, "item" + (inserted++ % ITEM_COUNT), "/dev/null");
+    }
+
+    @Benchmark
+    public List<?> getVersions() throws Throwable {
+        return (List<?>) InstallerApi.DB_GET_VERSIONS.invokeExact(db, "item7");
+    }
+
+    @Benchmark
+    public List<?> getAllBackupFilenames() throws Throwable {
+        return (List<?>) InstallerApi.DB_GET_ALL_FILENAMES.invokeExact(db);
+    }
+}
@@ -0,0 +1,78 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * FileOps.copyDirectory on synthetic trees: many small config-sized files
+ * versus a few large wallpaper-sized ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyDirectoryBench {
+
+    @Param({"smallFiles", "largeFiles"})
+    public String shape;
+
+    private Path root;
+    private File source;
+    private File destination;
+
+    @Setup(Level.Trial)
+    public void createTree() throws Throwable {
+        root = Files.createTempDirectory("copybench");
+        source = root.resolve("source").toFile();
+        Random random = new Random(42);
+        if (shape.equals("smallFiles")) {
+            // 2000 files of 200-800 bytes spread over 40 directories
+            for (int d = 0; d < 40; d++) {
+                Path dir = source.toPath().resolve("dir" + d);
+                Files.createDirectories(dir);
+                for (int f = 0; f < 50; f++) {
+                    byte[] data = new byte[200 + random.nextInt(600)];
+                    random.nextBytes(data);
+                    Files.write(dir.resolve("file" + f + ".conf"), data);
+                }
+            }
+        } else {
+            // 4 files of 16 MiB
+            Files.createDirectories(source.toPath());
+            byte[] data = new byte[16 << 20];
+            for (int f = 0; f < 4; f++) {
+                random.nextBytes(data);
+                Files.write(source.toPath().resolve("wallpaper" + f + ".png"), data);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void pickDestination() {
+        destination = root.resolve("dest").toFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDestination() throws Throwable {
+        if (destination.exists()) {
+            InstallerApi.DELETE_DIRECTORY.invokeExact(destination);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws Throwable {
+        InstallerApi.DELETE_DIRECTORY.invokeExact(root.toFile());
+    }
+
+    @Benchmark
+    public File copyDirectory() throws Throwable {
+        InstallerApi.COPY_DIRECTORY.invokeExact(source, destination);
+        return destination;
+    }
+}
@@ -0,0 +1,81 @@
+package bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Bridge to the installer classes, which live in the unnamed package.
+ *
+ * JMH refuses benchmarks in the unnamed package, and named packages cannot
+ * import from it, so the hot paths are reached through method handles.
+ * They are static final and invoked exactly, so the JIT inlines them like
+ * direct calls.
+ */
+final class InstallerApi {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final MethodHandle COPY_DIRECTORY = staticMethod("FileOps", "copyDirectory",
+            MethodType.methodType(void.class, File.class, File.class));
+    static final MethodHandle DELETE_DIRECTORY = staticMethod("FileOps", "deleteDirectory",
+            MethodType.methodType(void.class, File.class));
+
+    static final MethodHandle DB_GET_INSTANCE = staticMethod("DatabaseManager", "getInstance",
+            MethodType.methodType(type("DatabaseManager")))
+            .asType(MethodType.methodType(Object.class));
+    static final MethodHandle DB_SAVE_BACKUP = virtualMethod("DatabaseManager", "saveBackup",
+            MethodType.methodType(String.class, String.class, String.class))
+            .asType(MethodType.methodType(String.class, Object.class, String.class, String.class));
+    static final MethodHandle DB_GET_VERSIONS = virtualMethod("DatabaseManager", "getVersions",
+            MethodType.methodType(List.class, String.class))
+            .asType(MethodType.methodType(List.class, Object.class, String.class));
+    static final MethodHandle DB_GET_ALL_FILENAMES = virtualMethod("DatabaseManager", "getAllBackupFilenames",
+            MethodType.methodType(List.class))
+            .asType(MethodType.methodType(List.class, Object.class));
+
+    static final MethodHandle XBPS_PARSE_LINE = staticMethod("XbpsParser", "parseLine",
+            MethodType.methodType(type("XbpsParser$PackageLine"), String.class))
+            .asType(MethodType.methodType(Object.class, String.class));
+    static final MethodHandle PACKAGE_LINE_NAME = virtualMethod("XbpsParser$PackageLine", "name",
+            MethodType.methodType(String.class))
+            .asType(MethodType.methodType(String.class, Object.class));
+
+    static final MethodHandle INDEX_WRITE = staticMethod("PackageIndex", "write",
+            MethodType.methodType(void.class, Path.class, List.class, String.class));
+    static final MethodHandle INDEX_OPEN = staticMethod("PackageIndex", "open",
+            MethodType.methodType(type("PackageIndex"), Path.class))
+            .asType(MethodType.methodType(Object.class, Path.class));
+    static final MethodHandle INDEX_SEARCH = virtualMethod("PackageIndex", "search",
+            MethodType.methodType(int[].class, String.class, int.class))
+            .asType(MethodType.methodType(int[].class, Object.class, String.class, int.class));
+
+    private InstallerApi() {
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Installer class missing from classpath: " + name, e);
+        }
+    }
+
+    private static MethodHandle staticMethod(String owner, String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(type(owner), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot bind " + owner + "." + name, e);
+        }
+    }
+
+    private static MethodHandle virtualMethod(String owner, String name, MethodType type) {
+        try {
+            return LOOKUP.findVirtual(type(owner), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot bind " + owner + "." + name, e);
+        }
+    }
+}
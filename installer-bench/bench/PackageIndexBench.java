@@ -0,0 +1,81 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Package search through the mapped PackageIndex against the xbps-query
+ * path it replaces (parse every output line, filter). The fixture is
+ * repeated under renamed packages to about the size of the Void repository.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PackageIndexBench {
+    private static final int COPIES = 32;
+
+    @Param({"wayland", "sh", "tiling wayland"})
+    public String query;
+
+    private Path indexFile;
+    private Object index;
+    private List<String> searchLines;
+
+    @Setup(Level.Trial)
+    public void buildIndex() throws Throwable {
+        List<String> lines = Files.readAllLines(Path.of("fixtures", "xbps-query-Rs.txt"));
+        searchLines = new ArrayList<>();
+        for (int c = 0; c < COPIES; c++) {
+            for (String line : lines) {
+                String[] parts = line.trim().split("\\s+", 3);
+                if (parts.length < 2) continue;
+                int dash = parts[1].lastIndexOf('-');
+                String renamed = c == 0 ? parts[1] : parts[1].substring(0, dash) + "-c" + c + parts[1].substring(dash);
+                searchLines.add(parts[0] + " " + renamed + "  " + (parts.length > 2 ? parts[2] : ""));
+            }
+        }
+        List<Object> packages = new ArrayList<>();
+        for (String line : searchLines) {
+            Object pkg = (Object) InstallerApi.XBPS_PARSE_LINE.invokeExact(line);
+            if (pkg != null) packages.add(pkg);
+        }
+        indexFile = Files.createTempFile("package-index", ".bin");
+        InstallerApi.INDEX_WRITE.invokeExact(indexFile, (List) packages, "0".repeat(64));
+        index = (Object) InstallerApi.INDEX_OPEN.invokeExact(indexFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteIndex() throws Exception {
+        Files.deleteIfExists(indexFile);
+    }
+
+    @Benchmark
+    public int[] indexSearch() throws Throwable {
+        return (int[]) InstallerApi.INDEX_SEARCH.invokeExact(index, query, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public int[] openAndSearch() throws Throwable {
+        Object fresh = (Object) InstallerApi.INDEX_OPEN.invokeExact(indexFile);
+        return (int[]) InstallerApi.INDEX_SEARCH.invokeExact(fresh, query, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public List<Object> parseAndFilter() throws Throwable {
+        String lower = query.toLowerCase();
+        List<Object> rows = new ArrayList<>();
+        for (String line : searchLines) {
+            if (!line.toLowerCase().contains(lower)) continue;
+            Object pkg = (Object) InstallerApi.XBPS_PARSE_LINE.invokeExact(line);
+            if (pkg != null) rows.add(pkg);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Package-list parsing and installed-state lookup as done by
+ * PackageInstallerApp.refreshInstalled/performSearch, on captured
+ * xbps-query output in fixtures/.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XbpsParseBench {
+    private List<String> installedLines;
+    private List<String> searchLines;
+    private Set<String> installed;
+    private List<Object> results;
+
+    @Setup(Level.Trial)
+    public void loadFixtures() throws Throwable {
+        installedLines = Files.readAllLines(Path.of("fixtures", "xbps-query-l.txt"));
+        searchLines = Files.readAllLines(Path.of("fixtures", "xbps-query-Rs.txt"));
+        installed = parseInstalled();
+        results = parseSearch();
+    }
+
+    @Benchmark
+    public Set<String> parseInstalled() throws Throwable {
+        Set<String> names = new HashSet<>();
+        for (String line : installedLines) {
+            Object pkg = (Object) InstallerApi.XBPS_PARSE_LINE.invokeExact(line);
+            if (pkg != null) names.add((String) InstallerApi.PACKAGE_LINE_NAME.invokeExact(pkg));
+        }
+        return names;
+    }
+
+    @Benchmark
+    public List<Object> parseSearch() throws Throwable {
+        List<Object> rows = new ArrayList<>(searchLines.size());
+        for (String line : searchLines) {
+            Object pkg = (Object) InstallerApi.XBPS_PARSE_LINE.invokeExact(line);
+            if (pkg != null) rows.add(pkg);
+        }
+        return rows;
+    }
+
+    @Benchmark
+    public void lookupInstalled(Blackhole bh) throws Throwable {
+        for (Object pkg : results) {
+            bh.consume(installed.contains((String) InstallerApi.PACKAGE_LINE_NAME.invokeExact(pkg)));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+#!/bin/bash
+#
+# run.sh - Build and run the installer JMH benchmarks
+#
+# Usage: ./run.sh [label] [jmh args...]
+#
+# Results go to results/<label>.json (JMH JSON format); the label defaults
+# to the current git revision so runs of different versions sit side by
+# side. Extra arguments are passed to JMH, e.g. a benchmark regex:
+#   ./run.sh before XbpsParseBench
+#
+# JMH jars are fetched into lib/ on first use. The SQLite driver is taken
+# from ../installer/lib like the tools themselves.
+#
+
+set -euo pipefail
+
+BENCH_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)"
+INSTALLER_DIR="$BENCH_DIR/../installer"
+MAVEN_CENTRAL="https://repo1.maven.org/maven2"
+JMH_VERSION="1.37"
+
+DEPS=(
+    "org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar"
+    "org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar"
+    "net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar"
+    "org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar"
+)
+
+#######################################
+# Download missing JMH jars into lib/
+# Arguments:
+#   None
+#######################################
+fetch_deps() {
+    mkdir -p "$BENCH_DIR/lib"
+    local dep
+    for dep in "${DEPS[@]}"; do
+        local jar="$BENCH_DIR/lib/$(basename "$dep")"
+        if [[ ! -f "$jar" ]]; then
+            echo "Fetching $(basename "$dep")..."
+            curl -fsSL -o "$jar" "$MAVEN_CENTRAL/$dep"
+        fi
+    done
+}
+
+#######################################
+# Compile installer classes and benchmarks (with JMH annotation processing)
+# Arguments:
+#   None
+#######################################
+build() {
+    rm -rf "$BENCH_DIR/out"
+    mkdir -p "$BENCH_DIR/out"
+    javac -proc:full -d "$BENCH_DIR/out" \
+        -cp "$BENCH_DIR/lib/*:$INSTALLER_DIR/lib/*" \
+        "$INSTALLER_DIR"/*.java "$BENCH_DIR"/bench/*.java
+}
+
+main() {
+    local label="${1:-$(git -C "$BENCH_DIR" rev-parse --short HEAD 2>/dev/null || echo local)}"
+    shift || true
+
+    fetch_deps
+    build
+
+    mkdir -p "$BENCH_DIR/results"
+    cd "$BENCH_DIR"
+    java --enable-native-access=ALL-UNNAMED \
+        -cp "$BENCH_DIR/out:$BENCH_DIR/lib/*:$INSTALLER_DIR/lib/*" \
+        org.openjdk.jmh.Main \
+        -jvmArgsAppend "--enable-native-access=ALL-UNNAMED" \
+        -rf json -rff "results/$label.json" "$@"
+    echo "Results: $BENCH_DIR/results/$label.json"
+}
+
+main "$@"
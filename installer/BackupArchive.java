@@ -0,0 +1,575 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves the backup history between machines as one .tar.gz file.
+ *
+ * The archive holds index.tsv (every version with its manifest) followed
+ * by one blobs/&lt;sha256&gt; entry per distinct file content, so a file that
+ * is the same in twenty versions is stored once. Export and import each
+ * run as three threads (file reader, gzip, tar writer/reader) connected by
+ * BoundedPipes, so memory stays at a few MB whatever the archive size.
+ *
+ * Import locks the archive's items (ItemLocks) for its whole run, skips
+ * versions already present (same item and backed_up_at) and hard-links
+ * files whose content is already in the store instead of writing them
+ * again. Backups are never modified in place, so sharing
+ * inodes between versions is safe. Files up to PACK_THRESHOLD are packed
+ * into the database, as a backup taken locally would be. Every manifest is
+ * saved once the index has been read, before any blob, so no packed blob
+ * is ever stored without a manifest that refers to it (a concurrent prune
+ * deletes such orphans); packed content is then stored PACKED_BATCH blobs
+ * at a time as it streams past.
+ */
+public final class BackupArchive {
+    private static final String FORMAT = "riverwm-backups 1";
+    private static final String INDEX_NAME = "index.tsv";
+    private static final String BLOB_PREFIX = "blobs/";
+    private static final int CHUNK_SIZE = 256 * 1024;
+    // Per pipe; with two pipes at most ~4 MB is buffered between stages
+    private static final int CHUNKS_IN_FLIGHT = 8;
+    // Packed blobs are read from and written to the database this many at a time
+    private static final int PACKED_BATCH = 256;
+
+    private final DatabaseManager db;
+
+    public record Summary(String action, int versions, int skipped, int files, int blobs, int deduplicated,
+                          long bytes, long millis) {
+        public String describe() {
+            return action + ": " + versions + " version(s), " + files + " file(s), " + blobs + " blob(s), "
+                    + deduplicated + " deduplicated, " + skipped + " skipped, "
+                    + DeployPlan.formatBytes(bytes) + " in " + millis + " ms";
+        }
+
+        public String toJson() {
+            return "{\"action\": " + Json.quote(action)
+                    + ", \"versions\": " + versions
+                    + ", \"skipped\": " + skipped
+                    + ", \"files\": " + files
+                    + ", \"blobs\": " + blobs
+                    + ", \"deduplicated\": " + deduplicated
+                    + ", \"bytes\": " + bytes
+                    + ", \"millis\": " + millis + "}";
+        }
+    }
+
+    private record VersionRecord(String filename, int version, String backedUpAt, boolean directory,
+                                 List<ManifestEntry> files) {
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    public BackupArchive(DatabaseManager db) {
+        this.db = db;
+    }
+
+    /** Writes all intact versions (or those of items, if non-empty) to archive. */
+    public Summary exportTo(Path archive, List<String> items) throws IOException, SQLException {
+        long start = System.nanoTime();
+        List<VersionRecord> versions = new ArrayList<>();
+        Map<String, Path> blobs = new LinkedHashMap<>();
+        Map<String, Long> blobSizes = new HashMap<>();
+        Set<String> packedBlobs = new LinkedHashSet<>();
+        int skipped = 0;
+        int files = 0;
+        for (BackupInfo backup : db.getAllBackups()) {
+            if (!items.isEmpty() && !items.contains(backup.getFilename())) {
+                continue;
+            }
+            Path root = Path.of(backup.getBackupPath());
+            if (backup.isDamaged()) {
+                skipped++;
+                continue;
+            }
+            List<ManifestEntry> manifest = db.getManifest(backup.getId());
+            boolean onDisk = manifest.isEmpty() || manifest.stream().anyMatch(entry -> !entry.packed());
+            if (onDisk && !Files.exists(root)) {
+                skipped++;
+                continue;
+            }
+            if (manifest.isEmpty()) {
+                manifest = BackupScrubber.buildManifest(root);
+            }
+            versions.add(new VersionRecord(backup.getFilename(), backup.getVersion(), backup.getBackedUpAt(),
+                    DeployEngine.isDirectoryBackup(root, manifest), manifest));
+            for (ManifestEntry entry : manifest) {
+                if (!blobs.containsKey(entry.sha256()) && !packedBlobs.contains(entry.sha256())) {
+                    if (entry.packed()) {
+                        packedBlobs.add(entry.sha256());
+                    } else {
+                        blobs.put(entry.sha256(), DeployPlanner.resolve(root, entry.relPath()));
+                        blobSizes.put(entry.sha256(), entry.size());
+                    }
+                }
+                files++;
+            }
+        }
+        int blobCount = blobs.size() + packedBlobs.size();
+        byte[] index = writeIndex(versions);
+
+        Path partial = archive.resolveSibling(archive.getFileName() + ".part");
+        BoundedPipe tar = new BoundedPipe(CHUNKS_IN_FLIGHT, CHUNK_SIZE);
+        BoundedPipe compressed = new BoundedPipe(CHUNKS_IN_FLIGHT, CHUNK_SIZE);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long[] bytes = {0};
+        try (Metrics.Span span = Metrics.time("exportBackups", archive.getFileName().toString())) {
+            Thread reader = stage("archive-read", failure, () -> {
+                try (OutputStream out = tar.sink()) {
+                    writeEntry(out, INDEX_NAME, index.length);
+                    out.write(index);
+                    pad(out, index.length);
+                    List<String> packed = new ArrayList<>(packedBlobs);
+                    for (int i = 0; i < packed.size(); i += PACKED_BATCH) {
+                        List<String> batch = packed.subList(i, Math.min(packed.size(), i + PACKED_BATCH));
+                        Map<String, byte[]> content = db.getPackedContent(batch);
+                        for (String sha : batch) {
+                            bytes[0] += writePacked(sha, content.get(sha), out);
+                        }
+                    }
+                    for (Map.Entry<String, Path> blob : blobs.entrySet()) {
+                        bytes[0] += copyBlob(blob.getValue(), blob.getKey(), blobSizes.get(blob.getKey()), out);
+                    }
+                    out.write(new byte[1024]);
+                }
+            }, tar, compressed);
+            Thread compressor = stage("archive-gzip", failure, () -> {
+                try (InputStream in = tar.source();
+                     OutputStream out = new GZIPOutputStream(compressed.sink(), CHUNK_SIZE)) {
+                    in.transferTo(out);
+                }
+            }, tar, compressed);
+            try (InputStream in = compressed.source()) {
+                Files.copy(in, partial, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+                tar.abort(e);
+                compressed.abort(e);
+            }
+            join(reader, compressor);
+            if (failure.get() != null) {
+                span.fail();
+                Files.deleteIfExists(partial);
+                throw asIOException(failure.get());
+            }
+            Files.move(partial, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return new Summary("export", versions.size(), skipped, files, blobCount, files - blobCount,
+                bytes[0], elapsedMs(start));
+    }
+
+    public Summary importFrom(Path archive) throws IOException, SQLException {
+        long start = System.nanoTime();
+        BoundedPipe compressed = new BoundedPipe(CHUNKS_IN_FLIGHT, CHUNK_SIZE);
+        BoundedPipe tar = new BoundedPipe(CHUNKS_IN_FLIGHT, CHUNK_SIZE);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<BackupInfo> created = new ArrayList<>();
+        int[] counts = new int[4]; // skipped, files, blobs, deduplicated
+        long bytes = 0;
+        ItemLocks.Lease lease = null;
+
+        try (Metrics.Span span = Metrics.time("importBackups", archive.getFileName().toString())) {
+            Thread reader = stage("archive-read", failure, () -> {
+                try (InputStream in = Files.newInputStream(archive); OutputStream out = compressed.sink()) {
+                    in.transferTo(out);
+                }
+            }, compressed, tar);
+            Thread decompressor = stage("archive-gunzip", failure, () -> {
+                try (InputStream in = new GZIPInputStream(compressed.source(), CHUNK_SIZE);
+                     OutputStream out = tar.sink()) {
+                    in.transferTo(out);
+                }
+            }, compressed, tar);
+
+            try (InputStream in = tar.source()) {
+                TarEntry indexEntry = readEntry(in);
+                if (indexEntry == null || !indexEntry.name().equals(INDEX_NAME)) {
+                    throw new IOException("not a backup archive: " + archive);
+                }
+                List<VersionRecord> versions = readIndex(new String(readBody(in, indexEntry), StandardCharsets.UTF_8));
+                // Held until the import is saved or rolled back, so a prune or gc in another
+                // process never deletes versions whose files and manifests are still on the way
+                Set<String> items = new TreeSet<>();
+                for (VersionRecord record : versions) items.add(record.filename());
+                lease = ItemLocks.forStore(db.getStoreDir()).lock(items);
+
+                // Allocate the new versions first so every blob knows where it goes
+                Map<String, List<Path>> destinations = new HashMap<>();
+                Set<String> packedNeeded = new HashSet<>();
+                for (VersionRecord record : versions) {
+                    if (db.hasBackupAt(record.filename(), record.backedUpAt())) {
+                        counts[0]++;
+                        continue;
+                    }
+                    BackupInfo backup = db.createBackup(record.filename(), record.backedUpAt());
+                    created.add(backup);
+                    Path root = Path.of(backup.getBackupPath());
+                    if (record.directory() && record.files().isEmpty()) {
+                        Files.createDirectories(root);
+                    }
+                    List<ManifestEntry> stored = new ArrayList<>();
+                    for (ManifestEntry entry : record.files()) {
+                        if (entry.size() <= DatabaseManager.PACK_THRESHOLD) {
+                            packedNeeded.add(entry.sha256());
+                            stored.add(new ManifestEntry(entry.relPath(), entry.size(), entry.sha256(), true));
+                        } else {
+                            destinations.computeIfAbsent(entry.sha256(), k -> new ArrayList<>())
+                                    .add(DeployPlanner.resolve(root, entry.relPath()));
+                            stored.add(entry);
+                        }
+                        counts[1]++;
+                    }
+                    db.saveManifest(backup.getId(), stored);
+                }
+
+                Map<String, byte[]> packed = new HashMap<>();
+                TarEntry entry;
+                while ((entry = readEntry(in)) != null) {
+                    String sha = entry.name().startsWith(BLOB_PREFIX) ? entry.name().substring(BLOB_PREFIX.length()) : null;
+                    if (sha != null && packedNeeded.remove(sha)) {
+                        counts[2]++;
+                        packed.put(sha, readPacked(in, entry, sha));
+                        bytes += entry.size();
+                        if (packed.size() >= PACKED_BATCH) {
+                            db.savePackedContent(packed);
+                            packed.clear();
+                        }
+                        continue;
+                    }
+                    List<Path> targets = sha == null ? null : destinations.remove(sha);
+                    if (targets == null) {
+                        skipBody(in, entry);
+                        continue;
+                    }
+                    counts[2]++;
+                    String existing = db.findFileBySha(sha, entry.size());
+                    Path first;
+                    if (existing != null) {
+                        skipBody(in, entry);
+                        first = Path.of(existing);
+                        counts[3]++;
+                    } else {
+                        first = targets.remove(0);
+                        writeBlob(in, entry, sha, first);
+                        bytes += entry.size();
+                    }
+                    for (Path target : targets) {
+                        linkOrCopy(first, target);
+                        if (existing == null) counts[3]++;
+                    }
+                }
+                db.savePackedContent(packed);
+                if (!destinations.isEmpty() || !packedNeeded.isEmpty()) {
+                    throw new IOException("archive is missing " + (destinations.size() + packedNeeded.size()) + " blob(s)");
+                }
+            } catch (IOException | SQLException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+                compressed.abort(e);
+                tar.abort(e);
+            }
+            join(reader, decompressor);
+            if (failure.get() != null) {
+                span.fail();
+                rollback(created);
+                throw asIOException(failure.get());
+            }
+        } finally {
+            if (lease != null) lease.close();
+        }
+        return new Summary("import", created.size(), counts[0], counts[1], counts[2], counts[3],
+                bytes, elapsedMs(start));
+    }
+
+    private void rollback(List<BackupInfo> created) {
+        for (BackupInfo backup : created) {
+            try {
+                db.deleteBackup(backup.getId());
+                Path root = Path.of(backup.getBackupPath());
+                if (Files.exists(root)) {
+                    FileOps.deleteDirectory(root.toFile());
+                }
+            } catch (IOException | SQLException e) {
+                System.err.println("Import rollback failed for " + backup.getBackupPath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static Thread stage(String name, AtomicReference<Throwable> failure, Stage body, BoundedPipe... pipes) {
+        return Thread.ofVirtual().name(name).start(() -> {
+            try {
+                body.run();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                for (BoundedPipe pipe : pipes) {
+                    pipe.abort(e);
+                }
+            }
+        });
+    }
+
+    private static void join(Thread... threads) throws IOException {
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+    }
+
+    private static IOException asIOException(Throwable t) {
+        return t instanceof IOException io ? io : new IOException(String.valueOf(t.getMessage()), t);
+    }
+
+    /** Streams one file into the tar as blobs/sha, checking it still has the recorded content. */
+    private static long copyBlob(Path file, String sha, long size, OutputStream out) throws IOException {
+        if (Files.size(file) != size) {
+            throw new IOException(file + " changed size since it was backed up; run ConfigCli scrub");
+        }
+        writeEntry(out, BLOB_PREFIX + sha, size);
+        MessageDigest digest = ContentHasher.newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        long copied = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while (copied < size && (n = in.read(buffer, 0, (int) Math.min(buffer.length, size - copied))) > 0) {
+                digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                copied += n;
+            }
+        }
+        if (copied != size || !HexFormat.of().formatHex(digest.digest()).equals(sha)) {
+            throw new IOException(file + " no longer matches its checksum; run ConfigCli scrub");
+        }
+        pad(out, size);
+        return size;
+    }
+
+    private static long writePacked(String sha, byte[] data, OutputStream out) throws IOException {
+        if (data == null || !ContentHasher.hashBytes(data).equals(sha)) {
+            throw new IOException("packed content " + sha + " is missing or corrupt; run ConfigCli scrub");
+        }
+        writeEntry(out, BLOB_PREFIX + sha, data.length);
+        out.write(data);
+        pad(out, data.length);
+        return data.length;
+    }
+
+    private static byte[] readPacked(InputStream in, TarEntry entry, String sha) throws IOException {
+        if (entry.size() > DatabaseManager.PACK_THRESHOLD) {
+            throw new IOException("archive entry " + entry.name() + " does not match its index size");
+        }
+        byte[] data = readBody(in, entry);
+        if (!ContentHasher.hashBytes(data).equals(sha)) {
+            throw new IOException("checksum mismatch in archive entry " + entry.name());
+        }
+        return data;
+    }
+
+    private static void writeBlob(InputStream in, TarEntry entry, String sha, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), ".import", ".tmp");
+        try {
+            MessageDigest digest = ContentHasher.newDigest();
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = entry.size();
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                while (remaining > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0) throw new EOFException("archive truncated in " + entry.name());
+                    digest.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+            skipFully(in, padding(entry.size()));
+            if (!HexFormat.of().formatHex(digest.digest()).equals(sha)) {
+                throw new IOException("checksum mismatch in archive entry " + entry.name());
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void linkOrCopy(Path existing, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, existing);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(existing, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // --- index.tsv: "V" lines for versions, each followed by its "F" lines ---
+
+    private static byte[] writeIndex(List<VersionRecord> versions) {
+        StringBuilder sb = new StringBuilder(FORMAT).append('\n');
+        for (VersionRecord record : versions) {
+            sb.append("V\t").append(escape(record.filename())).append('\t').append(record.version())
+                    .append('\t').append(escape(record.backedUpAt()))
+                    .append('\t').append(record.directory() ? "dir" : "file").append('\n');
+            for (ManifestEntry entry : record.files()) {
+                sb.append("F\t").append(escape(entry.relPath())).append('\t').append(entry.size())
+                        .append('\t').append(entry.sha256()).append('\n');
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<VersionRecord> readIndex(String text) throws IOException {
+        List<String> lines = text.lines().toList();
+        if (lines.isEmpty() || !lines.get(0).equals(FORMAT)) {
+            throw new IOException("unsupported archive format: " + (lines.isEmpty() ? "empty index" : lines.get(0)));
+        }
+        List<VersionRecord> versions = new ArrayList<>();
+        List<ManifestEntry> files = null;
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t", -1);
+            try {
+                if (fields[0].equals("V") && fields.length == 5) {
+                    files = new ArrayList<>();
+                    versions.add(new VersionRecord(unescape(fields[1]), Integer.parseInt(fields[2]),
+                            unescape(fields[3]), fields[4].equals("dir"), files));
+                } else if (fields[0].equals("F") && fields.length == 4 && files != null) {
+                    files.add(new ManifestEntry(unescape(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                } else {
+                    throw new IOException("bad index line: " + line);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("bad index line: " + line);
+            }
+        }
+        return versions;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // --- Minimal ustar: regular files only, names under 100 bytes ---
+
+    private record TarEntry(String name, long size) {
+    }
+
+    private static void writeEntry(OutputStream out, String name, long size) throws IOException {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, System.currentTimeMillis() / 1000);
+        header[156] = '0';
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        for (int i = 148; i < 156; i++) header[i] = ' ';
+        long checksum = 0;
+        for (byte b : header) checksum += b & 0xff;
+        octal(header, 148, 7, checksum);
+        out.write(header);
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int width = length - 1;
+        String padded = "0".repeat(Math.max(0, width - digits.length())) + digits;
+        System.arraycopy(padded.getBytes(StandardCharsets.US_ASCII), 0, header, offset, width);
+        header[offset + width] = 0;
+    }
+
+    private static void pad(OutputStream out, long size) throws IOException {
+        out.write(new byte[padding(size)]);
+    }
+
+    private static int padding(long size) {
+        return (int) ((512 - size % 512) % 512);
+    }
+
+    private static TarEntry readEntry(InputStream in) throws IOException {
+        byte[] header = in.readNBytes(512);
+        if (header.length == 0) {
+            return null;
+        }
+        if (header.length < 512) {
+            throw new EOFException("archive truncated");
+        }
+        boolean empty = true;
+        for (byte b : header) {
+            if (b != 0) {
+                empty = false;
+                break;
+            }
+        }
+        if (empty) {
+            return null;
+        }
+        int nameEnd = 0;
+        while (nameEnd < 100 && header[nameEnd] != 0) nameEnd++;
+        String name = new String(header, 0, nameEnd, StandardCharsets.UTF_8);
+        String size = new String(header, 124, 12, StandardCharsets.US_ASCII).replace("\0", "").trim();
+        try {
+            return new TarEntry(name, Long.parseLong(size, 8));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad tar header for " + name);
+        }
+    }
+
+    private static byte[] readBody(InputStream in, TarEntry entry) throws IOException {
+        byte[] body = in.readNBytes((int) entry.size());
+        if (body.length != entry.size()) {
+            throw new EOFException("archive truncated in " + entry.name());
+        }
+        skipFully(in, padding(entry.size()));
+        return body;
+    }
+
+    private static void skipBody(InputStream in, TarEntry entry) throws IOException {
+        skipFully(in, entry.size() + padding(entry.size()));
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        in.skipNBytes(n);
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
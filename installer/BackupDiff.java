@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares two states of an item: two backup versions, or a version and
+ * the live config. compare() lists the files that differ, using the
+ * manifest checksums so identical files are skipped without being read;
+ * diffText() produces the line diff of one file, cached by the checksums
+ * and labels of both sides.
+ */
+public final class BackupDiff {
+    // Larger files are reported as differing without a line diff
+    private static final long MAX_TEXT_BYTES = 4L * 1024 * 1024;
+    private static final int CACHE_ENTRIES = 512;
+    private static final Map<String, String> CACHE = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_ENTRIES;
+        }
+    };
+
+    public enum Status { ADDED, REMOVED, MODIFIED }
+
+    /**
+     * One side of a comparison. Files map relative path to manifest entry;
+     * sha256 is null where it has not been computed yet (live files and
+     * versions from before checksums), and is then hashed on demand. db
+     * is where the content of packed entries is read from (null for live).
+     */
+    public record Side(String label, Path root, Map<String, ManifestEntry> files, DatabaseManager db) {
+        Path resolve(String relPath) {
+            return DeployPlanner.resolve(root, relPath);
+        }
+
+        byte[] read(ManifestEntry entry) throws IOException {
+            if (!entry.packed()) {
+                return Files.readAllBytes(resolve(entry.relPath()));
+            }
+            try {
+                byte[] data = db.getPackedContent(List.of(entry.sha256())).get(entry.sha256());
+                if (data == null) {
+                    throw new IOException("packed content missing or corrupt: " + entry.relPath());
+                }
+                return data;
+            } catch (SQLException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    public record FileDiff(String relPath, Status status, Side from, Side to) {
+    }
+
+    private BackupDiff() {
+    }
+
+    public static Side ofVersion(DatabaseManager db, BackupInfo backup) throws SQLException, IOException {
+        Path root = Path.of(backup.getBackupPath());
+        List<ManifestEntry> entries = db.getManifest(backup.getId());
+        if (entries.isEmpty() && Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            entries = BackupScrubber.listEntries(root);
+        }
+        return new Side("v" + backup.getVersion(), root, toMap(entries), db);
+    }
+
+    public static Side ofLive(DeployEngine engine, String item) throws IOException {
+        Path root = engine.getTargetFile(item).toPath();
+        List<ManifestEntry> entries = Files.exists(root, LinkOption.NOFOLLOW_LINKS)
+                ? BackupScrubber.listEntries(root)
+                : List.of();
+        return new Side("live", root, toMap(entries), null);
+    }
+
+    private static Map<String, ManifestEntry> toMap(List<ManifestEntry> entries) {
+        Map<String, ManifestEntry> files = new TreeMap<>();
+        for (ManifestEntry entry : entries) {
+            files.put(entry.relPath(), entry);
+        }
+        return files;
+    }
+
+    /** Files that differ between the sides, sorted by path. Same-size pairs are hashed in parallel. */
+    public static List<FileDiff> compare(Side from, Side to) {
+        try (Metrics.Span span = Metrics.time("backupDiff", from.label() + ".." + to.label());
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            TreeSet<String> paths = new TreeSet<>(from.files().keySet());
+            paths.addAll(to.files().keySet());
+            List<FileDiff> diffs = new ArrayList<>();
+            List<CompletableFuture<FileDiff>> pending = new ArrayList<>();
+            for (String path : paths) {
+                ManifestEntry a = from.files().get(path);
+                ManifestEntry b = to.files().get(path);
+                if (a == null) {
+                    diffs.add(new FileDiff(path, Status.ADDED, from, to));
+                } else if (b == null) {
+                    diffs.add(new FileDiff(path, Status.REMOVED, from, to));
+                } else if (a.size() != b.size()) {
+                    diffs.add(new FileDiff(path, Status.MODIFIED, from, to));
+                } else if (a.sha256() == null || b.sha256() == null) {
+                    pending.add(CompletableFuture.supplyAsync(() ->
+                            sha(from, a).equals(sha(to, b)) ? null : new FileDiff(path, Status.MODIFIED, from, to), executor));
+                } else if (!a.sha256().equals(b.sha256())) {
+                    diffs.add(new FileDiff(path, Status.MODIFIED, from, to));
+                }
+            }
+            try {
+                for (CompletableFuture<FileDiff> future : pending) {
+                    FileDiff diff = future.join();
+                    if (diff != null) diffs.add(diff);
+                }
+            } catch (CompletionException e) {
+                span.fail();
+                throw e;
+            }
+            diffs.sort(Comparator.comparing(FileDiff::relPath));
+            return diffs;
+        }
+    }
+
+    /** Unified diff of one file; added and removed files diff against empty text. */
+    public static String diffText(FileDiff diff) throws IOException {
+        ManifestEntry a = diff.from().files().get(diff.relPath());
+        ManifestEntry b = diff.to().files().get(diff.relPath());
+        String name = diff.relPath().isEmpty() ? diff.from().root().getFileName().toString() : diff.relPath();
+        String labelA = a == null ? "/dev/null" : diff.from().label() + "/" + name;
+        String labelB = b == null ? "/dev/null" : diff.to().label() + "/" + name;
+        // The text embeds the name and both labels, so they are part of the key
+        String key;
+        try {
+            key = (a == null ? "-" : sha(diff.from(), a)) + ":" + (b == null ? "-" : sha(diff.to(), b))
+                    + "\n" + labelA + "\n" + labelB;
+        } catch (CompletionException e) {
+            throw (IOException) e.getCause();
+        }
+        synchronized (CACHE) {
+            String cached = CACHE.get(key);
+            if (cached != null) {
+                Metrics.count("diff.cacheHit");
+                return cached;
+            }
+        }
+
+        String text;
+        if ((a != null && a.size() > MAX_TEXT_BYTES) || (b != null && b.size() > MAX_TEXT_BYTES)) {
+            text = "Files differ (too large for a line diff): " + name + "\n";
+        } else {
+            byte[] bytesA = a == null ? new byte[0] : diff.from().read(a);
+            byte[] bytesB = b == null ? new byte[0] : diff.to().read(b);
+            if (isBinary(bytesA) || isBinary(bytesB)) {
+                text = "Binary files differ: " + name + "\n";
+            } else {
+                text = LineDiff.unified(labelA, new String(bytesA, StandardCharsets.UTF_8),
+                        labelB, new String(bytesB, StandardCharsets.UTF_8),
+                        LineDiff.DEFAULT_CONTEXT);
+            }
+        }
+        synchronized (CACHE) {
+            CACHE.put(key, text);
+        }
+        return text;
+    }
+
+    private static String sha(Side side, ManifestEntry entry) {
+        if (entry.sha256() != null) {
+            return entry.sha256();
+        }
+        try {
+            return ContentHasher.hash(side.resolve(entry.relPath()));
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static boolean isBinary(byte[] data) {
+        int limit = Math.min(data.length, 8192);
+        for (int i = 0; i < limit; i++) {
+            if (data[i] == 0) return true;
+        }
+        return false;
+    }
+}
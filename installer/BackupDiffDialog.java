@@ -0,0 +1,103 @@
+import java.awt.*;
+import java.util.List;
+import javax.swing.*;
+
+/**
+ * Differences between two states of an item: changed files on the left,
+ * the selected file's unified diff on the right. Both the file list and
+ * each diff are computed off the EDT.
+ */
+public class BackupDiffDialog extends JDialog {
+    private final DefaultListModel<String> fileModel = new DefaultListModel<>();
+    private final JList<String> fileList = new JList<>(fileModel);
+    private final JTextArea diffArea = new JTextArea();
+    private final JLabel titleLabel;
+    private List<BackupDiff.FileDiff> diffs = List.of();
+
+    public BackupDiffDialog(Window owner, String filename, BackupDiff.Side from, BackupDiff.Side to) {
+        super(owner, "Diff: " + filename, ModalityType.APPLICATION_MODAL);
+        setSize(900, 550);
+        setLocationRelativeTo(owner);
+        setLayout(new BorderLayout(10, 10));
+
+        titleLabel = new JLabel(filename + ": " + from.label() + " -> " + to.label() + " (comparing...)");
+        titleLabel.setFont(new Font("Dialog", Font.BOLD, 14));
+        titleLabel.setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));
+        add(titleLabel, BorderLayout.NORTH);
+
+        fileList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        fileList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        fileList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting() && fileList.getSelectedIndex() >= 0) {
+                showDiff(diffs.get(fileList.getSelectedIndex()));
+            }
+        });
+        diffArea.setEditable(false);
+        diffArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+
+        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
+                new JScrollPane(fileList), new JScrollPane(diffArea));
+        split.setDividerLocation(250);
+        split.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
+        add(split, BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(e -> dispose());
+        buttonPanel.add(closeButton);
+        add(buttonPanel, BorderLayout.SOUTH);
+
+        compare(filename, from, to);
+    }
+
+    private void compare(String filename, BackupDiff.Side from, BackupDiff.Side to) {
+        long start = System.nanoTime();
+        new SwingWorker<List<BackupDiff.FileDiff>, Void>() {
+            protected List<BackupDiff.FileDiff> doInBackground() {
+                return BackupDiff.compare(from, to);
+            }
+            protected void done() {
+                try {
+                    diffs = get();
+                    for (BackupDiff.FileDiff diff : diffs) {
+                        String path = diff.relPath().isEmpty() ? filename : diff.relPath();
+                        fileModel.addElement(marker(diff.status()) + " " + path);
+                    }
+                    titleLabel.setText(filename + ": " + from.label() + " -> " + to.label() + " - "
+                            + diffs.size() + " file(s) differ (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+                    if (diffs.isEmpty()) {
+                        diffArea.setText("No differences.");
+                    } else {
+                        fileList.setSelectedIndex(0);
+                    }
+                } catch (Exception ex) {
+                    diffArea.setText("Error: " + ex.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private void showDiff(BackupDiff.FileDiff diff) {
+        new SwingWorker<String, Void>() {
+            protected String doInBackground() throws Exception {
+                return BackupDiff.diffText(diff);
+            }
+            protected void done() {
+                try {
+                    diffArea.setText(get());
+                    diffArea.setCaretPosition(0);
+                } catch (Exception ex) {
+                    diffArea.setText("Error: " + ex.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private static String marker(BackupDiff.Status status) {
+        return switch (status) {
+            case ADDED -> "[+]";
+            case MODIFIED -> "[~]";
+            case REMOVED -> "[-]";
+        };
+    }
+}
@@ -1,7 +1,6 @@
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.nio.file.*;
 import java.util.List;
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
@@ -10,16 +9,16 @@ public class BackupHistoryDialog extends JDialog {
     private JTable backupTable;
     private DefaultTableModel tableModel;
     private String filename;
-    private DatabaseManager dbManager;
+    private DeployEngine engine;
     private JFrame parentFrame;
 
-    public BackupHistoryDialog(JFrame parent, String filename, DatabaseManager dbManager) {
+    public BackupHistoryDialog(JFrame parent, String filename, DeployEngine engine) {
         super(parent, "Restore: " + filename, true);
         this.parentFrame = parent;
         this.filename = filename;
-        this.dbManager = dbManager;
+        this.engine = engine;
 
-        setSize(500, 350);
+        setSize(640, 350);
         setLocationRelativeTo(parent);
         setLayout(new BorderLayout(10, 10));
 
@@ -28,7 +27,7 @@ public class BackupHistoryDialog extends JDialog {
         titleLabel.setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));
         add(titleLabel, BorderLayout.NORTH);
 
-        String[] columnNames = {"Version", "Date"};
+        String[] columnNames = {"Version", "Date", "Status"};
         tableModel = new DefaultTableModel(columnNames, 0) {
             @Override
             public boolean isCellEditable(int row, int column) {
@@ -36,7 +35,8 @@ public class BackupHistoryDialog extends JDialog {
             }
         };
         backupTable = new JTable(tableModel);
-        backupTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // Two rows can be selected for Diff; restores use the first selected row
+        backupTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         backupTable.setFont(new Font("Monospaced", Font.PLAIN, 12));
         backupTable.addMouseListener(new MouseAdapter() {
             @Override
@@ -53,11 +53,17 @@ public class BackupHistoryDialog extends JDialog {
 
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
         JButton restoreButton = new JButton("Restore Selected");
+        JButton diffButton = new JButton("Diff...");
+        JButton restoreFilesButton = new JButton("Restore Files...");
         JButton cancelButton = new JButton("Cancel");
 
         restoreButton.addActionListener(e -> restoreSelected());
+        diffButton.addActionListener(e -> diffSelected());
+        restoreFilesButton.addActionListener(e -> restoreSelectedFiles());
         cancelButton.addActionListener(e -> dispose());
 
+        buttonPanel.add(diffButton);
+        buttonPanel.add(restoreFilesButton);
         buttonPanel.add(restoreButton);
         buttonPanel.add(cancelButton);
         add(buttonPanel, BorderLayout.SOUTH);
@@ -67,11 +73,12 @@ public class BackupHistoryDialog extends JDialog {
 
     private void loadBackups() {
         try {
-            List<BackupInfo> backups = dbManager.getVersions(filename);
+            List<BackupInfo> backups = engine.listVersions(filename);
             for (BackupInfo backup : backups) {
                 Object[] row = {
                     "v" + backup.getVersion(),
-                    backup.getBackedUpAt()
+                    backup.getBackedUpAt(),
+                    backup.isDamaged() ? "damaged (quarantined)" : ""
                 };
                 tableModel.addRow(row);
             }
@@ -92,7 +99,7 @@ public class BackupHistoryDialog extends JDialog {
         }
 
         try {
-            List<BackupInfo> backups = dbManager.getVersions(filename);
+            List<BackupInfo> backups = engine.listVersions(filename);
             BackupInfo selectedBackup = backups.get(selectedRow);
 
             int confirm = JOptionPane.showConfirmDialog(
@@ -103,14 +110,10 @@ public class BackupHistoryDialog extends JDialog {
             );
 
             if (confirm == JOptionPane.YES_OPTION) {
-                File backupDir = new File(selectedBackup.getBackupPath());
-                File targetDir = new File(System.getProperty("user.home"), ".config/" + getTargetPath(filename));
-
-                if (targetDir.exists()) {
-                    deleteDirectory(targetDir);
+                DeployEngine.ItemResult result = engine.restore(selectedBackup);
+                if (!result.success()) {
+                    throw new IOException(result.message());
                 }
-                targetDir.getParentFile().mkdirs();
-                copyDirectory(backupDir, targetDir);
 
                 JOptionPane.showMessageDialog(this, "Successfully restored " + filename + " to v" + selectedBackup.getVersion(), "Success", JOptionPane.INFORMATION_MESSAGE);
                 dispose();
@@ -120,42 +123,69 @@ public class BackupHistoryDialog extends JDialog {
         }
     }
 
-    private String getTargetPath(String itemName) {
-        return itemName;
-    }
-
-    private void copyDirectory(File source, File destination) throws IOException {
-        if (!destination.exists()) {
-            destination.mkdirs();
+    /** Restores only the files or folders picked from the selected version. */
+    private void restoreSelectedFiles() {
+        int selectedRow = backupTable.getSelectedRow();
+        if (selectedRow == -1) {
+            JOptionPane.showMessageDialog(this, "Please select a backup to restore from.", "No Selection", JOptionPane.WARNING_MESSAGE);
+            return;
         }
 
-        File[] files = source.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.getName().equals("backups")) {
-                    continue;
-                }
-                File newFile = new File(destination, file.getName());
-                if (file.isDirectory()) {
-                    copyDirectory(file, newFile);
-                } else {
-                    Files.copy(file.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                }
+        try {
+            BackupInfo selectedBackup = engine.listVersions(filename).get(selectedRow);
+            List<String> paths = engine.listBackupPaths(selectedBackup);
+            if (paths.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "v" + selectedBackup.getVersion() + " is a single file; use Restore Selected.", "Info", JOptionPane.INFORMATION_MESSAGE);
+                return;
             }
+
+            JList<String> pathList = new JList<>(paths.toArray(new String[0]));
+            pathList.setFont(new Font("Monospaced", Font.PLAIN, 12));
+            pathList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+            JScrollPane listScroll = new JScrollPane(pathList);
+            listScroll.setPreferredSize(new Dimension(420, 260));
+
+            int confirm = JOptionPane.showConfirmDialog(
+                this,
+                listScroll,
+                "Restore files from " + filename + " v" + selectedBackup.getVersion(),
+                JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE
+            );
+            List<String> chosen = pathList.getSelectedValuesList();
+            if (confirm != JOptionPane.OK_OPTION || chosen.isEmpty()) {
+                return;
+            }
+
+            DeployEngine.ItemResult result = engine.restoreFiles(selectedBackup, chosen);
+            if (!result.success()) {
+                throw new IOException(result.message());
+            }
+            JOptionPane.showMessageDialog(this, result.message(), "Success", JOptionPane.INFORMATION_MESSAGE);
+        } catch (Exception ex) {
+            JOptionPane.showMessageDialog(this, "Error restoring files: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    private void deleteDirectory(File directory) throws IOException {
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    deleteDirectory(file);
-                } else {
-                    Files.delete(file.toPath());
-                }
-            }
+    /** One selected version: diff against the live config. Two: older against newer. */
+    private void diffSelected() {
+        int[] rows = backupTable.getSelectedRows();
+        if (rows.length == 0 || rows.length > 2) {
+            JOptionPane.showMessageDialog(this, "Select one version (compare with current config) or two versions.", "Diff", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        try {
+            List<BackupInfo> backups = engine.listVersions(filename);
+            // Rows are newest first, so the higher row index is the older version
+            BackupInfo older = backups.get(rows[rows.length - 1]);
+            BackupDiff.Side from = BackupDiff.ofVersion(engine.getDatabase(), older);
+            BackupDiff.Side to = rows.length == 2
+                    ? BackupDiff.ofVersion(engine.getDatabase(), backups.get(rows[0]))
+                    : BackupDiff.ofLive(engine, filename);
+            new BackupDiffDialog(this, filename, from, to).setVisible(true);
+        } catch (Exception ex) {
+            JOptionPane.showMessageDialog(this, "Error comparing backups: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
-        Files.delete(directory.toPath());
     }
 }
@@ -1,9 +1,14 @@
 public class BackupInfo {
+    public static final String STATUS_OK = "ok";
+    // Failed a scrub; files were moved to the quarantine directory
+    public static final String STATUS_DAMAGED = "damaged";
+
     private int id;
     private String filename;
     private String backupPath;
     private int version;
     private String backedUpAt;
+    private String status = STATUS_OK;
 
     public BackupInfo() {
     }
@@ -56,8 +61,20 @@ public class BackupInfo {
         this.backedUpAt = backedUpAt;
     }
 
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public boolean isDamaged() {
+        return STATUS_DAMAGED.equals(status);
+    }
+
     @Override
     public String toString() {
-        return "v" + version + " - " + backedUpAt;
+        return "v" + version + " - " + backedUpAt + (isDamaged() ? " (damaged)" : "");
     }
 }
@@ -0,0 +1,376 @@
+import java.awt.Window;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Brings config_backups and the backup directory back in line after an
+ * interrupted backup, prune or quarantine.
+ *
+ * The directory listing and the table are read concurrently and compared
+ * by path:
+ * - a row whose files moved (e.g. into quarantine/) is pointed at them;
+ * - a row whose files are gone, or whose directory was left empty by a
+ *   failed backup, is deleted; a row whose files are all packed in the
+ *   database needs nothing on disk and is kept;
+ * - a directory or file no row refers to is deleted;
+ * - backup_files rows of deleted versions, and packed content no row
+ *   refers to, are dropped.
+ * Entries younger than GRACE are left alone: a backup in progress records
+ * its row first and writes its directory (none at all if every file is
+ * packed) and manifest after, so a row is judged by its backed_up_at and a
+ * directory by its modification time. Deletions are batched, one
+ * transaction per batch. Row changes are made with the batch's items
+ * locked (ItemLocks) and each row is checked again first, so an import or
+ * backup running in another process is never cut short; directories no row
+ * refers to need no lock, since new rows never take an existing path.
+ */
+public class BackupReconciler {
+    // Also how long the scrubber leaves a version without a manifest alone
+    static final Duration GRACE = Duration.ofMinutes(10);
+    private static final String QUARANTINE_DIR = "quarantine";
+    private static final String DB_FILE_PREFIX = "backups.db";
+    // Touched after each startup run; startup runs at most once per interval
+    private static final String STAMP_FILE = ".reconciled";
+    private static final Duration STARTUP_INTERVAL = Duration.ofHours(24);
+    private static final Duration STARTUP_DELAY = Duration.ofSeconds(3);
+
+    private final DatabaseManager db;
+    private final Path storeDir;
+    private int batchSize = 100;
+    private long pauseMillis;
+    private boolean dryRun;
+
+    public record Summary(int relocated, int rowsRemoved, int dirsRemoved, int manifestRowsRemoved,
+                          long contentRowsRemoved, long bytesReclaimed, long millis, boolean dryRun) {
+        public boolean changedAnything() {
+            return relocated + rowsRemoved + dirsRemoved + manifestRowsRemoved + contentRowsRemoved > 0;
+        }
+
+        public String describe() {
+            return (dryRun ? "gc (dry run): " : "gc: ") + relocated + " row(s) relocated, "
+                    + rowsRemoved + " orphan row(s), " + dirsRemoved + " orphan dir(s), "
+                    + manifestRowsRemoved + " manifest row(s), " + contentRowsRemoved + " packed blob(s), "
+                    + DeployPlan.formatBytes(bytesReclaimed) + " reclaimed in " + millis + " ms";
+        }
+
+        public String toJson() {
+            return "{\"relocated\": " + relocated
+                    + ", \"rowsRemoved\": " + rowsRemoved
+                    + ", \"dirsRemoved\": " + dirsRemoved
+                    + ", \"manifestRowsRemoved\": " + manifestRowsRemoved
+                    + ", \"contentRowsRemoved\": " + contentRowsRemoved
+                    + ", \"bytesReclaimed\": " + bytesReclaimed
+                    + ", \"millis\": " + millis
+                    + ", \"dryRun\": " + dryRun + "}";
+        }
+    }
+
+    private record StoreEntry(Path path, FileTime modified) {
+    }
+
+    public BackupReconciler(DatabaseManager db) {
+        this.db = db;
+        this.storeDir = Path.of(db.getStoreDir());
+    }
+
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    /** Rows deleted per transaction and directories deleted between pauses. */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /** Sleep between batches, so a background run yields the disk to the UI. */
+    public void setPauseMillis(long pauseMillis) {
+        this.pauseMillis = Math.max(0, pauseMillis);
+    }
+
+    public Summary reconcile() throws IOException, SQLException {
+        long start = System.nanoTime();
+        try (Metrics.Span span = Metrics.time("reconcileBackups", dryRun ? "dry-run" : "apply");
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            CompletableFuture<Map<Path, StoreEntry>> disk = CompletableFuture.supplyAsync(this::scanStore, executor);
+            CompletableFuture<List<BackupInfo>> rows = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return db.getAllBackups();
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            Map<Path, StoreEntry> entries;
+            List<BackupInfo> backups;
+            try {
+                entries = disk.join();
+                backups = rows.join();
+            } catch (CompletionException e) {
+                span.fail();
+                if (e.getCause() instanceof SQLException sql) throw sql;
+                if (e.getCause() instanceof IOException io) throw io;
+                throw e;
+            }
+
+            long cutoff = System.currentTimeMillis() - GRACE.toMillis();
+            String rowCutoff = DeployEngine.toDbTimestamp(LocalDateTime.now().minus(GRACE));
+            Map<String, StoreEntry> byName = new HashMap<>();
+            for (StoreEntry entry : entries.values()) {
+                byName.putIfAbsent(entry.path().getFileName().toString(), entry);
+            }
+
+            Set<Path> referenced = new HashSet<>();
+            List<BackupInfo> staleRows = new ArrayList<>();
+            int relocated = 0;
+            for (BackupInfo backup : backups) {
+                Path path = normalize(Path.of(backup.getBackupPath()));
+                StoreEntry entry = entries.get(path);
+                if (entry == null) {
+                    StoreEntry moved = byName.get(path.getFileName().toString());
+                    if (moved != null && !referenced.contains(moved.path())) {
+                        boolean quarantined = moved.path().getParent().getFileName().toString().equals(QUARANTINE_DIR);
+                        if (dryRun || relocate(backup, moved.path(), quarantined)) {
+                            relocated++;
+                        }
+                        referenced.add(moved.path());
+                    } else if (isStale(backup, cutoff, rowCutoff)) {
+                        // Covers rows pointing outside the store too, but only once their files are gone
+                        staleRows.add(backup);
+                    }
+                    continue;
+                }
+                referenced.add(path);
+                if (isStale(backup, cutoff, rowCutoff)) {
+                    staleRows.add(backup);
+                    referenced.remove(path);
+                }
+            }
+
+            List<StoreEntry> orphans = new ArrayList<>();
+            for (StoreEntry entry : entries.values()) {
+                if (!referenced.contains(entry.path()) && entry.modified().toMillis() < cutoff) {
+                    orphans.add(entry);
+                }
+            }
+
+            int rowsRemoved = 0;
+            for (int i = 0; i < staleRows.size(); i += batchSize) {
+                List<BackupInfo> batch = staleRows.subList(i, Math.min(staleRows.size(), i + batchSize));
+                rowsRemoved += dryRun ? batch.size() : removeStale(batch, cutoff, rowCutoff);
+                pause();
+            }
+
+            long reclaimed = 0;
+            int dirsRemoved = 0;
+            for (StoreEntry orphan : orphans) {
+                reclaimed += sizeOf(orphan.path());
+                if (!dryRun) {
+                    FileOps.deleteDirectory(orphan.path().toFile());
+                }
+                dirsRemoved++;
+                if (dirsRemoved % batchSize == 0) pause();
+            }
+            int manifestRows = db.pruneOrphanManifests(dryRun);
+            long[] content = db.pruneOrphanContent(dryRun);
+            reclaimed += content[1];
+
+            Metrics.count("gc.bytesReclaimed", reclaimed);
+            return new Summary(relocated, rowsRemoved, dirsRemoved, manifestRows, content[0], reclaimed,
+                    (System.nanoTime() - start) / 1_000_000, dryRun);
+        }
+    }
+
+    /**
+     * Runs a throttled reconcile in the background a few seconds after
+     * window first opens, at most once per STARTUP_INTERVAL, so it never
+     * competes with getting the first window on screen.
+     */
+    public static void scheduleAfterStartup(Window window) {
+        window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                window.removeWindowListener(this);
+                Thread.ofVirtual().name("backup-reconcile").start(BackupReconciler::runAtStartup);
+            }
+        });
+    }
+
+    private static void runAtStartup() {
+        try {
+            Thread.sleep(STARTUP_DELAY);
+            Path stamp = Path.of(DatabaseManager.getBackupDir(), STAMP_FILE);
+            if (Files.exists(stamp) && Files.getLastModifiedTime(stamp).toMillis()
+                    > System.currentTimeMillis() - STARTUP_INTERVAL.toMillis()) {
+                return;
+            }
+            BackupReconciler reconciler = new BackupReconciler(DatabaseManager.getInstance());
+            reconciler.setBatchSize(32);
+            reconciler.setPauseMillis(20);
+            Summary summary = reconciler.reconcile();
+            if (summary.changedAnything()) {
+                System.err.println("[" + summary.describe() + "]");
+            }
+            Files.write(stamp, new byte[0]);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | SQLException e) {
+            System.err.println("Backup reconcile failed: " + e.getMessage());
+        }
+    }
+
+    /** Top-level entries of the store and of quarantine/, minus the database and dot files. */
+    private Map<Path, StoreEntry> scanStore() {
+        Map<Path, StoreEntry> entries = new HashMap<>();
+        try {
+            list(storeDir, entries);
+            Path quarantine = storeDir.resolve(QUARANTINE_DIR);
+            if (Files.isDirectory(quarantine)) {
+                list(quarantine, entries);
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        return entries;
+    }
+
+    /**
+     * True if the row has nothing left to restore: its files are gone and it
+     * is not fully packed, or its directory is empty and it has no manifest.
+     * Either only counts once the row or directory is older than GRACE.
+     */
+    private boolean isStale(BackupInfo backup, long cutoff, String rowCutoff) throws IOException, SQLException {
+        Path path = normalize(Path.of(backup.getBackupPath()));
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return backup.getBackedUpAt().compareTo(rowCutoff) < 0 && !db.isFullyPacked(backup.getId());
+        }
+        return Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis() < cutoff
+                && isEmptyDirectory(path) && !db.hasManifest(backup.getId());
+    }
+
+    /**
+     * Deletes the rows of batch that are still stale once their items are
+     * locked. A backup, import or scrub that held the lock while the store
+     * was listed has finished by then, and its rows are judged afresh.
+     */
+    private int removeStale(List<BackupInfo> batch, long cutoff, String rowCutoff) throws IOException, SQLException {
+        Set<String> items = new TreeSet<>();
+        for (BackupInfo backup : batch) items.add(backup.getFilename());
+        ItemLocks.Lease lease = ItemLocks.forStore(db.getStoreDir()).lock(items);
+        try {
+            Map<Integer, BackupInfo> current = currentRows(items);
+            List<Integer> ids = new ArrayList<>();
+            for (BackupInfo backup : batch) {
+                BackupInfo now = current.get(backup.getId());
+                if (now != null && isStale(now, cutoff, rowCutoff)) ids.add(now.getId());
+            }
+            if (!ids.isEmpty()) {
+                db.deleteBackups(ids);
+            }
+            return ids.size();
+        } finally {
+            lease.close();
+        }
+    }
+
+    /** Points the row at moved with its item locked, unless it changed since the listing. */
+    private boolean relocate(BackupInfo backup, Path moved, boolean quarantined) throws IOException, SQLException {
+        ItemLocks.Lease lease = ItemLocks.forStore(db.getStoreDir()).lock(backup.getFilename());
+        try {
+            BackupInfo now = currentRows(Set.of(backup.getFilename())).get(backup.getId());
+            if (now == null || !now.getBackupPath().equals(backup.getBackupPath())
+                    || Files.exists(Path.of(now.getBackupPath()), LinkOption.NOFOLLOW_LINKS)
+                    || !Files.exists(moved, LinkOption.NOFOLLOW_LINKS)) {
+                return false;
+            }
+            db.relocateBackup(now.getId(), moved.toString(),
+                    quarantined ? BackupInfo.STATUS_DAMAGED : now.getStatus());
+            return true;
+        } finally {
+            lease.close();
+        }
+    }
+
+    private Map<Integer, BackupInfo> currentRows(Set<String> items) throws SQLException {
+        Map<Integer, BackupInfo> rows = new HashMap<>();
+        for (String item : items) {
+            for (BackupInfo backup : db.getVersions(item)) rows.put(backup.getId(), backup);
+        }
+        return rows;
+    }
+
+    private void list(Path dir, Map<Path, StoreEntry> entries) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(".") || name.startsWith(DB_FILE_PREFIX)
+                        || (dir.equals(storeDir) && name.equals(QUARANTINE_DIR))) {
+                    continue;
+                }
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                Path normalized = normalize(path);
+                entries.put(normalized, new StoreEntry(normalized, attrs.lastModifiedTime()));
+            }
+        }
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private static boolean isEmptyDirectory(Path path) throws IOException {
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            return !stream.iterator().hasNext();
+        }
+    }
+
+    private static long sizeOf(Path root) throws IOException {
+        long[] total = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                total[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return total[0];
+    }
+
+    private void pause() {
+        if (pauseMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(pauseMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
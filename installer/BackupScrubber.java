@@ -0,0 +1,392 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Checksums for backup versions and the scrub that re-verifies them.
+ *
+ * buildManifest() hashes a backup right after it is written. scrub() walks
+ * every stored version in parallel, re-hashes its files against the
+ * manifest under a shared byte-rate limit, and moves versions that no
+ * longer match into the quarantine directory. Progress is checkpointed per
+ * file in backup_files.verified_at, so an interrupted scrub picks up where
+ * it stopped.
+ *
+ * A deploy or import writes a version's row first and its manifest last,
+ * under the item's lock. A version without a manifest is therefore left
+ * alone while younger than BackupReconciler.GRACE, and otherwise judged
+ * with the item locked; a version found damaged is read again and
+ * re-checked under the lock before it is quarantined.
+ */
+public class BackupScrubber {
+    public static final long DEFAULT_BYTES_PER_SECOND = 64L * 1024 * 1024;
+    private static final String QUARANTINE_DIR = "quarantine";
+    // Verified files are recorded in batches of this size
+    private static final int CHECKPOINT_FILES = 64;
+
+    private final DatabaseManager db;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private long bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+
+    /**
+     * Outcome for one version: "ok", "damaged" (now quarantined), "baseline"
+     * (no manifest yet; one was recorded from the current files), "pending"
+     * (no manifest yet, still being written) or "gone" (pruned meanwhile).
+     */
+    public record VersionResult(BackupInfo backup, String state, int files, int skipped, long bytes,
+                                List<String> problems) {
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{\"item\": ").append(Json.quote(backup.getFilename()))
+                    .append(", \"version\": ").append(backup.getVersion())
+                    .append(", \"state\": ").append(Json.quote(state))
+                    .append(", \"files\": ").append(files)
+                    .append(", \"skipped\": ").append(skipped)
+                    .append(", \"bytes\": ").append(bytes)
+                    .append(", \"problems\": [");
+            String sep = "";
+            for (String problem : problems) {
+                sb.append(sep).append(Json.quote(problem));
+                sep = ", ";
+            }
+            return sb.append("]}").toString();
+        }
+    }
+
+    public BackupScrubber(DatabaseManager db) {
+        this.db = db;
+    }
+
+    public void setJobs(int jobs) {
+        this.jobs = Math.max(1, jobs);
+    }
+
+    /** Total read rate across all workers; 0 means unlimited. */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /** Hashes every regular file under a backup (a directory or a single file). */
+    public static List<ManifestEntry> buildManifest(Path backupRoot) throws IOException {
+        List<ManifestEntry> entries = new ArrayList<>();
+        for (Path file : listFiles(backupRoot)) {
+            entries.add(new ManifestEntry(relPath(backupRoot, file), Files.size(file), ContentHasher.computeHash(file)));
+        }
+        return entries;
+    }
+
+    /** Like buildManifest() but without hashing; sha256 is null. */
+    public static List<ManifestEntry> listEntries(Path backupRoot) throws IOException {
+        List<ManifestEntry> entries = new ArrayList<>();
+        for (Path file : listFiles(backupRoot)) {
+            entries.add(new ManifestEntry(relPath(backupRoot, file), Files.size(file), null));
+        }
+        return entries;
+    }
+
+    /**
+     * Verifies all versions, or only those of the given items when the list
+     * is non-empty. Results are passed to onResult as versions complete and
+     * returned in database order.
+     */
+    public List<VersionResult> scrub(List<String> items, Consumer<VersionResult> onResult) throws SQLException {
+        String runStarted = db.beginScrub();
+        RateLimiter limiter = new RateLimiter(bytesPerSecond);
+        List<BackupInfo> backups = new ArrayList<>();
+        for (BackupInfo backup : db.getAllBackups()) {
+            if (!backup.isDamaged() && (items.isEmpty() || items.contains(backup.getFilename()))) {
+                backups.add(backup);
+            }
+        }
+
+        boolean interrupted = false;
+        List<VersionResult> results = new ArrayList<>();
+        try (Metrics.Span span = Metrics.time("scrub", backups.size() + " versions")) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, backups.size())));
+            try {
+                List<Future<VersionResult>> futures = new ArrayList<>();
+                for (BackupInfo backup : backups) {
+                    futures.add(pool.submit(() -> {
+                        VersionResult result = scrubVersion(backup, runStarted, limiter);
+                        if (onResult != null) onResult.accept(result);
+                        return result;
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        results.add(futures.get(i).get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        interrupted = true;
+                        break;
+                    } catch (ExecutionException e) {
+                        span.fail();
+                        results.add(new VersionResult(backups.get(i), "error", 0, 0, 0,
+                                List.of(String.valueOf(e.getCause().getMessage()))));
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        boolean complete = !interrupted;
+        for (VersionResult result : results) {
+            if (result.state().equals("error")) complete = false;
+        }
+        if (complete) {
+            db.finishScrub();
+        }
+        return results;
+    }
+
+    private VersionResult scrubVersion(BackupInfo backup, String runStarted, RateLimiter limiter)
+            throws IOException, SQLException {
+        Path root = Path.of(backup.getBackupPath());
+        List<ManifestEntry> manifest = db.getManifest(backup.getId());
+        if (manifest.isEmpty()) {
+            String cutoff = DeployEngine.toDbTimestamp(LocalDateTime.now().minus(BackupReconciler.GRACE));
+            if (backup.getBackedUpAt().compareTo(cutoff) >= 0) {
+                return new VersionResult(backup, "pending", 0, 0, 0, List.of());
+            }
+            return scrubUnrecorded(backup, runStarted, limiter);
+        }
+
+        Set<String> done = db.getVerifiedSince(backup.getId(), runStarted);
+        List<String> problems = new ArrayList<>();
+        List<String> verified = new ArrayList<>();
+        int files = 0;
+        long bytes = 0;
+        List<String> packedShas = new ArrayList<>();
+        for (ManifestEntry entry : manifest) {
+            if (entry.packed() && !done.contains(entry.relPath())) packedShas.add(entry.sha256());
+        }
+        Map<String, byte[]> packed = db.getPackedContent(packedShas);
+        for (ManifestEntry entry : manifest) {
+            if (done.contains(entry.relPath())) {
+                continue;
+            }
+            String problem = checkEntry(root, entry, packed, limiter);
+            files++;
+            if (problem != null) {
+                problems.add(problem);
+                continue;
+            }
+            bytes += entry.size();
+            verified.add(entry.relPath());
+            if (verified.size() >= CHECKPOINT_FILES) {
+                db.markVerified(backup.getId(), verified);
+                verified.clear();
+            }
+        }
+        if (!problems.isEmpty()) {
+            return quarantine(backup, files, done.size(), bytes, limiter);
+        }
+        db.markVerified(backup.getId(), verified);
+        return new VersionResult(backup, "ok", files, done.size(), bytes, List.of());
+    }
+
+    /**
+     * A version with no manifest, old enough that its writer should be done:
+     * judged with the item locked, so a deploy or import still holding the
+     * lock finishes first.
+     */
+    private VersionResult scrubUnrecorded(BackupInfo backup, String runStarted, RateLimiter limiter)
+            throws IOException, SQLException {
+        BackupInfo current;
+        ItemLocks.Lease lease = ItemLocks.forStore(db.getStoreDir()).lock(backup.getFilename());
+        try {
+            current = currentRow(backup);
+            if (current == null) {
+                return new VersionResult(backup, "gone", 0, 0, 0, List.of());
+            }
+            if (!db.hasManifest(current.getId())) {
+                Path root = Path.of(current.getBackupPath());
+                if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+                    return moveToQuarantine(current, 0, 0, 0, List.of("backup missing: " + root));
+                }
+                List<ManifestEntry> baseline = new ArrayList<>();
+                long bytes = 0;
+                for (Path file : listFiles(root)) {
+                    String hash = ContentHasher.computeHash(file, limiter);
+                    baseline.add(new ManifestEntry(relPath(root, file), Files.size(file), hash));
+                    bytes += Files.size(file);
+                }
+                db.saveManifest(current.getId(), baseline);
+                db.markVerified(current.getId(), baseline.stream().map(ManifestEntry::relPath).toList());
+                return new VersionResult(current, "baseline", baseline.size(), 0, bytes, List.of());
+            }
+        } finally {
+            lease.close();
+        }
+        // Its writer finished while we waited for the lock: verify it like any other version
+        return scrubVersion(current, runStarted, limiter);
+    }
+
+    /**
+     * Quarantines a version that failed verification, after reading its row
+     * and manifest again and re-checking every file with the item locked: a
+     * prune may have removed it, or a writer finished it, since the first pass.
+     */
+    private VersionResult quarantine(BackupInfo backup, int files, int skipped, long bytes, RateLimiter limiter)
+            throws IOException, SQLException {
+        ItemLocks.Lease lease = ItemLocks.forStore(db.getStoreDir()).lock(backup.getFilename());
+        try {
+            BackupInfo current = currentRow(backup);
+            if (current == null) {
+                return new VersionResult(backup, "gone", files, skipped, bytes, List.of());
+            }
+            List<ManifestEntry> manifest = db.getManifest(current.getId());
+            List<String> packedShas = new ArrayList<>();
+            for (ManifestEntry entry : manifest) {
+                if (entry.packed()) packedShas.add(entry.sha256());
+            }
+            Map<String, byte[]> packed = db.getPackedContent(packedShas);
+            Path root = Path.of(current.getBackupPath());
+            List<String> problems = new ArrayList<>();
+            for (ManifestEntry entry : manifest) {
+                String problem = checkEntry(root, entry, packed, limiter);
+                if (problem != null) problems.add(problem);
+            }
+            if (problems.isEmpty()) {
+                return new VersionResult(current, "ok", files, skipped, bytes, List.of());
+            }
+            return moveToQuarantine(current, files, skipped, bytes, problems);
+        } finally {
+            lease.close();
+        }
+    }
+
+    /** The version's row as recorded now, or null if it was deleted. */
+    private BackupInfo currentRow(BackupInfo backup) throws SQLException {
+        for (BackupInfo current : db.getVersions(backup.getFilename())) {
+            if (current.getId() == backup.getId()) return current;
+        }
+        return null;
+    }
+
+    private static String checkEntry(Path root, ManifestEntry entry, Map<String, byte[]> packed, RateLimiter limiter)
+            throws IOException {
+        if (entry.packed()) {
+            return checkPacked(packed.get(entry.sha256()), entry, limiter);
+        }
+        return check(entry.relPath().isEmpty() ? root : root.resolve(entry.relPath()), entry, limiter);
+    }
+
+    private static String check(Path file, ManifestEntry entry, RateLimiter limiter) throws IOException {
+        if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+            return "missing: " + displayPath(entry);
+        }
+        long size = Files.size(file);
+        if (size != entry.size()) {
+            return "size " + size + " != " + entry.size() + ": " + displayPath(entry);
+        }
+        if (!ContentHasher.computeHash(file, limiter).equals(entry.sha256())) {
+            return "checksum mismatch: " + displayPath(entry);
+        }
+        return null;
+    }
+
+    /** data is null when the row is missing or does not inflate to its recorded size. */
+    private static String checkPacked(byte[] data, ManifestEntry entry, RateLimiter limiter) throws IOException {
+        if (data == null) {
+            return "packed content missing or corrupt: " + displayPath(entry);
+        }
+        limiter.acquire(data.length);
+        if (!ContentHasher.hashBytes(data).equals(entry.sha256())) {
+            return "checksum mismatch (packed): " + displayPath(entry);
+        }
+        return null;
+    }
+
+    /** Called with the item locked, so nothing moves it from under a restore or prune. */
+    private VersionResult moveToQuarantine(BackupInfo backup, int files, int skipped, long bytes, List<String> problems)
+            throws IOException, SQLException {
+        Path source = Path.of(backup.getBackupPath());
+        Path target = source;
+        if (Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+            Path dir = Path.of(db.getStoreDir(), QUARANTINE_DIR);
+            Files.createDirectories(dir);
+            target = dir.resolve(source.getFileName());
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        db.quarantine(backup.getId(), target.toString());
+        Metrics.count("scrub.quarantined");
+        return new VersionResult(backup, BackupInfo.STATUS_DAMAGED, files, skipped, bytes, problems);
+    }
+
+    private static String displayPath(ManifestEntry entry) {
+        return entry.relPath().isEmpty() ? "(file)" : entry.relPath();
+    }
+
+    private static String relPath(Path root, Path file) {
+        return root.relativize(file).toString().replace('\\', '/');
+    }
+
+    private static List<Path> listFiles(Path root) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Shared byte budget: each caller reserves the next slot on a common
+     * timeline and sleeps until it starts, so N workers together stay at
+     * bytesPerSecond.
+     */
+    private static final class RateLimiter implements ContentHasher.Throttle {
+        private final long bytesPerSecond;
+        private long nextFreeNanos = System.nanoTime();
+
+        RateLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void acquire(long bytes) throws IOException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(nextFreeNanos, now);
+                nextFreeNanos = start + bytes * 1_000_000_000L / bytesPerSecond;
+                waitNanos = start - now;
+            }
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("scrub interrupted");
+                }
+            }
+        }
+    }
+}
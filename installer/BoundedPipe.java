@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte pipe between two threads with a fixed number of fixed-size chunks
+ * in flight, so a fast producer blocks instead of buffering without limit.
+ * Either side can abort(); the other side then fails with that cause
+ * instead of blocking forever.
+ */
+public final class BoundedPipe {
+    private static final byte[] EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> queue;
+    private final int chunkSize;
+    private volatile Throwable failure;
+
+    public BoundedPipe(int chunks, int chunkSize) {
+        this.queue = new ArrayBlockingQueue<>(chunks);
+        this.chunkSize = chunkSize;
+    }
+
+    /** Stops both ends; pending and later reads and writes throw. */
+    public void abort(Throwable cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        queue.clear();
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable cause = failure;
+        if (cause != null) {
+            throw cause instanceof IOException io ? io : new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("pipe interrupted");
+        }
+        checkFailure();
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            byte[] chunk;
+            while ((chunk = queue.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkFailure();
+            }
+            checkFailure();
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("pipe interrupted");
+        }
+    }
+
+    /** Write end; close() signals end of stream. Use from one thread only. */
+    public OutputStream sink() {
+        return new OutputStream() {
+            private byte[] buffer = new byte[chunkSize];
+            private int count;
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length) flushChunk();
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] data, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buffer.length) flushChunk();
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(data, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            private void flushChunk() throws IOException {
+                if (count == 0) return;
+                byte[] chunk = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+                put(chunk);
+                buffer = new byte[chunkSize];
+                count = 0;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                flushChunk();
+                put(EOF);
+            }
+        };
+    }
+
+    /** Read end. Use from one thread only. */
+    public InputStream source() {
+        return new InputStream() {
+            private byte[] chunk = new byte[0];
+            private int pos;
+            private boolean eof;
+
+            private boolean fill() throws IOException {
+                while (!eof && pos == chunk.length) {
+                    chunk = take();
+                    pos = 0;
+                    if (chunk == EOF) eof = true;
+                }
+                return !eof;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return fill() ? chunk[pos++] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] data, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (!fill()) return -1;
+                int n = Math.min(len, chunk.length - pos);
+                System.arraycopy(chunk, pos, data, off, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+}
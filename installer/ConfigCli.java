@@ -0,0 +1,486 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Headless front end for DeployEngine. Never touches AWT, so it runs over
+ * SSH and on machines without a display.
+ *
+ * Usage: java -cp "lib/*:." ConfigCli <command> [options] [items...]
+ *
+ * Commands:
+ *   plan [--all] items...                dry run: files a deploy would add/change/delete
+ *   deploy [--all] [--keep N] items...   back up targets and overwrite them; with several --home,
+ *                                        every home at once from one read of the sources
+ *   link [--all] items...                symlink targets to the sources instead of copying;
+ *                                        with --all, also removes links to deleted sources
+ *   list [items...]                      list backup versions
+ *   snapshot --at TIME                   the version of every item that was current at a local time
+ *   restore item --version N             restore a version
+ *   restore item --at "YYYY-MM-DD HH:MM" restore the newest version at or before a local time
+ *   restore --all --at TIME [items...]   restore every item (or those listed) as of TIME, in parallel
+ *   restore item --version N --path P    restore only file or subtree P (repeatable)
+ *   diff item --version N [--to M]       unified diff of version N against version M (default: live config)
+ *   prune [--all] --keep N items...      delete all but the newest N versions
+ *   export FILE [items...]               write versions to one .tar.gz archive
+ *   import FILE                          add the versions of an archive to this store
+ *   gc [--dry-run]                       remove rows without files and files without rows
+ *   scrub [--rate MB/s] [items...]       re-verify backup checksums, quarantine damaged versions
+ *   setup [--resume] [tasks...]          run setup/install.sh as a parallel task graph (named tasks
+ *                                        and their dependencies only, if given)
+ *
+ * Options:
+ *   --json          one JSON object per line instead of text
+ *   --jobs N        items processed in parallel (default: CPU count; setup: all ready tasks)
+ *   --source DIR    repo checkout (default ~/riverwm)
+ *   --config DIR    deploy target (default ~/.config), backed up to DIR/backups
+ *   --home DIR      deploy to DIR/.config with its own backup store (repeatable for deploy)
+ *   --dry-run       gc: only report what would be removed; setup: print the task graph
+ *   --resume        setup: skip tasks that succeeded last time and are unchanged since
+ *   --setup DIR     setup scripts (default: setup/ in the --source checkout)
+ *   --rate MB/s     scrub read limit (default 64, 0 = unlimited)
+ *
+ * deploy is all or nothing: if any item fails, the items already written are
+ * rolled back (DeployJournal). A run cut short by a crash is rolled back the
+ * next time any command but setup starts.
+ *
+ * Exit status is 1 if any item failed (or a scrub found damage), 2 on usage errors.
+ */
+public class ConfigCli {
+    private static final DateTimeFormatter AT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm[:ss]");
+
+    private final List<String> items = new ArrayList<>();
+    private final List<String> paths = new ArrayList<>();
+    private final List<File> homes = new ArrayList<>();
+    private boolean json;
+    private boolean all;
+    private boolean dryRun;
+    private boolean resume;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private boolean jobsGiven;
+    private int keep = -1;
+    private long rate = BackupScrubber.DEFAULT_BYTES_PER_SECOND;
+    private Integer version;
+    private Integer toVersion;
+    private LocalDateTime at;
+    private File source;
+    private File config;
+    private File setupDir;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length == 0) {
+            usage("missing command");
+        }
+        ConfigCli cli = new ConfigCli();
+        cli.parseOptions(args);
+        try {
+            System.exit(cli.run(args[0]));
+        } catch (SQLException e) {
+            System.err.println("Database error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parseOptions(String[] args) {
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--json" -> json = true;
+                case "--all" -> all = true;
+                case "--dry-run" -> dryRun = true;
+                case "--resume" -> resume = true;
+                case "--jobs" -> {
+                    jobs = intArg(args, ++i, arg);
+                    jobsGiven = true;
+                }
+                case "--keep" -> keep = intArg(args, ++i, arg);
+                case "--version" -> version = intArg(args, ++i, arg);
+                case "--to" -> toVersion = intArg(args, ++i, arg);
+                case "--rate" -> rate = intArg(args, ++i, arg) * 1024L * 1024;
+                case "--at" -> at = timeArg(args, ++i);
+                case "--path" -> paths.add(stringArg(args, ++i, arg));
+                case "--source" -> source = new File(stringArg(args, ++i, arg));
+                case "--config" -> config = new File(stringArg(args, ++i, arg));
+                case "--home" -> homes.add(new File(stringArg(args, ++i, arg)));
+                case "--setup" -> setupDir = new File(stringArg(args, ++i, arg));
+                default -> {
+                    if (arg.startsWith("--")) usage("unknown option " + arg);
+                    items.add(arg.endsWith("/") ? arg.substring(0, arg.length() - 1) : arg);
+                }
+            }
+        }
+    }
+
+    private DeployEngine createEngine() {
+        if (source == null && config == null && homes.isEmpty()) {
+            return DeployEngine.forCurrentUser();
+        }
+        // Opening the user's own store is left to the default case, so overrides never touch it
+        File sourceDir = source != null ? source : new File(System.getProperty("user.home"), "riverwm");
+        if (!homes.isEmpty()) {
+            return DeployEngine.forHome(sourceDir, homes.get(0));
+        }
+        if (config == null) {
+            return new DeployEngine(sourceDir, new File(System.getProperty("user.home"), ".config"),
+                    DatabaseManager.getInstance());
+        }
+        // Backups of another config tree go to that tree's own store, never the user's
+        return new DeployEngine(sourceDir, config, DatabaseManager.forDirectory(new File(config, "backups").getPath()));
+    }
+
+    private int run(String command) throws SQLException {
+        if (!homes.isEmpty() && config != null) usage("--home and --config cannot be combined");
+        if (homes.size() > 1 && !command.equals("deploy")) usage("only deploy takes more than one --home");
+        DeployEngine engine = createEngine();
+        if (!command.equals("setup")) {
+            for (DeployJournal.Recovery recovery : DeployJournal.recover(Path.of(engine.getDatabase().getStoreDir()))) {
+                System.err.println(recovery.describe());
+            }
+        }
+        switch (command) {
+            case "deploy" -> {
+                List<String> targets = all ? engine.listItems() : items;
+                if (targets.isEmpty()) usage("deploy needs items or --all");
+                if (homes.size() > 1) {
+                    return deployHomes(targets);
+                }
+                if (keep > 0) engine.setRetainVersions(keep);
+                return report(engine.deploy(targets, jobs));
+            }
+            case "link" -> {
+                List<String> targets = all ? engine.listItems() : items;
+                if (targets.isEmpty()) usage("link needs items or --all");
+                if (keep > 0) engine.setRetainVersions(keep);
+                LinkDeployer linker = new LinkDeployer(engine);
+                List<DeployEngine.ItemResult> results = new ArrayList<>(linker.link(targets, jobs));
+                if (all) {
+                    try {
+                        results.addAll(linker.removeStaleLinks());
+                    } catch (IOException e) {
+                        results.add(new DeployEngine.ItemResult("(stale links)", "unlink", false, null, e.getMessage(), 0));
+                    }
+                }
+                return report(results);
+            }
+            case "plan" -> {
+                List<String> targets = all ? engine.listItems() : items;
+                if (targets.isEmpty()) usage("plan needs items or --all");
+                DeployPlan plan = new DeployPlanner(engine).plan(targets);
+                for (DeployPlan.ItemPlan item : plan.items()) {
+                    if (json) {
+                        System.out.println(item.toJson());
+                        continue;
+                    }
+                    System.out.println(item.summary());
+                    for (DeployPlan.FileChange change : item.changes()) {
+                        System.out.println("  " + change.kind() + "\t" + change.relPath());
+                    }
+                }
+                if (!json) {
+                    System.out.println("Total: " + DeployPlan.formatBytes(plan.totalBytes())
+                            + " in " + plan.planMillis() + " ms");
+                }
+                return 0;
+            }
+            case "list" -> {
+                List<String> targets = items.isEmpty() ? engine.listBackedUpItems() : items;
+                for (String item : targets) {
+                    for (BackupInfo backup : engine.listVersions(item)) {
+                        printVersion(backup);
+                    }
+                }
+                return 0;
+            }
+            case "snapshot" -> {
+                if (at == null) usage("snapshot needs --at");
+                for (BackupInfo backup : engine.snapshotAt(at)) {
+                    if (items.isEmpty() || items.contains(backup.getFilename())) {
+                        printVersion(backup);
+                    }
+                }
+                return 0;
+            }
+            case "restore" -> {
+                if (all || items.size() > 1) {
+                    if (at == null || version != null || !paths.isEmpty()) {
+                        usage("restoring several items needs --at, without --version or --path");
+                    }
+                    return report(engine.restoreAllAt(all ? List.of() : items, at, jobs));
+                }
+                if (items.size() != 1) usage("restore needs an item, or --all with --at");
+                if ((version == null) == (at == null)) usage("restore needs --version or --at");
+                String item = items.get(0);
+                if (!paths.isEmpty()) {
+                    BackupInfo backup = version != null ? engine.findVersion(item, version) : engine.findAt(item, at);
+                    if (backup == null) {
+                        return report(List.of(new DeployEngine.ItemResult(item, "restore", false, null,
+                                version != null ? "no version " + version : "no version at or before " + at, 0)));
+                    }
+                    return report(List.of(engine.restoreFiles(backup, paths)));
+                }
+                DeployEngine.ItemResult result = version != null
+                        ? engine.restoreVersion(item, version)
+                        : engine.restoreAt(item, at);
+                return report(List.of(result));
+            }
+            case "diff" -> {
+                if (items.size() != 1) usage("diff needs exactly one item");
+                if (version == null) usage("diff needs --version N");
+                String item = items.get(0);
+                BackupInfo from = engine.findVersion(item, version);
+                BackupInfo to = toVersion != null ? engine.findVersion(item, toVersion) : null;
+                if (from == null || (toVersion != null && to == null)) {
+                    System.err.println("Error: no version " + (from == null ? version : toVersion) + " of " + item);
+                    return 1;
+                }
+                try {
+                    List<BackupDiff.FileDiff> diffs = BackupDiff.compare(
+                            BackupDiff.ofVersion(engine.getDatabase(), from),
+                            to != null ? BackupDiff.ofVersion(engine.getDatabase(), to) : BackupDiff.ofLive(engine, item));
+                    for (BackupDiff.FileDiff diff : diffs) {
+                        if (json) {
+                            System.out.println("{\"path\": " + Json.quote(diff.relPath())
+                                    + ", \"status\": " + Json.quote(diff.status().name())
+                                    + ", \"diff\": " + Json.quote(BackupDiff.diffText(diff)) + "}");
+                        } else {
+                            System.out.print(BackupDiff.diffText(diff));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                    return 1;
+                }
+                return 0;
+            }
+            case "prune" -> {
+                List<String> targets = all ? engine.listBackedUpItems() : items;
+                if (targets.isEmpty()) usage("prune needs items or --all");
+                if (keep < 0) usage("prune needs --keep N");
+                return report(engine.prune(targets, keep, jobs));
+            }
+            case "export", "import" -> {
+                if (items.isEmpty()) usage(command + " needs an archive file");
+                Path archive = Path.of(items.get(0));
+                BackupArchive backupArchive = new BackupArchive(engine.getDatabase());
+                try {
+                    BackupArchive.Summary summary = command.equals("export")
+                            ? backupArchive.exportTo(archive, items.subList(1, items.size()))
+                            : backupArchive.importFrom(archive);
+                    System.out.println(json ? summary.toJson() : summary.describe());
+                    return 0;
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                    return 1;
+                }
+            }
+            case "gc" -> {
+                BackupReconciler reconciler = new BackupReconciler(engine.getDatabase());
+                reconciler.setDryRun(dryRun);
+                try {
+                    BackupReconciler.Summary summary = reconciler.reconcile();
+                    System.out.println(json ? summary.toJson() : summary.describe());
+                    return 0;
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                    return 1;
+                }
+            }
+            case "scrub" -> {
+                BackupScrubber scrubber = new BackupScrubber(engine.getDatabase());
+                scrubber.setJobs(jobs);
+                scrubber.setBytesPerSecond(rate);
+                int[] damaged = {0};
+                List<BackupScrubber.VersionResult> results = scrubber.scrub(items, result -> {
+                    if (result.state().equals(BackupInfo.STATUS_DAMAGED) || result.state().equals("error")) damaged[0]++;
+                    if (json) {
+                        System.out.println(result.toJson());
+                    } else {
+                        System.out.println(result.state().toUpperCase() + "\t" + result.backup().getFilename()
+                                + "\tv" + result.backup().getVersion() + "\t" + result.files() + " file(s)"
+                                + (result.skipped() > 0 ? ", " + result.skipped() + " already verified" : "")
+                                + (result.problems().isEmpty() ? "" : "\t" + String.join("; ", result.problems())));
+                    }
+                });
+                if (!json) {
+                    System.out.println("Versions: " + results.size() + " | Damaged: " + damaged[0]);
+                }
+                return damaged[0] == 0 ? 0 : 1;
+            }
+            case "setup" -> {
+                File dir = setupDir != null ? setupDir : new File(engine.getSourceDir(), "setup");
+                SetupGraph graph = SetupGraph.standard(dir.toPath(), engine.getDatabase());
+                try {
+                    List<SetupGraph.Task> tasks = graph.select(items);
+                    return dryRun ? printSetupPlan(graph, tasks) : runSetup(graph, tasks);
+                } catch (IllegalArgumentException e) {
+                    usage(e.getMessage());
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                    return 1;
+                }
+            }
+            default -> usage("unknown command " + command);
+        }
+        return 2;
+    }
+
+    private int printSetupPlan(SetupGraph graph, List<SetupGraph.Task> tasks) throws IOException, SQLException {
+        Map<String, SetupGraph.Checkpoint> checkpoints = graph.checkpoints();
+        Set<String> done = graph.completed(tasks);
+        List<List<SetupGraph.Task>> waves = graph.waves(tasks);
+        for (int i = 0; i < waves.size(); i++) {
+            for (SetupGraph.Task task : waves.get(i)) {
+                SetupGraph.Checkpoint last = checkpoints.get(task.name());
+                String lastRun = last == null ? "never run"
+                        : last.status() + " in " + last.millis() + " ms at " + last.finishedAt() + " UTC";
+                if (json) {
+                    System.out.println("{\"task\": " + Json.quote(task.name())
+                            + ", \"wave\": " + (i + 1)
+                            + ", \"deps\": " + Json.quote(String.join(",", task.deps()))
+                            + ", \"root\": " + task.root()
+                            + ", \"resumeSkips\": " + done.contains(task.name())
+                            + ", \"lastStatus\": " + Json.quote(last == null ? null : last.status())
+                            + ", \"lastMillis\": " + (last == null ? -1 : last.millis()) + "}");
+                } else {
+                    System.out.println((i + 1) + "\t" + task.name() + "\t" + task.description()
+                            + (task.deps().isEmpty() ? "" : "\tafter " + String.join(", ", task.deps()))
+                            + "\t[" + lastRun + (done.contains(task.name()) ? ", skipped by --resume" : "") + "]");
+                }
+            }
+        }
+        return 0;
+    }
+
+    private int runSetup(SetupGraph graph, List<SetupGraph.Task> tasks) throws IOException, SQLException {
+        if (!json) {
+            graph.setOutput(System.out::println);
+        }
+        long start = System.nanoTime();
+        // Setup tasks mostly wait on the network and on sudo, not the CPU: no limit unless asked
+        List<SetupGraph.TaskResult> results = graph.run(tasks, jobsGiven ? jobs : tasks.size(), resume);
+        long wallMillis = (System.nanoTime() - start) / 1_000_000;
+        long taskMillis = 0;
+        int failures = 0;
+        for (SetupGraph.TaskResult result : results) {
+            taskMillis += result.millis();
+            if (!result.success()) failures++;
+        }
+        if (json) {
+            results.forEach(result -> System.out.println(result.toJson()));
+            return failures == 0 ? 0 : 1;
+        }
+        System.out.println();
+        List<SetupGraph.TaskResult> byCost = new ArrayList<>(results);
+        byCost.sort(Comparator.comparingLong(SetupGraph.TaskResult::millis).reversed());
+        for (SetupGraph.TaskResult result : byCost) {
+            System.out.printf("%-8s %-18s %8d ms  %s%n", result.status().toUpperCase(), result.task(),
+                    result.millis(), result.message());
+        }
+        System.out.println("Wall: " + wallMillis + " ms | Task time: " + taskMillis + " ms | Failed or blocked: "
+                + failures);
+        return failures == 0 ? 0 : 1;
+    }
+
+    private void printVersion(BackupInfo backup) {
+        if (json) {
+            System.out.println("{\"item\": " + Json.quote(backup.getFilename())
+                    + ", \"version\": " + backup.getVersion()
+                    + ", \"backedUpAt\": " + Json.quote(backup.getBackedUpAt())
+                    + ", \"backupPath\": " + Json.quote(backup.getBackupPath())
+                    + ", \"status\": " + Json.quote(backup.getStatus()) + "}");
+        } else {
+            System.out.println(backup.getFilename() + "\tv" + backup.getVersion() + "\t"
+                    + backup.getBackedUpAt() + " UTC\t" + backup.getBackupPath()
+                    + (backup.isDamaged() ? "\tDAMAGED" : ""));
+        }
+    }
+
+    private int deployHomes(List<String> targets) {
+        MultiHomeDeployer deployer = new MultiHomeDeployer(createEngine().getSourceDir(), homes);
+        if (keep > 0) deployer.setRetainVersions(keep);
+        int failures = 0;
+        int total = 0;
+        for (MultiHomeDeployer.TargetResult target : deployer.deploy(targets, jobs)) {
+            String home = target.home().getPath();
+            for (DeployEngine.ItemResult result : target.results()) {
+                total++;
+                if (!result.success()) failures++;
+                if (json) {
+                    System.out.println("{\"home\": " + Json.quote(home) + ", " + result.toJson().substring(1));
+                } else {
+                    System.out.println((result.success() ? "OK    " : "ERROR ") + "[" + home + "] " + result.item()
+                            + ": " + result.message()
+                            + (result.backupPath() != null ? " (backup: " + result.backupPath() + ")" : ""));
+                }
+            }
+        }
+        if (!json) {
+            System.out.println("Homes: " + homes.size() + " | Success: " + (total - failures) + " | Errors: " + failures);
+        }
+        return failures == 0 ? 0 : 1;
+    }
+
+    private int report(List<DeployEngine.ItemResult> results) {
+        int failures = 0;
+        for (DeployEngine.ItemResult result : results) {
+            if (!result.success()) failures++;
+            if (json) {
+                System.out.println(result.toJson());
+            } else {
+                System.out.println((result.success() ? "OK    " : "ERROR ") + result.item() + ": " + result.message()
+                        + (result.backupPath() != null ? " (backup: " + result.backupPath() + ")" : ""));
+            }
+        }
+        if (!json) {
+            System.out.println("Success: " + (results.size() - failures) + " | Errors: " + failures);
+        }
+        return failures == 0 ? 0 : 1;
+    }
+
+    private static String stringArg(String[] args, int i, String option) {
+        if (i >= args.length) usage(option + " needs a value");
+        return args[i];
+    }
+
+    private static int intArg(String[] args, int i, String option) {
+        try {
+            return Integer.parseInt(stringArg(args, i, option));
+        } catch (NumberFormatException e) {
+            usage(option + " needs a number");
+            return 0;
+        }
+    }
+
+    private static LocalDateTime timeArg(String[] args, int i) {
+        String value = stringArg(args, i, "--at");
+        try {
+            return LocalDateTime.parse(value, AT_FORMAT);
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDate.parse(value).atTime(23, 59, 59);
+            } catch (DateTimeParseException e2) {
+                usage("--at expects \"YYYY-MM-DD HH:MM[:SS]\" or YYYY-MM-DD");
+                return null;
+            }
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println("Error: " + error);
+        System.err.println("Usage: ConfigCli plan|deploy|link|list|snapshot|restore|diff|prune|export|import|gc|scrub|setup [--json] [--jobs N] [--keep N]"
+                + " [--version N] [--to N] [--at TIME] [--path P] [--rate MB/s] [--all] [--dry-run] [--resume]"
+                + " [--source DIR] [--config DIR] [--home DIR] [--setup DIR] [items...]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,297 @@
+import java.awt.Color;
+import java.awt.Component;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import javax.swing.JTree;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeCellRenderer;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * Tree of the source checkout for FileOverwriteUI. Only the top level is
+ * listed up front; a directory's children are listed when it is first
+ * expanded. Listing and scanning never run on the EDT.
+ *
+ * Every listed entry is scanned by ItemStatusScanner, up to SCAN_PARALLELISM
+ * at once on virtual threads, and its node repaints as its result arrives.
+ * refresh() relists and rescans what is loaded; the scanner's cache makes
+ * entries that did not change cost a stat walk.
+ */
+public class ConfigTreeModel extends DefaultTreeModel implements TreeWillExpandListener {
+    private static final int SCAN_PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private final File sourceDir;
+    private final ItemStatusScanner scanner;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore scanSlots = new Semaphore(SCAN_PARALLELISM);
+    private final DefaultMutableTreeNode root;
+    // Results of an older refresh are dropped
+    private volatile int generation;
+    private Consumer<String> onStatus = message -> { };
+
+    /** A source entry; stats is null until its scan arrives. */
+    public static final class Entry {
+        final String relPath;
+        final String name;
+        final boolean directory;
+        volatile ItemStatusScanner.Stats stats;
+        volatile boolean childrenLoaded;
+
+        Entry(String relPath, String name, boolean directory) {
+            this.relPath = relPath;
+            this.name = name;
+            this.directory = directory;
+        }
+
+        /** The deployable item this entry belongs to. */
+        public String item() {
+            int slash = relPath.indexOf('/');
+            return slash < 0 ? relPath : relPath.substring(0, slash);
+        }
+
+        @Override
+        public String toString() {
+            return directory ? name + "/" : name;
+        }
+    }
+
+    public ConfigTreeModel(File sourceDir, File configDir) {
+        super(new DefaultMutableTreeNode(sourceDir.getName()));
+        this.sourceDir = sourceDir;
+        this.scanner = new ItemStatusScanner(sourceDir.toPath(), configDir.toPath());
+        this.root = (DefaultMutableTreeNode) getRoot();
+    }
+
+    /** Receives "Scanning..." and, once every item is scanned, a summary line, on the EDT. */
+    public void setStatusListener(Consumer<String> onStatus) {
+        this.onStatus = onStatus;
+    }
+
+    /**
+     * Lists the top level and every loaded directory again and rescans what
+     * is listed. Nodes that still exist are kept, so expansion and
+     * selection survive.
+     */
+    public void refresh() {
+        relist(root, ++generation);
+    }
+
+    /** Top-level items with their scan result, in tree order. */
+    public List<Entry> items() {
+        List<Entry> items = new ArrayList<>();
+        for (int i = 0; i < root.getChildCount(); i++) {
+            if (((DefaultMutableTreeNode) root.getChildAt(i)).getUserObject() instanceof Entry entry) {
+                items.add(entry);
+            }
+        }
+        return items;
+    }
+
+    /** The deployable items under the selected paths, each once, in tree order. */
+    public List<String> selectedItems(TreePath[] paths) {
+        List<String> selected = new ArrayList<>();
+        if (paths == null) return selected;
+        for (Entry entry : items()) {
+            for (TreePath path : paths) {
+                if (path.getLastPathComponent() instanceof DefaultMutableTreeNode node
+                        && node.getUserObject() instanceof Entry picked && picked.item().equals(entry.relPath)) {
+                    selected.add(entry.relPath);
+                    break;
+                }
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public void treeWillExpand(TreeExpansionEvent event) {
+        DefaultMutableTreeNode node = (DefaultMutableTreeNode) event.getPath().getLastPathComponent();
+        if (node.getUserObject() instanceof Entry entry && !entry.childrenLoaded) {
+            loadChildren(node, generation);
+        }
+    }
+
+    @Override
+    public void treeWillCollapse(TreeExpansionEvent event) {
+    }
+
+    private void loadChildren(DefaultMutableTreeNode node, int gen) {
+        ((Entry) node.getUserObject()).childrenLoaded = true;
+        relist(node, gen);
+    }
+
+    private void relist(DefaultMutableTreeNode node, int gen) {
+        String relPath = node == root ? "" : ((Entry) node.getUserObject()).relPath;
+        executor.submit(() -> {
+            List<Entry> children = list(relPath);
+            SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                merge(node, children);
+                if (node == root && children.isEmpty()) {
+                    onStatus.accept("Nothing to deploy in " + sourceDir.getAbsolutePath());
+                }
+                scanChildren(node, gen);
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    DefaultMutableTreeNode child = (DefaultMutableTreeNode) node.getChildAt(i);
+                    if (child.getUserObject() instanceof Entry entry && entry.childrenLoaded) {
+                        relist(child, gen);
+                    }
+                }
+            });
+        });
+    }
+
+    private void scanChildren(DefaultMutableTreeNode parent, int gen) {
+        List<DefaultMutableTreeNode> nodes = new ArrayList<>();
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            DefaultMutableTreeNode child = (DefaultMutableTreeNode) parent.getChildAt(i);
+            if (child.getUserObject() instanceof Entry) nodes.add(child);
+        }
+        if (parent == root && !nodes.isEmpty()) {
+            onStatus.accept("Scanning " + nodes.size() + " item(s)...");
+        }
+        int[] done = {0};
+        for (DefaultMutableTreeNode node : nodes) {
+            Entry entry = (Entry) node.getUserObject();
+            executor.submit(() -> {
+                ItemStatusScanner.Stats stats;
+                try {
+                    scanSlots.acquire();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    stats = scanner.scan(entry.relPath);
+                } finally {
+                    scanSlots.release();
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (gen != generation) return;
+                    entry.stats = stats;
+                    nodeChanged(node);
+                    if (parent == root && ++done[0] == nodes.size()) {
+                        onStatus.accept(summary());
+                    }
+                });
+            });
+        }
+    }
+
+    private String summary() {
+        int pending = 0;
+        int total = 0;
+        for (Entry entry : items()) {
+            total++;
+            if (entry.stats != null && entry.stats.needsDeploy()) pending++;
+        }
+        return pending == 0
+                ? "All " + total + " item(s) match ~/.config."
+                : pending + " of " + total + " item(s) differ from ~/.config (marked changed/new).";
+    }
+
+    /**
+     * Makes parent's children match entries (both sorted by name), keeping
+     * the nodes that are still there. Fine-grained insert and remove events
+     * leave the tree's expansion state alone.
+     */
+    private void merge(DefaultMutableTreeNode parent, List<Entry> entries) {
+        List<String> wanted = new ArrayList<>();
+        for (Entry entry : entries) {
+            wanted.add(entry.relPath + (entry.directory ? "/" : ""));
+        }
+        for (int i = parent.getChildCount() - 1; i >= 0; i--) {
+            DefaultMutableTreeNode child = (DefaultMutableTreeNode) parent.getChildAt(i);
+            if (!(child.getUserObject() instanceof Entry entry)
+                    || !wanted.contains(entry.relPath + (entry.directory ? "/" : ""))) {
+                removeNodeFromParent(child);
+            }
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (i < parent.getChildCount()
+                    && ((DefaultMutableTreeNode) parent.getChildAt(i)).getUserObject() instanceof Entry existing
+                    && existing.relPath.equals(entry.relPath)) {
+                continue;
+            }
+            DefaultMutableTreeNode node = new DefaultMutableTreeNode(entry, entry.directory);
+            if (entry.directory) {
+                // Placeholder so the expand handle shows before the children are listed
+                node.add(new DefaultMutableTreeNode("Loading...", false));
+            }
+            insertNodeInto(node, parent, i);
+        }
+    }
+
+    private List<Entry> list(String relPath) {
+        File dir = relPath.isEmpty() ? sourceDir : new File(sourceDir, relPath);
+        File[] files = dir.listFiles();
+        List<Entry> entries = new ArrayList<>();
+        if (files == null) {
+            return entries;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            // Never deployed (FileOps.copyDirectory skips it), so not offered
+            if (file.getName().equals(FileOps.EXCLUDED_NAME)) continue;
+            String childPath = relPath.isEmpty() ? file.getName() : relPath + "/" + file.getName();
+            entries.add(new Entry(childPath, file.getName(), file.isDirectory()));
+        }
+        return entries;
+    }
+
+    /** Name, then size, file count and status once scanned; changed and new entries stand out. */
+    public static class Renderer extends DefaultTreeCellRenderer {
+        private static final Color CHANGED = new Color(0xB3, 0x5C, 0x00);
+        private static final Color NEW = new Color(0x1F, 0x5F, 0xBF);
+        private static final Color QUIET = Color.GRAY;
+
+        @Override
+        public Component getTreeCellRendererComponent(JTree tree, Object value, boolean selected, boolean expanded,
+                                                      boolean leaf, int row, boolean hasFocus) {
+            super.getTreeCellRendererComponent(tree, value, selected, expanded, leaf, row, hasFocus);
+            if (!(value instanceof DefaultMutableTreeNode node) || !(node.getUserObject() instanceof Entry entry)) {
+                return this;
+            }
+            ItemStatusScanner.Stats stats = entry.stats;
+            if (stats == null) {
+                setText(entry + "   ...");
+                return this;
+            }
+            String status = switch (stats.status()) {
+                case SAME -> "same";
+                case LINKED -> "linked";
+                case NEW -> "new";
+                case CHANGED -> "changed (" + stats.changedFiles() + " file" + (stats.changedFiles() == 1 ? "" : "s") + ")";
+                case ERROR -> "error: " + stats.error();
+            };
+            String detail = stats.status() == ItemStatusScanner.Status.ERROR ? status
+                    : DeployPlan.formatBytes(stats.size()) + ", " + stats.files() + " file" + (stats.files() == 1 ? "" : "s")
+                    + ", " + status;
+            setText(String.format("%-28s %s", entry, detail));
+            if (!selected) {
+                setForeground(switch (stats.status()) {
+                    case CHANGED, ERROR -> CHANGED;
+                    case NEW -> NEW;
+                    case SAME, LINKED -> QUIET;
+                });
+            }
+            return this;
+        }
+    }
+
+    /** Stops scanning; call when the window closes. */
+    public void dispose() {
+        generation++;
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 of file contents, cached per path and invalidated by size and
+ * modification time. The cache is process-wide so repeated previews of the
+ * same trees only hash files that actually changed.
+ *
+ * Files of MMAP_THRESHOLD bytes or more are hashed from a memory mapping,
+ * one window at a time, instead of being copied through a heap buffer.
+ */
+public final class ContentHasher {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MMAP_THRESHOLD = 4L * 1024 * 1024;
+    private static final long MMAP_WINDOW = 64L * 1024 * 1024;
+    // Granularity at which a Throttle is charged inside a mapped window
+    private static final int MMAP_SLICE = 1024 * 1024;
+
+    /** Called before each chunk is hashed, e.g. to cap the read rate. */
+    public interface Throttle {
+        void acquire(long bytes) throws IOException;
+    }
+    private static final Map<Path, Entry> CACHE = new ConcurrentHashMap<>();
+
+    private record Entry(long size, long modifiedMillis, String hash) {
+    }
+
+    private ContentHasher() {
+    }
+
+    public static String hash(Path file) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        return hash(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    /** Hash for a file whose size and mtime the caller already read. */
+    public static String hash(Path file, long size, long modifiedMillis) throws IOException {
+        Path key = file.toAbsolutePath();
+        Entry cached = CACHE.get(key);
+        if (cached != null && cached.size() == size && cached.modifiedMillis() == modifiedMillis) {
+            return cached.hash();
+        }
+        String hash = computeHash(file);
+        CACHE.put(key, new Entry(size, modifiedMillis, hash));
+        return hash;
+    }
+
+    public static String computeHash(Path file) throws IOException {
+        return computeHash(file, null);
+    }
+
+    public static String computeHash(Path file, Throttle throttle) throws IOException {
+        MessageDigest digest = newDigest();
+        if (Files.size(file) >= MMAP_THRESHOLD) {
+            hashMapped(file, digest, throttle);
+        } else {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = Files.newInputStream(file)) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    if (throttle != null) throttle.acquire(n);
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void hashMapped(Path file, MessageDigest digest, Throttle throttle) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MMAP_WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MMAP_WINDOW, size - position));
+                while (window.hasRemaining()) {
+                    int n = Math.min(MMAP_SLICE, window.remaining());
+                    if (throttle != null) throttle.acquire(n);
+                    window.limit(window.position() + n);
+                    digest.update(window);
+                    window.limit(window.capacity());
+                }
+            }
+        }
+    }
+
+    public static String hashBytes(byte[] data) {
+        return HexFormat.of().formatHex(newDigest().digest(data));
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -1,35 +1,98 @@
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class DatabaseManager {
-    private static DatabaseManager instance;
-    private static final String DB_DIR = System.getProperty("user.home") + "/.config/backups";
-    private static final String DB_PATH = DB_DIR + "/backups.db";
+    private static final String DEFAULT_DIR = System.getProperty("user.home") + "/.config/backups";
+    // One instance per backup store, so each deploy target keeps its own history
+    private static final Map<String, DatabaseManager> instances = new HashMap<>();
+    /** Files up to this size are stored deflated in backup_content instead of on disk. */
+    public static final int PACK_THRESHOLD = 16 * 1024;
+    // Keeps IN (...) lists well under SQLite's bound-parameter limit
+    private static final int IN_BATCH = 500;
+    // Packed content no remaining manifest row refers to
+    private static final String ORPHAN_CONTENT =
+        "FROM backup_content WHERE sha256 NOT IN (SELECT sha256 FROM backup_files WHERE packed = 1)";
+    // Several processes share a store: a statement waits this long for another one's write to finish
+    private static final int BUSY_TIMEOUT_MS = 10_000;
+    // Writes still refused as busy after that are retried with doubling backoff
+    private static final int BUSY_RETRIES = 5;
+    private static final long RETRY_BACKOFF_MS = 50;
+    private static final Properties CONNECTION_PROPERTIES = new Properties();
 
-    private DatabaseManager() {
+    static {
+        CONNECTION_PROPERTIES.setProperty("busy_timeout", String.valueOf(BUSY_TIMEOUT_MS));
+        // Transactions take the write lock up front. A deferred one that reads first and then
+        // writes fails at once with SQLITE_BUSY when another connection wrote in between.
+        CONNECTION_PROPERTIES.setProperty("transaction_mode", "IMMEDIATE");
+    }
+
+    @FunctionalInterface
+    private interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    private final String dbDir;
+    private final String dbPath;
+
+    private DatabaseManager(String dbDir) {
+        this.dbDir = dbDir;
+        this.dbPath = dbDir + "/backups.db";
         initializeDatabase();
     }
 
-    public static synchronized DatabaseManager getInstance() {
-        if (instance == null) {
-            instance = new DatabaseManager();
-        }
-        return instance;
+    /** The store of the current user, ~/.config/backups. */
+    public static DatabaseManager getInstance() {
+        return forDirectory(DEFAULT_DIR);
+    }
+
+    /** The store in dir (backups.db plus version directories), created on first use. */
+    public static synchronized DatabaseManager forDirectory(String dir) {
+        String key = new File(dir).getAbsoluteFile().toPath().normalize().toString();
+        return instances.computeIfAbsent(key, DatabaseManager::new);
     }
 
     private void initializeDatabase() {
+        File storeDir = new File(dbDir);
+        if (!storeDir.exists()) {
+            storeDir.mkdirs();
+        }
         try {
-            File dbDir = new File(DB_DIR);
-            if (!dbDir.exists()) {
-                dbDir.mkdirs();
-            }
+            retryBusy(() -> {
+                createSchema();
+                return null;
+            });
+        } catch (SQLException e) {
+            System.err.println("Database initialization error: " + e.getMessage());
+        }
+    }
 
-            Connection conn = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+    private void createSchema() throws SQLException {
+        Connection conn = connect();
+        try {
             Statement stmt = conn.createStatement();
+            // Readers no longer block the writer, nor it them; the setting is stored in the file
+            stmt.execute("PRAGMA journal_mode=WAL");
+            // One transaction, so processes opening a new or older store at once do not both migrate it
+            conn.setAutoCommit(false);
 
             String createTableSQL = """
                 CREATE TABLE IF NOT EXISTS config_backups (
@@ -42,35 +105,232 @@ public class DatabaseManager {
                 """;
             stmt.execute(createTableSQL);
 
+            // Per-file checksums of each backup version, written when the backup is taken
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS backup_files (
+                    backup_id INTEGER NOT NULL,
+                    rel_path TEXT NOT NULL,
+                    size INTEGER NOT NULL,
+                    sha256 TEXT NOT NULL,
+                    verified_at TIMESTAMP,
+                    packed INTEGER NOT NULL DEFAULT 0,
+                    PRIMARY KEY (backup_id, rel_path)
+                )
+                """);
+            // Deflated content of packed files, shared by every version that has it
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS backup_content (
+                    sha256 TEXT PRIMARY KEY,
+                    size INTEGER NOT NULL,
+                    data BLOB NOT NULL
+                )
+                """);
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS scrub_runs (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    started_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                    finished_at TIMESTAMP
+                )
+                """);
+            // Runs of SetupGraph; setup_tasks rows are the checkpoints a resumed run starts from
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS setup_runs (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    started_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                    finished_at TIMESTAMP,
+                    status TEXT
+                )
+                """);
+            stmt.execute("""
+                CREATE TABLE IF NOT EXISTS setup_tasks (
+                    run_id INTEGER NOT NULL,
+                    task TEXT NOT NULL,
+                    status TEXT NOT NULL,
+                    fingerprint TEXT,
+                    millis INTEGER NOT NULL,
+                    exit_code INTEGER NOT NULL,
+                    log_path TEXT,
+                    finished_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                    PRIMARY KEY (run_id, task)
+                )
+                """);
+            // Lets import find an already stored copy of a file by content
+            stmt.execute("CREATE INDEX IF NOT EXISTS backup_files_sha256 ON backup_files (sha256)");
+            if (!hasColumn(conn, "config_backups", "status")) {
+                stmt.execute("ALTER TABLE config_backups ADD COLUMN status TEXT NOT NULL DEFAULT '" + BackupInfo.STATUS_OK + "'");
+            }
+            if (!hasColumn(conn, "backup_files", "packed")) {
+                stmt.execute("ALTER TABLE backup_files ADD COLUMN packed INTEGER NOT NULL DEFAULT 0");
+            }
+            // Point-in-time lookups: one index seek per item, whatever the history length
+            stmt.execute("CREATE INDEX IF NOT EXISTS config_backups_filename_time "
+                + "ON config_backups (filename, backed_up_at, version)");
+            // createBackup() relies on it: two processes can never record the same version
+            if (!hasIndex(conn, "config_backups_filename_version")) {
+                renumberDuplicateVersions(conn);
+                stmt.execute("CREATE UNIQUE INDEX config_backups_filename_version "
+                    + "ON config_backups (filename, version)");
+            }
+
             stmt.close();
+            conn.commit();
+        } finally {
             conn.close();
-        } catch (SQLException e) {
-            System.err.println("Database initialization error: " + e.getMessage());
+        }
+    }
+
+    private static boolean hasIndex(Connection conn, String name) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'index' AND name = ?")) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Stores from before versions were allocated in a transaction can hold
+     * the same version of an item twice. All but the first row of each such
+     * pair get a new version past the item's newest.
+     */
+    private static void renumberDuplicateVersions(Connection conn) throws SQLException {
+        List<Integer> duplicates = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT id FROM config_backups c WHERE EXISTS (SELECT 1 FROM config_backups d "
+                 + "WHERE d.filename = c.filename AND d.version = c.version AND d.id < c.id) ORDER BY id")) {
+            while (rs.next()) {
+                duplicates.add(rs.getInt(1));
+            }
+        }
+        if (duplicates.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE config_backups SET version = "
+                + "(SELECT MAX(version) + 1 FROM config_backups d WHERE d.filename = config_backups.filename) WHERE id = ?")) {
+            for (int id : duplicates) {
+                stmt.setInt(1, id);
+                stmt.executeUpdate();
+            }
+        }
+        System.err.println("Renumbered " + duplicates.size() + " duplicate backup version(s) in " + conn.getMetaData().getURL());
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + dbPath, CONNECTION_PROPERTIES);
+    }
+
+    /**
+     * Runs a write, again after a backoff while SQLite still reports the
+     * database busy or locked once busy_timeout has run out (a long write
+     * or checkpoint in another process).
+     */
+    private static <T> T retryBusy(SqlWork<T> work) throws SQLException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return work.run();
+            } catch (SQLException e) {
+                if (attempt >= BUSY_RETRIES || !isBusy(e)) {
+                    throw e;
+                }
+                Metrics.count("db.busyRetries");
+                try {
+                    Thread.sleep((RETRY_BACKOFF_MS << attempt) + ThreadLocalRandom.current().nextLong(RETRY_BACKOFF_MS));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean isBusy(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            // Primary result codes 5 and 6; extended codes (SQLITE_BUSY_SNAPSHOT, ...) keep them in the low byte
+            if (t instanceof SQLException sql && ((sql.getErrorCode() & 0xff) == 5 || (sql.getErrorCode() & 0xff) == 6)) {
+                return true;
+            }
+            String message = t.getMessage();
+            if (message != null && (message.contains("SQLITE_BUSY") || message.contains("SQLITE_LOCKED"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        try (ResultSet rs = conn.createStatement().executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equals(rs.getString("name"))) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
     public String saveBackup(String filename, String sourcePath) throws SQLException {
+        String backupPath = createBackup(filename).getBackupPath();
+        new File(backupPath).mkdirs();
+        return backupPath;
+    }
+
+    /**
+     * Allocates the next version of filename and its backup path. Nothing
+     * is created on disk; a version whose files are all packed never needs
+     * its directory.
+     */
+    public BackupInfo createBackup(String filename) throws SQLException {
+        return createBackup(filename, null);
+    }
+
+    /**
+     * Same, with an explicit backed_up_at (UTC, CURRENT_TIMESTAMP format)
+     * for versions imported from an archive; null means now.
+     *
+     * The version is read and recorded in one write transaction, so
+     * concurrent callers, in this process or another, get distinct versions
+     * and distinct backup paths.
+     */
+    public BackupInfo createBackup(String filename, String backedUpAt) throws SQLException {
+        Metrics.Span span = Metrics.time("saveBackup", filename);
+        try {
+            return retryBusy(() -> insertBackup(filename, backedUpAt));
+        } catch (SQLException e) {
+            span.fail();
+            throw e;
+        } finally {
+            span.close();
+        }
+    }
+
+    private BackupInfo insertBackup(String filename, String backedUpAt) throws SQLException {
         Connection conn = null;
         PreparedStatement stmt = null;
 
         try {
-            conn = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            conn = connect();
+            conn.setAutoCommit(false);
 
-            int currentVersion = getNextVersion(filename);
+            int currentVersion = getNextVersion(conn, filename);
 
             String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss"));
             String backupDirName = filename + "_v" + currentVersion + "_" + timestamp;
-            String backupPath = DB_DIR + "/" + backupDirName;
-
-            new File(backupPath).mkdirs();
+            String backupPath = dbDir + "/" + backupDirName;
+            // A pruned version's number comes back; its directory may not be gone yet
+            for (int n = 2; new File(backupPath).exists(); n++) {
+                backupPath = dbDir + "/" + backupDirName + "_" + n;
+            }
 
             stmt = conn.prepareStatement(
-                "INSERT INTO config_backups (filename, backup_path, version) VALUES (?, ?, ?)",
+                "INSERT INTO config_backups (filename, backup_path, version, backed_up_at) "
+                + "VALUES (?, ?, ?, COALESCE(?, CURRENT_TIMESTAMP))",
                 Statement.RETURN_GENERATED_KEYS
             );
             stmt.setString(1, filename);
             stmt.setString(2, backupPath);
             stmt.setInt(3, currentVersion);
+            stmt.setString(4, backedUpAt);
 
             stmt.executeUpdate();
 
@@ -80,34 +340,50 @@ public class DatabaseManager {
                 backupId = rs.getInt(1);
             }
             rs.close();
+            conn.commit();
 
-            return backupPath;
+            return new BackupInfo(backupId, filename, backupPath, currentVersion, backedUpAt);
 
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
         } finally {
             if (stmt != null) stmt.close();
             if (conn != null) conn.close();
         }
     }
 
-    private int getNextVersion(String filename) throws SQLException {
+    private static int getNextVersion(Connection conn, String filename) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "SELECT MAX(version) as max_version FROM config_backups WHERE filename = ?")) {
+            stmt.setString(1, filename);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next() && rs.getObject("max_version") != null) {
+                    return rs.getInt("max_version") + 1;
+                }
+                return 1;
+            }
+        }
+    }
+
+    /** Versions of filename, newest first by backed_up_at (imported versions can have higher numbers). */
+    public List<BackupInfo> getVersions(String filename) throws SQLException {
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
 
         try {
-            conn = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            conn = connect();
 
             stmt = conn.prepareStatement(
-                "SELECT MAX(version) as max_version FROM config_backups WHERE filename = ?"
+                "SELECT id, filename, backup_path, version, backed_up_at, status FROM config_backups WHERE filename = ? "
+                + "ORDER BY backed_up_at DESC, version DESC"
             );
             stmt.setString(1, filename);
 
             rs = stmt.executeQuery();
 
-            if (rs.next() && rs.getObject("max_version") != null) {
-                return rs.getInt("max_version") + 1;
-            }
-            return 1;
+            return readBackups(rs);
 
         } finally {
             if (rs != null) rs.close();
@@ -116,62 +392,308 @@ public class DatabaseManager {
         }
     }
 
-    public List<BackupInfo> getVersions(String filename) throws SQLException {
+    /** Every stored version, oldest first. */
+    public List<BackupInfo> getAllBackups() throws SQLException {
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
 
         try {
-            conn = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            conn = connect();
 
             stmt = conn.prepareStatement(
-                "SELECT id, filename, backup_path, version, backed_up_at FROM config_backups WHERE filename = ? ORDER BY version DESC"
+                "SELECT id, filename, backup_path, version, backed_up_at, status FROM config_backups ORDER BY id"
             );
-            stmt.setString(1, filename);
 
             rs = stmt.executeQuery();
 
-            List<BackupInfo> backups = new ArrayList<>();
-            while (rs.next()) {
-                BackupInfo info = new BackupInfo(
-                    rs.getInt("id"),
-                    rs.getString("filename"),
-                    rs.getString("backup_path"),
-                    rs.getInt("version"),
-                    rs.getString("backed_up_at")
-                );
-                backups.add(info);
-            }
+            return readBackups(rs);
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /**
+     * The newest intact version of every item taken at or before backedUpAt
+     * (UTC, CURRENT_TIMESTAMP format), sorted by item. One query that only
+     * seeks config_backups_filename_time: the recursive CTE hops from item
+     * to item (a loose index scan, which SQLite does not do for DISTINCT),
+     * and each item's version is one backwards seek from the timestamp. The
+     * cost grows with the number of items, not the length of the history.
+     */
+    public List<BackupInfo> getSnapshotAt(String backedUpAt) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        Metrics.Span span = Metrics.time("snapshotAt", backedUpAt);
 
-            return backups;
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement(
+                "WITH RECURSIVE f(filename) AS ("
+                + "    SELECT MIN(filename) FROM config_backups"
+                + "    UNION ALL"
+                + "    SELECT (SELECT MIN(filename) FROM config_backups WHERE filename > f.filename)"
+                + "    FROM f WHERE f.filename IS NOT NULL) "
+                + "SELECT b.id, b.filename, b.backup_path, b.version, b.backed_up_at, b.status "
+                + "FROM f JOIN config_backups b ON b.id = ("
+                + "    SELECT id FROM config_backups WHERE filename = f.filename AND backed_up_at <= ? AND status = ? "
+                + "    ORDER BY backed_up_at DESC, version DESC LIMIT 1) "
+                + "ORDER BY b.filename"
+            );
+            stmt.setString(1, backedUpAt);
+            stmt.setString(2, BackupInfo.STATUS_OK);
 
+            rs = stmt.executeQuery();
+
+            return readBackups(rs);
+
+        } catch (SQLException e) {
+            span.fail();
+            throw e;
         } finally {
             if (rs != null) rs.close();
             if (stmt != null) stmt.close();
             if (conn != null) conn.close();
+            span.close();
         }
     }
 
-    public List<String> getAllBackupFilenames() throws SQLException {
+    /** Same as getSnapshotAt() for a single item; null if it has no intact version by then. */
+    public BackupInfo getVersionAt(String filename, String backedUpAt) throws SQLException {
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
 
         try {
-            conn = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            conn = connect();
 
             stmt = conn.prepareStatement(
-                "SELECT DISTINCT filename FROM config_backups ORDER BY filename"
+                "SELECT id, filename, backup_path, version, backed_up_at, status FROM config_backups "
+                + "WHERE filename = ? AND backed_up_at <= ? AND status = ? "
+                + "ORDER BY backed_up_at DESC, version DESC LIMIT 1"
             );
+            stmt.setString(1, filename);
+            stmt.setString(2, backedUpAt);
+            stmt.setString(3, BackupInfo.STATUS_OK);
 
             rs = stmt.executeQuery();
 
-            List<String> filenames = new ArrayList<>();
-            while (rs.next()) {
-                filenames.add(rs.getString("filename"));
+            List<BackupInfo> found = readBackups(rs);
+            return found.isEmpty() ? null : found.get(0);
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    private static List<BackupInfo> readBackups(ResultSet rs) throws SQLException {
+        List<BackupInfo> backups = new ArrayList<>();
+        while (rs.next()) {
+            BackupInfo info = new BackupInfo(
+                rs.getInt("id"),
+                rs.getString("filename"),
+                rs.getString("backup_path"),
+                rs.getInt("version"),
+                rs.getString("backed_up_at")
+            );
+            info.setStatus(rs.getString("status"));
+            backups.add(info);
+        }
+        return backups;
+    }
+
+    /** Records the checksums of a freshly written backup in one transaction. */
+    public void saveManifest(int backupId, List<ManifestEntry> entries) throws SQLException {
+        saveManifest(backupId, entries, Map.of());
+    }
+
+    /**
+     * Same, storing the content of the packed entries (sha256 to raw bytes)
+     * in the same transaction. Content already stored is not written again.
+     */
+    public void saveManifest(int backupId, List<ManifestEntry> entries, Map<String, byte[]> packed) throws SQLException {
+        retryBusy(() -> {
+            writeManifest(backupId, entries, packed);
+            return null;
+        });
+    }
+
+    private void writeManifest(int backupId, List<ManifestEntry> entries, Map<String, byte[]> packed) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+
+        try {
+            conn = connect();
+            conn.setAutoCommit(false);
+
+            insertContent(conn, packed);
+            stmt = conn.prepareStatement(
+                "INSERT OR REPLACE INTO backup_files (backup_id, rel_path, size, sha256, packed) VALUES (?, ?, ?, ?, ?)"
+            );
+            for (ManifestEntry entry : entries) {
+                stmt.setInt(1, backupId);
+                stmt.setString(2, entry.relPath());
+                stmt.setLong(3, entry.size());
+                stmt.setString(4, entry.sha256());
+                stmt.setInt(5, entry.packed() ? 1 : 0);
+                stmt.addBatch();
             }
+            stmt.executeBatch();
+            conn.commit();
 
-            return filenames;
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /**
+     * Stores packed content (sha256 to raw bytes) in one transaction, for
+     * manifests saved before their content arrived. Content already stored
+     * is not written again.
+     */
+    public void savePackedContent(Map<String, byte[]> packed) throws SQLException {
+        retryBusy(() -> {
+            writePackedContent(packed);
+            return null;
+        });
+    }
+
+    private void writePackedContent(Map<String, byte[]> packed) throws SQLException {
+        Connection conn = null;
+
+        try {
+            conn = connect();
+            conn.setAutoCommit(false);
+            insertContent(conn, packed);
+            conn.commit();
+
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (conn != null) conn.close();
+        }
+    }
+
+    private static void insertContent(Connection conn, Map<String, byte[]> packed) throws SQLException {
+        if (packed.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT OR IGNORE INTO backup_content (sha256, size, data) VALUES (?, ?, ?)")) {
+            for (Map.Entry<String, byte[]> content : packed.entrySet()) {
+                stmt.setString(1, content.getKey());
+                stmt.setLong(2, content.getValue().length);
+                stmt.setBytes(3, deflate(content.getValue()));
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * Raw content of packed files by sha256, read in one connection. Content
+     * that is missing or does not inflate to its recorded size is left out.
+     */
+    public Map<String, byte[]> getPackedContent(Collection<String> shas) throws SQLException {
+        Connection conn = null;
+        Map<String, byte[]> content = new HashMap<>();
+        if (shas.isEmpty()) {
+            return content;
+        }
+
+        try {
+            conn = connect();
+            List<String> all = new ArrayList<>(new HashSet<>(shas));
+            for (int i = 0; i < all.size(); i += IN_BATCH) {
+                List<String> batch = all.subList(i, Math.min(all.size(), i + IN_BATCH));
+                String marks = String.join(", ", Collections.nCopies(batch.size(), "?"));
+                try (PreparedStatement stmt = conn.prepareStatement(
+                        "SELECT sha256, size, data FROM backup_content WHERE sha256 IN (" + marks + ")")) {
+                    for (int j = 0; j < batch.size(); j++) {
+                        stmt.setString(j + 1, batch.get(j));
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            byte[] data = inflate(rs.getBytes("data"), rs.getInt("size"));
+                            if (data != null) {
+                                content.put(rs.getString("sha256"), data);
+                            }
+                        }
+                    }
+                }
+            }
+            return content;
+
+        } finally {
+            if (conn != null) conn.close();
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int size) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            // One spare byte: the stream has to end (also for empty files), and longer content is corrupt
+            byte[] out = new byte[size + 1];
+            int length = 0;
+            while (length <= size && !inflater.finished()) {
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += n;
+            }
+            return length == size && inflater.finished() ? Arrays.copyOf(out, size) : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** True if backupId has a manifest and all of its files are packed, so it needs nothing on disk. */
+    public boolean isFullyPacked(int backupId) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement(
+                "SELECT COUNT(*) AS files, COALESCE(SUM(packed = 0), 0) AS unpacked FROM backup_files WHERE backup_id = ?"
+            );
+            stmt.setInt(1, backupId);
+
+            rs = stmt.executeQuery();
+            return rs.next() && rs.getInt("files") > 0 && rs.getInt("unpacked") == 0;
 
         } finally {
             if (rs != null) rs.close();
@@ -180,57 +702,715 @@ public class DatabaseManager {
         }
     }
 
-    public static String getBackupDir() {
-        return DB_DIR;
+    public List<ManifestEntry> getManifest(int backupId) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement(
+                "SELECT rel_path, size, sha256, packed FROM backup_files WHERE backup_id = ? ORDER BY rel_path"
+            );
+            stmt.setInt(1, backupId);
+
+            rs = stmt.executeQuery();
+
+            List<ManifestEntry> entries = new ArrayList<>();
+            while (rs.next()) {
+                entries.add(new ManifestEntry(rs.getString("rel_path"), rs.getLong("size"), rs.getString("sha256"),
+                        rs.getInt("packed") != 0));
+            }
+            return entries;
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
     }
 
-    public void deleteOldBackups(String filename) throws SQLException {
+    /** Path of an intact stored file with this checksum and size, or null. */
+    public String findFileBySha(String sha256, long size) throws SQLException {
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
 
         try {
-            conn = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            conn = connect();
 
             stmt = conn.prepareStatement(
-                "SELECT backup_path FROM config_backups WHERE filename = ?"
+                "SELECT b.backup_path, f.rel_path FROM backup_files f JOIN config_backups b ON b.id = f.backup_id "
+                + "WHERE f.sha256 = ? AND f.size = ? AND b.status = ? AND f.packed = 0"
             );
-            stmt.setString(1, filename);
+            stmt.setString(1, sha256);
+            stmt.setLong(2, size);
+            stmt.setString(3, BackupInfo.STATUS_OK);
 
             rs = stmt.executeQuery();
-
             while (rs.next()) {
-                String backupPath = rs.getString("backup_path");
-                File backupDir = new File(backupPath);
-                if (backupDir.exists()) {
-                    deleteDirectory(backupDir);
+                String relPath = rs.getString("rel_path");
+                File file = relPath.isEmpty() ? new File(rs.getString("backup_path"))
+                        : new File(rs.getString("backup_path"), relPath);
+                if (file.isFile() && file.length() == size) {
+                    return file.getPath();
                 }
             }
-            rs.close();
+            return null;
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** Removes one version's rows; the caller deletes its files. */
+    public void deleteBackup(int backupId) throws SQLException {
+        retryBusy(() -> {
+            removeBackup(backupId);
+            return null;
+        });
+    }
+
+    private void removeBackup(int backupId) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+
+        try {
+            conn = connect();
+            conn.setAutoCommit(false);
+
+            stmt = conn.prepareStatement("DELETE FROM backup_files WHERE backup_id = ?");
+            stmt.setInt(1, backupId);
+            stmt.executeUpdate();
             stmt.close();
 
-            stmt = conn.prepareStatement("DELETE FROM config_backups WHERE filename = ?");
-            stmt.setString(1, filename);
+            stmt = conn.prepareStatement("DELETE FROM config_backups WHERE id = ?");
+            stmt.setInt(1, backupId);
+            stmt.executeUpdate();
+            stmt.close();
+
+            stmt = conn.prepareStatement("DELETE " + ORPHAN_CONTENT);
             stmt.executeUpdate();
+            conn.commit();
 
         } finally {
-            if (rs != null) rs.close();
             if (stmt != null) stmt.close();
             if (conn != null) conn.close();
         }
     }
 
-    private void deleteDirectory(File directory) {
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    deleteDirectory(file);
-                } else {
-                    file.delete();
-                }
+    /** Removes many versions' rows in one transaction; the caller deletes their files. */
+    public void deleteBackups(List<Integer> backupIds) throws SQLException {
+        retryBusy(() -> {
+            removeBackups(backupIds);
+            return null;
+        });
+    }
+
+    private void removeBackups(List<Integer> backupIds) throws SQLException {
+        Connection conn = null;
+        PreparedStatement rows = null;
+        PreparedStatement files = null;
+
+        try {
+            conn = connect();
+            conn.setAutoCommit(false);
+
+            rows = conn.prepareStatement("DELETE FROM config_backups WHERE id = ?");
+            files = conn.prepareStatement("DELETE FROM backup_files WHERE backup_id = ?");
+            for (int id : backupIds) {
+                rows.setInt(1, id);
+                rows.addBatch();
+                files.setInt(1, id);
+                files.addBatch();
             }
+            files.executeBatch();
+            rows.executeBatch();
+            try (Statement content = conn.createStatement()) {
+                content.executeUpdate("DELETE " + ORPHAN_CONTENT);
+            }
+            conn.commit();
+
+        } finally {
+            if (files != null) files.close();
+            if (rows != null) rows.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** Points a version at where its files actually are. */
+    public void relocateBackup(int backupId, String backupPath, String status) throws SQLException {
+        retryBusy(() -> {
+            writeLocation(backupId, backupPath, status);
+            return null;
+        });
+    }
+
+    private void writeLocation(int backupId, String backupPath, String status) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement("UPDATE config_backups SET backup_path = ?, status = ? WHERE id = ?");
+            stmt.setString(1, backupPath);
+            stmt.setString(2, status);
+            stmt.setInt(3, backupId);
+            stmt.executeUpdate();
+
+        } finally {
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** backup_files rows whose version no longer exists; deleted unless dryRun. */
+    public int pruneOrphanManifests(boolean dryRun) throws SQLException {
+        return retryBusy(() -> removeOrphanManifests(dryRun));
+    }
+
+    private int removeOrphanManifests(boolean dryRun) throws SQLException {
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+            stmt = conn.createStatement();
+
+            String orphans = "FROM backup_files WHERE backup_id NOT IN (SELECT id FROM config_backups)";
+            if (!dryRun) {
+                return stmt.executeUpdate("DELETE " + orphans);
+            }
+            rs = stmt.executeQuery("SELECT COUNT(*) " + orphans);
+            return rs.next() ? rs.getInt(1) : 0;
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /**
+     * Packed content no manifest refers to any more (left by an interrupted
+     * backup or import): {count, deflated bytes}. Deleted unless dryRun.
+     */
+    public long[] pruneOrphanContent(boolean dryRun) throws SQLException {
+        return retryBusy(() -> removeOrphanContent(dryRun));
+    }
+
+    private long[] removeOrphanContent(boolean dryRun) throws SQLException {
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+            // Counted and deleted in one transaction, so the summary matches what went
+            conn.setAutoCommit(false);
+            stmt = conn.createStatement();
+
+            rs = stmt.executeQuery("SELECT COUNT(*), COALESCE(SUM(length(data)), 0) " + ORPHAN_CONTENT);
+            long[] orphans = rs.next() ? new long[] {rs.getLong(1), rs.getLong(2)} : new long[2];
+            if (!dryRun && orphans[0] > 0) {
+                stmt.executeUpdate("DELETE " + ORPHAN_CONTENT);
+            }
+            conn.commit();
+            return orphans;
+
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** True if filename already has a version taken at exactly backedUpAt. */
+    public boolean hasBackupAt(String filename, String backedUpAt) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement("SELECT 1 FROM config_backups WHERE filename = ? AND backed_up_at = ?");
+            stmt.setString(1, filename);
+            stmt.setString(2, backedUpAt);
+
+            rs = stmt.executeQuery();
+            return rs.next();
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** True if the manifest of backupId lists relPath; a point lookup on the primary key. */
+    public boolean hasManifestEntry(int backupId, String relPath) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement("SELECT 1 FROM backup_files WHERE backup_id = ? AND rel_path = ?");
+            stmt.setInt(1, backupId);
+            stmt.setString(2, relPath);
+
+            rs = stmt.executeQuery();
+            return rs.next();
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    public boolean hasManifest(int backupId) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement("SELECT 1 FROM backup_files WHERE backup_id = ? LIMIT 1");
+            stmt.setInt(1, backupId);
+
+            rs = stmt.executeQuery();
+            return rs.next();
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /**
+     * Manifest entries for one file or subtree of a version: rel_path equal
+     * to path or below path + "/". A range scan on the primary key, so the
+     * cost does not depend on the size of the rest of the backup.
+     */
+    public List<ManifestEntry> getManifestUnder(int backupId, String path) throws SQLException {
+        if (path.isEmpty()) {
+            return getManifest(backupId);
+        }
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            // '0' sorts right after '/', so [path/, path0) is exactly the subtree
+            stmt = conn.prepareStatement(
+                "SELECT rel_path, size, sha256, packed FROM backup_files WHERE backup_id = ? "
+                + "AND (rel_path = ? OR (rel_path >= ? AND rel_path < ?)) ORDER BY rel_path"
+            );
+            stmt.setInt(1, backupId);
+            stmt.setString(2, path);
+            stmt.setString(3, path + "/");
+            stmt.setString(4, path + "0");
+
+            rs = stmt.executeQuery();
+
+            List<ManifestEntry> entries = new ArrayList<>();
+            while (rs.next()) {
+                entries.add(new ManifestEntry(rs.getString("rel_path"), rs.getLong("size"), rs.getString("sha256"),
+                        rs.getInt("packed") != 0));
+            }
+            return entries;
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** Files of backupId that a scrub verified at or after {@code since}. */
+    public Set<String> getVerifiedSince(int backupId, String since) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement(
+                "SELECT rel_path FROM backup_files WHERE backup_id = ? AND verified_at >= ?"
+            );
+            stmt.setInt(1, backupId);
+            stmt.setString(2, since);
+
+            rs = stmt.executeQuery();
+
+            Set<String> paths = new HashSet<>();
+            while (rs.next()) {
+                paths.add(rs.getString("rel_path"));
+            }
+            return paths;
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    public void markVerified(int backupId, List<String> relPaths) throws SQLException {
+        retryBusy(() -> {
+            writeVerified(backupId, relPaths);
+            return null;
+        });
+    }
+
+    private void writeVerified(int backupId, List<String> relPaths) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+
+        try {
+            conn = connect();
+            conn.setAutoCommit(false);
+
+            stmt = conn.prepareStatement(
+                "UPDATE backup_files SET verified_at = CURRENT_TIMESTAMP WHERE backup_id = ? AND rel_path = ?"
+            );
+            for (String relPath : relPaths) {
+                stmt.setInt(1, backupId);
+                stmt.setString(2, relPath);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            conn.commit();
+
+        } finally {
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** Flags a version as damaged; its files now live at newPath. */
+    public void quarantine(int backupId, String newPath) throws SQLException {
+        retryBusy(() -> {
+            writeQuarantine(backupId, newPath);
+            return null;
+        });
+    }
+
+    private void writeQuarantine(int backupId, String newPath) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement(
+                "UPDATE config_backups SET status = ?, backup_path = ? WHERE id = ?"
+            );
+            stmt.setString(1, BackupInfo.STATUS_DAMAGED);
+            stmt.setString(2, newPath);
+            stmt.setInt(3, backupId);
+            stmt.executeUpdate();
+
+        } finally {
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /**
+     * Returns the start time of the unfinished scrub run, or starts a new
+     * run and returns its start time. Files verified since then are skipped.
+     */
+    public String beginScrub() throws SQLException {
+        return retryBusy(() -> openScrubRun());
+    }
+
+    private String openScrubRun() throws SQLException {
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+            // One write transaction, so two processes starting a scrub share one run
+            conn.setAutoCommit(false);
+            stmt = conn.createStatement();
+
+            rs = stmt.executeQuery("SELECT started_at FROM scrub_runs WHERE finished_at IS NULL ORDER BY id DESC LIMIT 1");
+            if (!rs.next()) {
+                rs.close();
+                stmt.executeUpdate("INSERT INTO scrub_runs DEFAULT VALUES");
+                rs = stmt.executeQuery("SELECT started_at FROM scrub_runs WHERE id = last_insert_rowid()");
+                rs.next();
+            }
+            String startedAt = rs.getString("started_at");
+            conn.commit();
+            return startedAt;
+
+        } catch (SQLException e) {
+            if (conn != null) conn.rollback();
+            throw e;
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    public void finishScrub() throws SQLException {
+        retryBusy(() -> {
+            closeScrubRuns();
+            return null;
+        });
+    }
+
+    private void closeScrubRuns() throws SQLException {
+        Connection conn = null;
+        Statement stmt = null;
+
+        try {
+            conn = connect();
+            stmt = conn.createStatement();
+            stmt.executeUpdate("UPDATE scrub_runs SET finished_at = CURRENT_TIMESTAMP WHERE finished_at IS NULL");
+        } finally {
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    public int beginSetupRun() throws SQLException {
+        return retryBusy(() -> insertSetupRun());
+    }
+
+    private int insertSetupRun() throws SQLException {
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+            stmt = conn.createStatement();
+            stmt.executeUpdate("INSERT INTO setup_runs DEFAULT VALUES");
+            rs = stmt.executeQuery("SELECT last_insert_rowid()");
+            rs.next();
+            return rs.getInt(1);
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    public void finishSetupRun(int runId, String status) throws SQLException {
+        retryBusy(() -> {
+            writeSetupRunStatus(runId, status);
+            return null;
+        });
+    }
+
+    private void writeSetupRunStatus(int runId, String status) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+
+        try {
+            conn = connect();
+            stmt = conn.prepareStatement(
+                "UPDATE setup_runs SET finished_at = CURRENT_TIMESTAMP, status = ? WHERE id = ?"
+            );
+            stmt.setString(1, status);
+            stmt.setInt(2, runId);
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** Records one finished task; fingerprint is null unless it succeeded. */
+    public synchronized void saveSetupTask(int runId, SetupGraph.TaskResult result, String fingerprint) throws SQLException {
+        retryBusy(() -> {
+            writeSetupTask(runId, result, fingerprint);
+            return null;
+        });
+    }
+
+    private void writeSetupTask(int runId, SetupGraph.TaskResult result, String fingerprint) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+
+        try {
+            conn = connect();
+            stmt = conn.prepareStatement(
+                "INSERT OR REPLACE INTO setup_tasks (run_id, task, status, fingerprint, millis, exit_code, log_path) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?)"
+            );
+            stmt.setInt(1, runId);
+            stmt.setString(2, result.task());
+            stmt.setString(3, result.status());
+            stmt.setString(4, fingerprint);
+            stmt.setLong(5, result.millis());
+            stmt.setInt(6, result.exitCode());
+            stmt.setString(7, result.logPath());
+            stmt.executeUpdate();
+        } finally {
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /**
+     * The latest recorded outcome of each setup task, whichever run it was
+     * in, so a run of only some tasks does not hide the others' checkpoints.
+     * Blocked tasks never ran and are not outcomes.
+     */
+    public Map<String, SetupGraph.Checkpoint> getSetupCheckpoints() throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+            stmt = conn.prepareStatement(
+                "SELECT task, status, fingerprint, millis, finished_at FROM setup_tasks t "
+                + "WHERE run_id = (SELECT MAX(run_id) FROM setup_tasks WHERE task = t.task AND status != ?)"
+            );
+            stmt.setString(1, SetupGraph.STATUS_BLOCKED);
+            rs = stmt.executeQuery();
+
+            Map<String, SetupGraph.Checkpoint> checkpoints = new HashMap<>();
+            while (rs.next()) {
+                checkpoints.put(rs.getString("task"), new SetupGraph.Checkpoint(rs.getString("status"),
+                        rs.getString("fingerprint"), rs.getLong("millis"), rs.getString("finished_at")));
+            }
+            return checkpoints;
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    public List<String> getAllBackupFilenames() throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement(
+                "SELECT DISTINCT filename FROM config_backups ORDER BY filename"
+            );
+
+            rs = stmt.executeQuery();
+
+            List<String> filenames = new ArrayList<>();
+            while (rs.next()) {
+                filenames.add(rs.getString("filename"));
+            }
+
+            return filenames;
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
+        }
+    }
+
+    /** The current user's store; use getStoreDir() for the store of a given instance. */
+    public static String getBackupDir() {
+        return DEFAULT_DIR;
+    }
+
+    public String getStoreDir() {
+        return dbDir;
+    }
+
+    public void deleteOldBackups(String filename) throws SQLException {
+        pruneBackups(filename, 0);
+    }
+
+    /**
+     * Deletes all but the newest {@code keep} versions of filename (by backed_up_at), backup
+     * directories included. Returns the number of versions removed.
+     */
+    public int pruneBackups(String filename, int keep) throws SQLException {
+        return retryBusy(() -> removeOldVersions(filename, keep));
+    }
+
+    private int removeOldVersions(String filename, int keep) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+
+        try {
+            conn = connect();
+
+            stmt = conn.prepareStatement(
+                "SELECT id, backup_path FROM config_backups WHERE filename = ? "
+                + "ORDER BY backed_up_at DESC, version DESC LIMIT -1 OFFSET ?"
+            );
+            stmt.setString(1, filename);
+            stmt.setInt(2, Math.max(0, keep));
+
+            rs = stmt.executeQuery();
+
+            List<Integer> ids = new ArrayList<>();
+            while (rs.next()) {
+                ids.add(rs.getInt("id"));
+                File backupDir = new File(rs.getString("backup_path"));
+                try {
+                    if (Files.exists(backupDir.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                        FileOps.deleteDirectory(backupDir);
+                    }
+                } catch (IOException e) {
+                    // The row goes anyway; gc removes the directory once no row refers to it
+                    System.err.println("Prune: could not delete " + backupDir + ": " + e.getMessage());
+                }
+            }
+            rs.close();
+            stmt.close();
+
+            conn.setAutoCommit(false);
+            stmt = conn.prepareStatement("DELETE FROM config_backups WHERE id = ?");
+            PreparedStatement files = conn.prepareStatement("DELETE FROM backup_files WHERE backup_id = ?");
+            for (int id : ids) {
+                stmt.setInt(1, id);
+                stmt.addBatch();
+                files.setInt(1, id);
+                files.addBatch();
+            }
+            stmt.executeBatch();
+            files.executeBatch();
+            files.close();
+            try (Statement content = conn.createStatement()) {
+                content.executeUpdate("DELETE " + ORPHAN_CONTENT);
+            }
+            conn.commit();
+
+            return ids.size();
+
+        } finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+            if (conn != null) conn.close();
         }
-        directory.delete();
     }
 }
@@ -0,0 +1,818 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deploy, backup and restore logic for River WM configs, without any Swing
+ * or AWT dependency. FileOverwriteUI, BackupHistoryDialog and ConfigCli are
+ * thin front ends over this class.
+ *
+ * An item is a top-level entry of the source directory (~/riverwm); it is
+ * deployed to the entry with the same name in the config directory
+ * (~/.config). Before an existing target is overwritten it is copied into
+ * the backup store and recorded in the backups database.
+ */
+public class DeployEngine {
+    /** SQLite CURRENT_TIMESTAMP format; stored in UTC. */
+    private static final DateTimeFormatter DB_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // Matches the old overwrite behaviour: only the backup taken by this deploy is kept
+    public static final int DEFAULT_RETAIN_VERSIONS = 1;
+
+    private final File sourceDir;
+    private final File configDir;
+    private final DatabaseManager db;
+    private int retainVersions = DEFAULT_RETAIN_VERSIONS;
+
+    public record ItemResult(String item, String action, boolean success, String backupPath,
+                             String message, long millis) {
+        public String toJson() {
+            return "{\"item\": " + Json.quote(item)
+                    + ", \"action\": " + Json.quote(action)
+                    + ", \"success\": " + success
+                    + ", \"backupPath\": " + Json.quote(backupPath)
+                    + ", \"message\": " + Json.quote(message)
+                    + ", \"millis\": " + millis + "}";
+        }
+    }
+
+    public DeployEngine(File sourceDir, File configDir, DatabaseManager db) {
+        this.sourceDir = sourceDir;
+        this.configDir = configDir;
+        this.db = db;
+    }
+
+    /** ~/riverwm deployed to ~/.config, backups in ~/.config/backups. */
+    public static DeployEngine forCurrentUser() {
+        String home = System.getProperty("user.home");
+        return new DeployEngine(new File(home, "riverwm"), new File(home, ".config"), DatabaseManager.getInstance());
+    }
+
+    /** sourceDir deployed to home/.config, backups in that home's own .config/backups store. */
+    public static DeployEngine forHome(File sourceDir, File home) {
+        File configDir = new File(home, ".config");
+        return new DeployEngine(sourceDir, configDir,
+                DatabaseManager.forDirectory(new File(configDir, "backups").getPath()));
+    }
+
+    public File getSourceDir() {
+        return sourceDir;
+    }
+
+    public File getConfigDir() {
+        return configDir;
+    }
+
+    public DatabaseManager getDatabase() {
+        return db;
+    }
+
+    /** Locks items on this engine's store against other runs in any process; see ItemLocks. */
+    public ItemLocks.Lease lockItems(Collection<String> items) throws IOException {
+        return ItemLocks.forStore(db.getStoreDir()).lock(items);
+    }
+
+    /** How many backups per item survive a deploy, counting the new one. */
+    public void setRetainVersions(int retainVersions) {
+        this.retainVersions = Math.max(1, retainVersions);
+    }
+
+    /** Source entries that can be deployed; the one mapping onto the backup store is left out. */
+    public List<String> listItems() {
+        String[] names = sourceDir.list();
+        if (names == null) {
+            return List.of();
+        }
+        Arrays.sort(names);
+        List<String> items = new ArrayList<>();
+        for (String name : names) {
+            if (!isBackupStore(name)) {
+                items.add(name);
+            }
+        }
+        return items;
+    }
+
+    /** True if deploying item would overwrite the directory holding backups and the database. */
+    public boolean isBackupStore(String item) {
+        return getTargetFile(item).toPath().toAbsolutePath().normalize()
+                .equals(Path.of(db.getStoreDir()).toAbsolutePath().normalize());
+    }
+
+    public File getSourceFile(String item) {
+        return new File(sourceDir, item);
+    }
+
+    public File getTargetFile(String item) {
+        return new File(configDir, getTargetPath(item));
+    }
+
+    private String getTargetPath(String itemName) {
+        return itemName;
+    }
+
+    /** The River and Fish config dirs are expected by the other items' scripts. */
+    public void ensureBaseDirs() {
+        new File(configDir, "fish").mkdirs();
+        new File(configDir, "river").mkdirs();
+    }
+
+    /**
+     * Deploys items using up to {@code jobs} threads; results keep the input
+     * order. All or nothing: if any item fails, the items already written
+     * are rolled back from the run's DeployJournal. The items stay locked
+     * until the run has committed or rolled back, so another process never
+     * sees, backs up or overwrites a half-finished item.
+     */
+    public List<ItemResult> deploy(List<String> items, int jobs) {
+        ensureBaseDirs();
+        ItemLocks.Lease lease;
+        try {
+            lease = lockItems(items);
+        } catch (IOException e) {
+            return failAll(items, e.getMessage());
+        }
+        try (lease; DeployJournal journal = DeployJournal.begin(this)) {
+            if (jobs <= 1 || items.size() <= 1) {
+                List<ItemResult> results = new ArrayList<>();
+                for (String item : items) {
+                    results.add(deployItem(item, journal));
+                }
+                return finishRun(journal, results);
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, items.size()));
+            try {
+                List<Future<ItemResult>> futures = new ArrayList<>();
+                for (String item : items) {
+                    futures.add(pool.submit(() -> deployItem(item, journal)));
+                }
+                return finishRun(journal, collect(items, futures, "deploy"));
+            } finally {
+                pool.shutdown();
+            }
+        } catch (IOException e) {
+            return failAll(items, "deploy journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Commits the run if every item succeeded. Otherwise rolls it back and
+     * marks each item it had written as failed too, naming the items that
+     * caused the rollback.
+     */
+    public static List<ItemResult> finishRun(DeployJournal journal, List<ItemResult> results) {
+        List<String> failed = new ArrayList<>();
+        for (ItemResult result : results) {
+            if (!result.success()) failed.add(result.item());
+        }
+        String reason = String.join(", ", failed) + " failed";
+        if (failed.isEmpty()) {
+            try {
+                journal.commit();
+                return results;
+            } catch (IOException e) {
+                reason = "journal commit failed: " + e.getMessage();
+            }
+        }
+        String outcome;
+        boolean undone = false;
+        try {
+            journal.rollback();
+            outcome = "Rolled back, " + reason;
+            undone = true;
+        } catch (IOException e) {
+            outcome = "Rollback incomplete (" + e.getMessage() + "), retried on next start; " + reason;
+        }
+        List<ItemResult> rolledBack = new ArrayList<>();
+        for (ItemResult result : results) {
+            // A complete rollback also dropped the backups the run took
+            String backupPath = undone ? null : result.backupPath();
+            rolledBack.add(result.success() && journal.touched(result.item())
+                    ? new ItemResult(result.item(), result.action(), false, backupPath, outcome, result.millis())
+                    : new ItemResult(result.item(), result.action(), result.success(), backupPath,
+                            result.message(), result.millis()));
+        }
+        return rolledBack;
+    }
+
+    private static List<ItemResult> failAll(List<String> items, String message) {
+        List<ItemResult> results = new ArrayList<>();
+        for (String item : items) {
+            results.add(new ItemResult(item, "deploy", false, null, message, 0));
+        }
+        return results;
+    }
+
+    private ItemResult deployItem(String item, DeployJournal journal) {
+        long start = System.nanoTime();
+        File sourceFile = getSourceFile(item);
+        File targetFile = getTargetFile(item);
+        String backupPath = null;
+        try {
+            if (!sourceFile.exists()) {
+                throw new IOException("not found in " + sourceDir);
+            }
+            if (isBackupStore(item)) {
+                throw new IOException("refusing to overwrite the backup store " + targetFile);
+            }
+            // A link from LinkDeployer displaces nothing: it is replaced by a copy, the repo is left alone
+            boolean linked = Files.isSymbolicLink(targetFile.toPath());
+            if (targetFile.exists() && !linked) {
+                backupPath = backupItem(item, journal);
+            }
+            journal.stage(item, targetFile.toPath());
+
+            targetFile.getParentFile().mkdirs();
+            if (sourceFile.isDirectory()) {
+                FileOps.copyDirectory(sourceFile, targetFile);
+            } else {
+                Files.copy(sourceFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            journal.done(item);
+            String kind = sourceFile.isDirectory() ? "directory" : "file";
+            return new ItemResult(item, "deploy", true, backupPath,
+                    "Overwritten " + kind + ": " + targetFile.getAbsolutePath(), elapsedMs(start));
+        } catch (IOException | SQLException e) {
+            return new ItemResult(item, "deploy", false, backupPath, e.getMessage(), elapsedMs(start));
+        }
+    }
+
+    /**
+     * Applies a plan from DeployPlanner: backs up each changed item, then
+     * writes exactly the planned files. An item whose source or target no
+     * longer matches what the planner saw fails as stale, and like deploy()
+     * any failure rolls back the whole run.
+     */
+    public List<ItemResult> applyPlan(DeployPlan plan, int jobs) {
+        ensureBaseDirs();
+        List<String> items = new ArrayList<>();
+        for (DeployPlan.ItemPlan itemPlan : plan.items()) {
+            items.add(itemPlan.item());
+        }
+        ItemLocks.Lease lease;
+        try {
+            lease = lockItems(items);
+        } catch (IOException e) {
+            return failAll(items, e.getMessage());
+        }
+        try (lease; DeployJournal journal = DeployJournal.begin(this)) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, items.size())));
+            try {
+                List<Future<ItemResult>> futures = new ArrayList<>();
+                for (DeployPlan.ItemPlan itemPlan : plan.items()) {
+                    futures.add(pool.submit(() -> applyItemPlan(itemPlan, journal)));
+                }
+                return finishRun(journal, collect(items, futures, "deploy"));
+            } finally {
+                pool.shutdown();
+            }
+        } catch (IOException e) {
+            return failAll(items, "deploy journal: " + e.getMessage());
+        }
+    }
+
+    private ItemResult applyItemPlan(DeployPlan.ItemPlan itemPlan, DeployJournal journal) {
+        long start = System.nanoTime();
+        String item = itemPlan.item();
+        if (itemPlan.error() != null) {
+            return new ItemResult(item, "deploy", false, null, itemPlan.error(), 0);
+        }
+        if (isBackupStore(item)) {
+            return new ItemResult(item, "deploy", false, null, "refusing to overwrite the backup store", 0);
+        }
+        if (!itemPlan.hasChanges()) {
+            return new ItemResult(item, "deploy", true, null, "Unchanged", elapsedMs(start));
+        }
+
+        Path source = getSourceFile(item).toPath();
+        Path target = getTargetFile(item).toPath();
+        String backupPath = null;
+        try {
+            verifyPlan(itemPlan, source, target);
+            if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(target)) {
+                backupPath = backupItem(item, journal);
+            }
+            // Files are changed one by one in a hard-linked copy; the staged original stays intact
+            if (itemPlan.replaceTarget()) {
+                journal.stage(item, target);
+            } else {
+                journal.stageForUpdate(item, target);
+            }
+            for (DeployPlan.FileChange change : itemPlan.changes()) {
+                Path to = DeployPlanner.resolve(target, change.relPath());
+                if (change.kind() == DeployPlan.ChangeKind.DELETED) {
+                    if (!itemPlan.replaceTarget()) {
+                        Files.deleteIfExists(to);
+                        pruneEmptyParents(to, target, source, change.relPath());
+                    }
+                } else {
+                    Files.createDirectories(to.getParent());
+                    Files.copy(DeployPlanner.resolve(source, change.relPath()), to, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            journal.done(item);
+            return new ItemResult(item, "deploy", true, backupPath,
+                    "Applied " + itemPlan.summary(), elapsedMs(start));
+        } catch (IOException | SQLException e) {
+            return new ItemResult(item, "deploy", false, backupPath, e.getMessage(), elapsedMs(start));
+        }
+    }
+
+    private static void verifyPlan(DeployPlan.ItemPlan itemPlan, Path source, Path target) throws IOException {
+        for (DeployPlan.FileChange change : itemPlan.changes()) {
+            if (change.kind() != DeployPlan.ChangeKind.DELETED) {
+                expect(DeployPlanner.resolve(source, change.relPath()), change.sourceSize(), change.sourceModified());
+            }
+            if (!itemPlan.replaceTarget()) {
+                expect(DeployPlanner.resolve(target, change.relPath()), change.targetSize(), change.targetModified());
+            }
+        }
+    }
+
+    private static void expect(Path file, long size, long modified) throws IOException {
+        boolean exists = Files.exists(file, LinkOption.NOFOLLOW_LINKS);
+        if (size < 0 ? exists
+                : !exists || Files.size(file) != size || Files.getLastModifiedTime(file).toMillis() != modified) {
+            throw new IOException("plan is stale, " + file + " changed since preview");
+        }
+    }
+
+    /** Removes directories emptied by deletions, unless the source still has them. */
+    private static void pruneEmptyParents(Path deleted, Path targetRoot, Path sourceRoot, String relPath) throws IOException {
+        Path dir = deleted.getParent();
+        Path rel = Path.of(relPath).getParent();
+        while (dir != null && rel != null && !dir.equals(targetRoot)) {
+            if (Files.isDirectory(sourceRoot.resolve(rel))) break;
+            try (var entries = Files.list(dir)) {
+                if (entries.findAny().isPresent()) break;
+            }
+            Files.delete(dir);
+            dir = dir.getParent();
+            rel = rel.getParent();
+        }
+    }
+
+    /**
+     * Copies the current target of item into a new backup version, records
+     * the checksums of the copy and returns its path. Files up to
+     * DatabaseManager.PACK_THRESHOLD go into the database with the manifest,
+     * in one transaction; only larger files are copied to the backup path,
+     * which is not created at all when every file is packed. The caller
+     * holds the item's lock (lockItems).
+     *
+     * The backup belongs to journal's run: versions beyond retainVersions
+     * are pruned once it commits, and the new version is dropped if it is
+     * rolled back, so an undone run leaves the history as it found it.
+     */
+    public String backupItem(String item, DeployJournal journal) throws IOException, SQLException {
+        File targetFile = getTargetFile(item);
+        BackupInfo backup = db.createBackup(item);
+        journal.afterRollback(() -> discardBackup(backup));
+        Path root = Path.of(backup.getBackupPath());
+        List<ManifestEntry> entries = new ArrayList<>();
+        Map<String, byte[]> packed = new HashMap<>();
+        try (Metrics.Span span = Metrics.time("copyToBackup", item)) {
+            try {
+                if (targetFile.isDirectory()) {
+                    packTree(targetFile, root, "", entries, packed);
+                    if (entries.isEmpty()) {
+                        Files.createDirectories(root);
+                    }
+                } else {
+                    packFile(targetFile, root, "", entries, packed);
+                }
+            } catch (IOException e) {
+                span.fail();
+                throw e;
+            }
+        }
+        db.saveManifest(backup.getId(), entries, packed);
+        journal.afterCommit(() -> db.pruneBackups(item, retainVersions));
+        return backup.getBackupPath();
+    }
+
+    private void discardBackup(BackupInfo backup) throws IOException, SQLException {
+        db.deleteBackup(backup.getId());
+        Path root = Path.of(backup.getBackupPath());
+        if (Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            FileOps.deleteDirectory(root.toFile());
+        }
+    }
+
+    // Same walk as FileOps.copy: follows links, skips anything named FileOps.EXCLUDED_NAME
+    private static void packTree(File dir, Path root, String rel, List<ManifestEntry> entries,
+                                 Map<String, byte[]> packed) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().equals(FileOps.EXCLUDED_NAME)) {
+                continue;
+            }
+            String childRel = rel.isEmpty() ? file.getName() : rel + "/" + file.getName();
+            if (file.isDirectory()) {
+                packTree(file, root, childRel, entries, packed);
+            } else {
+                packFile(file, root, childRel, entries, packed);
+            }
+        }
+    }
+
+    private static void packFile(File source, Path root, String rel, List<ManifestEntry> entries,
+                                 Map<String, byte[]> packed) throws IOException {
+        if (source.length() <= DatabaseManager.PACK_THRESHOLD) {
+            byte[] data = Files.readAllBytes(source.toPath());
+            if (data.length <= DatabaseManager.PACK_THRESHOLD) {
+                String sha = ContentHasher.hashBytes(data);
+                packed.put(sha, data);
+                entries.add(new ManifestEntry(rel, data.length, sha, true));
+                if (Metrics.isEnabled()) {
+                    Metrics.count("files.packed");
+                    Metrics.count("bytes.packed", data.length);
+                }
+                return;
+            }
+        }
+        Path destination = DeployPlanner.resolve(root, rel);
+        Files.createDirectories(destination.getParent());
+        Files.copy(source.toPath(), destination, StandardCopyOption.REPLACE_EXISTING);
+        entries.add(new ManifestEntry(rel, Files.size(destination), ContentHasher.computeHash(destination)));
+        if (Metrics.isEnabled()) {
+            Metrics.count("files.copied");
+            Metrics.count("bytes.copied", Files.size(destination));
+        }
+    }
+
+    /** True if a version is of a directory item; an all-packed version has no path to look at. */
+    public static boolean isDirectoryBackup(Path root, List<ManifestEntry> manifest) {
+        if (Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            return Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS);
+        }
+        return manifest.stream().noneMatch(entry -> entry.relPath().isEmpty());
+    }
+
+    public List<BackupInfo> listVersions(String item) throws SQLException {
+        return db.getVersions(item);
+    }
+
+    public List<String> listBackedUpItems() throws SQLException {
+        return db.getAllBackupFilenames();
+    }
+
+    public BackupInfo findVersion(String item, int version) throws SQLException {
+        for (BackupInfo backup : db.getVersions(item)) {
+            if (backup.getVersion() == version) {
+                return backup;
+            }
+        }
+        return null;
+    }
+
+    /** The newest intact version taken at or before the given local time, or null. */
+    public BackupInfo findAt(String item, LocalDateTime localTime) throws SQLException {
+        return db.getVersionAt(item, toDbTimestamp(localTime));
+    }
+
+    /** For every backed-up item, the newest intact version taken at or before the given local time. */
+    public List<BackupInfo> snapshotAt(LocalDateTime localTime) throws SQLException {
+        return db.getSnapshotAt(toDbTimestamp(localTime));
+    }
+
+    /**
+     * Puts every item (or only those listed, if non-empty) back to how it
+     * was at the given local time, restoring up to {@code jobs} items in
+     * parallel. Items with no version by then are left alone and reported
+     * as failed.
+     */
+    public List<ItemResult> restoreAllAt(List<String> items, LocalDateTime localTime, int jobs) throws SQLException {
+        Map<String, BackupInfo> byItem = new TreeMap<>();
+        for (BackupInfo backup : snapshotAt(localTime)) {
+            byItem.put(backup.getFilename(), backup);
+        }
+        List<String> names = new ArrayList<>();
+        List<ItemResult> missing = new ArrayList<>();
+        for (String item : items.isEmpty() ? byItem.keySet() : new TreeSet<>(items)) {
+            if (byItem.containsKey(item)) {
+                names.add(item);
+            } else {
+                missing.add(new ItemResult(item, "restore", false, null, "no version at or before " + localTime, 0));
+            }
+        }
+        List<ItemResult> results = new ArrayList<>();
+        try (Metrics.Span span = Metrics.time("restoreAllAt", toDbTimestamp(localTime))) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, names.size())));
+            try {
+                List<Future<ItemResult>> futures = new ArrayList<>();
+                for (String item : names) {
+                    BackupInfo backup = byItem.get(item);
+                    futures.add(pool.submit(() -> restore(backup)));
+                }
+                results.addAll(collect(names, futures, "restore"));
+            } finally {
+                pool.shutdown();
+            }
+            results.addAll(missing);
+            if (results.stream().anyMatch(result -> !result.success())) {
+                span.fail();
+            }
+        }
+        return results;
+    }
+
+    public ItemResult restoreVersion(String item, int version) throws SQLException {
+        BackupInfo backup = findVersion(item, version);
+        if (backup == null) {
+            return new ItemResult(item, "restore", false, null, "no version " + version, 0);
+        }
+        return restore(backup);
+    }
+
+    /** Restores the newest version taken at or before the given local time. */
+    public ItemResult restoreAt(String item, LocalDateTime localTime) throws SQLException {
+        BackupInfo backup = findAt(item, localTime);
+        if (backup == null) {
+            return new ItemResult(item, "restore", false, null, "no version at or before " + localTime, 0);
+        }
+        return restore(backup);
+    }
+
+    /** Paths of a version, files and their parent directories ("dir/"), for choosing a partial restore. */
+    public List<String> listBackupPaths(BackupInfo backup) throws SQLException, IOException {
+        List<ManifestEntry> manifest = manifestUnder(backup, "");
+        TreeSet<String> paths = new TreeSet<>();
+        for (ManifestEntry entry : manifest) {
+            String rel = entry.relPath();
+            paths.add(rel);
+            for (int slash = rel.indexOf('/'); slash >= 0; slash = rel.indexOf('/', slash + 1)) {
+                paths.add(rel.substring(0, slash + 1));
+            }
+        }
+        paths.remove("");
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * Restores only the given files or subtrees (relative to the item) from
+     * a version, leaving the rest of the target untouched. Each file is
+     * copied to a temporary file next to its destination, checked against
+     * the manifest and moved into place atomically.
+     */
+    public ItemResult restoreFiles(BackupInfo backup, List<String> paths) {
+        long start = System.nanoTime();
+        String item = backup.getFilename();
+        Path backupRoot = Path.of(backup.getBackupPath());
+        Path targetRoot = getTargetFile(item).toPath();
+        try (Metrics.Span span = Metrics.time("restoreFiles", item)) {
+            ItemLocks.Lease lease = null;
+            try {
+                lease = lockItems(List.of(item));
+                backup = current(backup);
+                backupRoot = Path.of(backup.getBackupPath());
+                if (backup.isDamaged()) {
+                    throw new IOException("v" + backup.getVersion() + " failed a scrub and is quarantined");
+                }
+                // The path answers it unless the version is all packed; then a single-file
+                // version is the one whose manifest has the item itself (rel_path '')
+                boolean directory = Files.exists(backupRoot, LinkOption.NOFOLLOW_LINKS)
+                        ? Files.isDirectory(backupRoot, LinkOption.NOFOLLOW_LINKS)
+                        : !db.hasManifestEntry(backup.getId(), "");
+                if (!directory) {
+                    throw new IOException("v" + backup.getVersion() + " is a single-file backup, restore it whole");
+                }
+                if (Files.isSymbolicLink(targetRoot)) {
+                    // Writing through the link would change the repo checkout
+                    throw new IOException(targetRoot + " is a link to " + Files.readSymbolicLink(targetRoot)
+                            + ", restore the whole version instead");
+                }
+                List<ManifestEntry> selected = new ArrayList<>();
+                for (String path : paths) {
+                    String rel = normalizeRelPath(path);
+                    List<ManifestEntry> entries = manifestUnder(backup, rel);
+                    if (entries.isEmpty()) {
+                        throw new IOException(path + " is not in v" + backup.getVersion());
+                    }
+                    selected.addAll(entries);
+                }
+                Map<String, byte[]> packed = packedContent(selected);
+                for (ManifestEntry entry : selected) {
+                    restoreFile(backupRoot, entry, targetRoot.resolve(entry.relPath()), packed);
+                }
+                return new ItemResult(item, "restore", true, backupRoot.toString(),
+                        "Restored " + selected.size() + " file(s) from v" + backup.getVersion(), elapsedMs(start));
+            } catch (IOException | SQLException e) {
+                span.fail();
+                return new ItemResult(item, "restore", false, backupRoot.toString(), e.getMessage(), elapsedMs(start));
+            } finally {
+                if (lease != null) lease.close();
+            }
+        }
+    }
+
+    /**
+     * The version as recorded now; another process may have pruned or
+     * quarantined it since the caller listed it. Called with the item locked.
+     */
+    private BackupInfo current(BackupInfo backup) throws SQLException, IOException {
+        BackupInfo current = findVersion(backup.getFilename(), backup.getVersion());
+        if (current == null || current.getId() != backup.getId()) {
+            throw new IOException("v" + backup.getVersion() + " no longer exists, it was pruned since it was listed");
+        }
+        return current;
+    }
+
+    /** Manifest from the DB; versions recorded before checksums existed fall back to the files on disk. */
+    private List<ManifestEntry> manifestUnder(BackupInfo backup, String rel) throws SQLException, IOException {
+        List<ManifestEntry> entries = db.getManifestUnder(backup.getId(), rel);
+        if (!entries.isEmpty() || db.hasManifest(backup.getId())) {
+            return entries;
+        }
+        Path root = Path.of(backup.getBackupPath());
+        Path under = rel.isEmpty() ? root : root.resolve(rel);
+        if (!Files.exists(under, LinkOption.NOFOLLOW_LINKS)) {
+            return List.of();
+        }
+        List<ManifestEntry> found = new ArrayList<>();
+        for (ManifestEntry entry : BackupScrubber.listEntries(under)) {
+            String full = rel.isEmpty() ? entry.relPath() : entry.relPath().isEmpty() ? rel : rel + "/" + entry.relPath();
+            found.add(new ManifestEntry(full, entry.size(), null));
+        }
+        return found;
+    }
+
+    /** Content of the packed entries, fetched from the database in one go. */
+    private Map<String, byte[]> packedContent(List<ManifestEntry> entries) throws SQLException {
+        List<String> shas = new ArrayList<>();
+        for (ManifestEntry entry : entries) {
+            if (entry.packed()) shas.add(entry.sha256());
+        }
+        return db.getPackedContent(shas);
+    }
+
+    private static void restoreFile(Path backupRoot, ManifestEntry entry, Path to, Map<String, byte[]> packed)
+            throws IOException {
+        Files.createDirectories(to.getParent());
+        Path temp = Files.createTempFile(to.getParent(), "." + to.getFileName(), ".restore");
+        try {
+            if (entry.packed()) {
+                byte[] data = packed.get(entry.sha256());
+                if (data == null) {
+                    throw new IOException("packed content missing or corrupt in the database: " + entry.relPath());
+                }
+                Files.write(temp, data);
+            } else {
+                Files.copy(DeployPlanner.resolve(backupRoot, entry.relPath()), temp,
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            if (entry.sha256() != null && !ContentHasher.computeHash(temp).equals(entry.sha256())) {
+                throw new IOException("checksum mismatch in backup: " + entry.relPath());
+            }
+            Files.move(temp, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String normalizeRelPath(String path) throws IOException {
+        String rel = path.replace('\\', '/');
+        while (rel.endsWith("/")) rel = rel.substring(0, rel.length() - 1);
+        while (rel.startsWith("./")) rel = rel.substring(2);
+        Path normalized = Path.of(rel).normalize();
+        if (rel.isEmpty() || normalized.isAbsolute() || normalized.startsWith("..")) {
+            throw new IOException("invalid path: " + path);
+        }
+        return normalized.toString().replace('\\', '/');
+    }
+
+    /**
+     * Replaces the item's current target with the given backup. Backups of
+     * single-file items are stored as a file at the backup path. Versions
+     * with packed files are rebuilt from their manifest.
+     */
+    public ItemResult restore(BackupInfo backup) {
+        long start = System.nanoTime();
+        String item = backup.getFilename();
+        File backupFile = new File(backup.getBackupPath());
+        File targetFile = getTargetFile(item);
+        try (Metrics.Span span = Metrics.time("restoreSelected", item)) {
+            ItemLocks.Lease lease = null;
+            try {
+                lease = lockItems(List.of(item));
+                backup = current(backup);
+                backupFile = new File(backup.getBackupPath());
+                if (backup.isDamaged()) {
+                    throw new IOException("v" + backup.getVersion() + " failed a scrub and is quarantined");
+                }
+                List<ManifestEntry> manifest = db.getManifest(backup.getId());
+                boolean hasPacked = manifest.stream().anyMatch(ManifestEntry::packed);
+                Map<String, byte[]> packed = packedContent(manifest);
+                if (!hasPacked && !backupFile.exists()) {
+                    throw new IOException("backup missing: " + backupFile);
+                }
+                // Checked before the target is deleted, so a bad version leaves it alone
+                for (ManifestEntry entry : manifest) {
+                    if (entry.packed() && !packed.containsKey(entry.sha256())) {
+                        throw new IOException("packed content missing or corrupt in the database: "
+                                + (entry.relPath().isEmpty() ? item : entry.relPath()));
+                    }
+                }
+                if (Files.exists(targetFile.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                    FileOps.deleteDirectory(targetFile);
+                }
+                targetFile.getParentFile().mkdirs();
+                if (hasPacked) {
+                    if (isDirectoryBackup(backupFile.toPath(), manifest)) {
+                        Files.createDirectories(targetFile.toPath());
+                    }
+                    for (ManifestEntry entry : manifest) {
+                        restoreFile(backupFile.toPath(), entry, DeployPlanner.resolve(targetFile.toPath(), entry.relPath()), packed);
+                    }
+                } else if (backupFile.isDirectory()) {
+                    FileOps.copyDirectory(backupFile, targetFile);
+                } else {
+                    Files.copy(backupFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                return new ItemResult(item, "restore", true, backupFile.getAbsolutePath(),
+                        "Restored v" + backup.getVersion(), elapsedMs(start));
+            } catch (IOException | SQLException e) {
+                span.fail();
+                return new ItemResult(item, "restore", false, backupFile.getAbsolutePath(),
+                        e.getMessage(), elapsedMs(start));
+            } finally {
+                if (lease != null) lease.close();
+            }
+        }
+    }
+
+    /** Prunes items in parallel, keeping the newest {@code keep} versions of each. */
+    public List<ItemResult> prune(List<String> items, int keep, int jobs) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, items.size())));
+        try {
+            List<Future<ItemResult>> futures = new ArrayList<>();
+            for (String item : items) {
+                futures.add(pool.submit(() -> {
+                    long start = System.nanoTime();
+                    ItemLocks.Lease lease = null;
+                    try {
+                        lease = lockItems(List.of(item));
+                        int removed = db.pruneBackups(item, keep);
+                        return new ItemResult(item, "prune", true, null,
+                                "Removed " + removed + " version(s)", elapsedMs(start));
+                    } catch (IOException | SQLException e) {
+                        return new ItemResult(item, "prune", false, null, e.getMessage(), elapsedMs(start));
+                    } finally {
+                        if (lease != null) lease.close();
+                    }
+                }));
+            }
+            return collect(items, futures, "prune");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private List<ItemResult> collect(List<String> items, List<Future<ItemResult>> futures, String action) {
+        List<ItemResult> results = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(new ItemResult(items.get(i), action, false, null, "interrupted", 0));
+            } catch (ExecutionException e) {
+                results.add(new ItemResult(items.get(i), action, false, null, String.valueOf(e.getCause()), 0));
+            }
+        }
+        return results;
+    }
+
+    /** Converts a local wall-clock time to the UTC text stored in backed_up_at. */
+    public static String toDbTimestamp(LocalDateTime localTime) {
+        return localTime.atZone(ZoneId.systemDefault()).withZoneSameInstant(ZoneOffset.UTC)
+                .toLocalDateTime().format(DB_TIMESTAMP);
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
@@ -0,0 +1,509 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-ahead journal of one deploy run, so a run that fails halfway (or a
+ * process that dies halfway) can be undone as a whole.
+ *
+ * Before an item's target is touched it is staged: renamed into
+ * <config>/.deploy-staging/<run>/ (same filesystem as the target, so one
+ * rename however big the tree), after the STAGE record naming both paths is
+ * on disk. A target that did not exist gets a CREATE record instead.
+ * commit() drops the staged copies; rollback() walks the records backwards,
+ * deleting what the run wrote and renaming staged targets back.
+ *
+ * Records go to <store>/.journal/<run>.log. Items deployed in parallel
+ * append to a shared buffer and wait for it to be durable; whichever thread
+ * gets there first writes and fsyncs the whole buffer for all of them
+ * (group commit), so N items in flight cost about one fsync, not N.
+ *
+ * A run holds an exclusive lock on its journal while it lives. A journal
+ * that can be locked belongs to a process that died: recover() rolls such
+ * runs back, or finishes their cleanup if they had committed. It runs at
+ * CLI and UI startup and before every new run on the same store (one
+ * recovery at a time, so a new run never starts beside a half-undone one).
+ *
+ * Backup-store changes that belong to the run (pruning old versions, or
+ * dropping the versions it created if it is undone) are registered with
+ * afterCommit() and afterRollback() and run once the outcome is final. They
+ * are not journaled: after a crash neither runs, which leaves the history
+ * as it was plus the run's own backups.
+ */
+public class DeployJournal implements AutoCloseable {
+    static final String JOURNAL_DIR = ".journal";
+    static final String STAGING_DIR = ".deploy-staging";
+    private static final String SUFFIX = ".log";
+    private static final AtomicInteger RUN_SEQ = new AtomicInteger();
+
+    private static final String BEGIN = "BEGIN";
+    private static final String STAGE = "STAGE";
+    private static final String CREATE = "CREATE";
+    private static final String DONE = "DONE";
+    private static final String COMMIT = "COMMIT";
+    private static final String ROLLBACK = "ROLLBACK";
+
+    private final String runId;
+    private final Path journalFile;
+    private final Path stagingDir;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private final Object sync = new Object();
+    private final StringBuilder pending = new StringBuilder();
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Action> onCommit = new ArrayList<>();
+    private final List<Action> onRollback = new ArrayList<>();
+    private int pendingRecords;
+    private long appended;
+    private long durable;
+    private boolean flushing;
+    private IOException failure;
+    private boolean finished;
+
+    /** Backup-store work that waits for the outcome of the run. */
+    public interface Action {
+        void run() throws IOException, SQLException;
+    }
+
+    /** A STAGE or CREATE step: what rollback has to undo. staged is null for CREATE. */
+    private record Entry(String item, Path target, Path staged) {
+    }
+
+    /** What recover() did with one abandoned run. */
+    public record Recovery(String runId, boolean committed, int undone, String error) {
+        public String describe() {
+            if (error != null) {
+                return "Deploy run " + runId + ": rollback incomplete, " + error;
+            }
+            return committed
+                    ? "Deploy run " + runId + ": committed, staged copies removed"
+                    : "Deploy run " + runId + ": interrupted, " + undone + " item(s) rolled back";
+        }
+    }
+
+    private DeployJournal(String runId, Path journalFile, Path stagingDir, FileChannel channel, FileLock lock) {
+        this.runId = runId;
+        this.journalFile = journalFile;
+        this.stagingDir = stagingDir;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /** Starts a run for engine's config dir, journaled in its backup store. */
+    public static DeployJournal begin(DeployEngine engine) throws IOException {
+        Path storeDir = Path.of(engine.getDatabase().getStoreDir());
+        for (Recovery recovery : recover(storeDir)) {
+            System.err.println(recovery.describe());
+        }
+        String runId = ProcessHandle.current().pid() + "-" + System.currentTimeMillis() + "-" + RUN_SEQ.incrementAndGet();
+        Path journalDir = storeDir.resolve(JOURNAL_DIR);
+        Files.createDirectories(journalDir);
+        Path journalFile = journalDir.resolve(runId + SUFFIX);
+        Path stagingDir = engine.getConfigDir().toPath().toAbsolutePath().resolve(STAGING_DIR).resolve(runId);
+        FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        DeployJournal journal = new DeployJournal(runId, journalFile, stagingDir, channel, channel.lock());
+        journal.append(record(BEGIN, stagingDir.toString()), false);
+        return journal;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * Moves item's target out of the way (or notes that there is none), so
+     * the caller can write a fresh one. Returns once the step is journaled.
+     */
+    public void stage(String item, Path target) throws IOException {
+        target = target.toAbsolutePath();
+        if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            append(new Entry(item, target, null), record(CREATE, item, target.toString()));
+            return;
+        }
+        Path staged = stagingDir.resolve(item);
+        Files.createDirectories(staged.getParent());
+        append(new Entry(item, target, staged), record(STAGE, item, target.toString(), staged.toString()));
+        Files.move(target, staged, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Like stage(), then puts back a copy of the old target made of hard
+     * links, for writers that change a tree file by file. Replacing or
+     * deleting a file in the copy never touches the staged original.
+     */
+    public void stageForUpdate(String item, Path target) throws IOException {
+        stage(item, target);
+        Path staged = stagingDir.resolve(item);
+        if (Files.exists(staged, LinkOption.NOFOLLOW_LINKS)) {
+            linkTree(staged, target.toAbsolutePath());
+        }
+    }
+
+    /** True if item was staged or created in this run, i.e. rollback would undo it. */
+    public boolean touched(String item) {
+        synchronized (sync) {
+            return entries.stream().anyMatch(entry -> entry.item().equals(item));
+        }
+    }
+
+    /** Runs action after commit(); a failure is reported but does not undo the run. */
+    public void afterCommit(Action action) {
+        synchronized (sync) {
+            onCommit.add(action);
+        }
+    }
+
+    /** Runs action once rollback() has undone every step. */
+    public void afterRollback(Action action) {
+        synchronized (sync) {
+            onRollback.add(action);
+        }
+    }
+
+    /** Notes that item was written; not waited for, rollback does not depend on it. */
+    public void done(String item) throws IOException {
+        append(record(DONE, item), false);
+    }
+
+    /** Makes the run final and drops the staged copies. */
+    public void commit() throws IOException {
+        append(record(COMMIT), true);
+        finish();
+        runActions(onCommit);
+    }
+
+    /** Undoes every staged or created item, newest first. */
+    public void rollback() throws IOException {
+        List<Entry> steps;
+        synchronized (sync) {
+            steps = new ArrayList<>(entries);
+        }
+        try (Metrics.Span span = Metrics.time("journalRollback", runId)) {
+            String error = undo(steps);
+            if (error != null) {
+                span.fail();
+                // Journal and staged copies stay; the next recover() retries
+                finished = true;
+                throw new IOException(error);
+            }
+            try {
+                append(record(ROLLBACK), true);
+            } catch (IOException e) {
+                // Everything is undone; deleting the journal below is what ends the run
+            }
+            finish();
+            runActions(onRollback);
+        }
+    }
+
+    /** Rolls back unless committed, and releases the journal. */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!finished) {
+                rollback();
+            }
+        } finally {
+            if (channel.isOpen()) {
+                lock.release();
+                channel.close();
+            }
+        }
+    }
+
+    private void runActions(List<Action> actions) {
+        List<Action> pendingActions;
+        synchronized (sync) {
+            pendingActions = new ArrayList<>(actions);
+        }
+        for (Action action : pendingActions) {
+            try {
+                action.run();
+            } catch (IOException | SQLException e) {
+                System.err.println("Deploy run " + runId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void finish() throws IOException {
+        finished = true;
+        deleteIfExists(stagingDir);
+        deleteStagingParent(stagingDir);
+        // Gone before the lock is, so recover() in another process never takes a finished run for a dead one
+        Files.deleteIfExists(journalFile);
+        lock.release();
+        channel.close();
+    }
+
+    private void append(Entry entry, String line) throws IOException {
+        long seq;
+        synchronized (sync) {
+            entries.add(entry);
+            seq = add(line);
+        }
+        awaitDurable(seq);
+    }
+
+    private void append(String line, boolean wait) throws IOException {
+        long seq;
+        synchronized (sync) {
+            seq = add(line);
+        }
+        if (wait) {
+            awaitDurable(seq);
+        }
+    }
+
+    private long add(String line) {
+        pending.append(line).append('\n');
+        pendingRecords++;
+        Metrics.count("journal.records");
+        return ++appended;
+    }
+
+    /**
+     * Returns once record seq is on disk. The first waiter writes and syncs
+     * everything pending; records appended meanwhile go in the next batch.
+     */
+    private void awaitDurable(long seq) throws IOException {
+        while (true) {
+            byte[] batch;
+            long upTo;
+            int records;
+            synchronized (sync) {
+                while (flushing && durable < seq && failure == null) {
+                    try {
+                        sync.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted while writing the deploy journal");
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (durable >= seq) {
+                    return;
+                }
+                flushing = true;
+                batch = pending.toString().getBytes(StandardCharsets.UTF_8);
+                records = pendingRecords;
+                upTo = appended;
+                pending.setLength(0);
+                pendingRecords = 0;
+            }
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                Metrics.count("journal.fsyncs");
+                Metrics.record("journal.groupSize", records);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (sync) {
+                flushing = false;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durable = upTo;
+                }
+                sync.notifyAll();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private static String record(String... fields) {
+        return String.join("\t", fields);
+    }
+
+    /**
+     * Rolls back or cleans up every run in storeDir whose process is gone.
+     * Runs of live processes, this one included, are left alone.
+     */
+    public static synchronized List<Recovery> recover(Path storeDir) {
+        List<Recovery> recovered = new ArrayList<>();
+        Path journalDir = storeDir.resolve(JOURNAL_DIR);
+        if (!Files.isDirectory(journalDir)) {
+            return recovered;
+        }
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(journalDir, "*" + SUFFIX)) {
+            for (Path journal : journals) {
+                Recovery recovery;
+                try {
+                    recovery = recoverRun(journal);
+                } catch (NoSuchFileException e) {
+                    continue; // the run finished after the listing
+                }
+                if (recovery != null) {
+                    recovered.add(recovery);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Deploy journal recovery failed: " + e.getMessage());
+        }
+        return recovered;
+    }
+
+    private static Recovery recoverRun(Path journal) throws IOException {
+        String runId = journal.getFileName().toString();
+        runId = runId.substring(0, runId.length() - SUFFIX.length());
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                return null; // a run of this process
+            }
+            if (lock == null) {
+                return null; // a run of another live process
+            }
+            try (Metrics.Span span = Metrics.time("journalRecover", runId)) {
+                Path stagingDir = null;
+                boolean committed = false;
+                boolean rolledBack = false;
+                List<Entry> steps = new ArrayList<>();
+                // A torn last line was never acknowledged, so nothing was done for it
+                for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                    String[] f = line.split("\t");
+                    switch (f[0]) {
+                        case BEGIN -> stagingDir = f.length == 2 ? Path.of(f[1]) : null;
+                        case STAGE -> {
+                            if (f.length == 4) steps.add(new Entry(f[1], Path.of(f[2]), Path.of(f[3])));
+                        }
+                        case CREATE -> {
+                            if (f.length == 3) steps.add(new Entry(f[1], Path.of(f[2]), null));
+                        }
+                        case COMMIT -> committed = true;
+                        case ROLLBACK -> rolledBack = true;
+                        default -> {
+                        }
+                    }
+                }
+                // No BEGIN yet: begin() has created the file but not locked it
+                if (stagingDir == null && isAlive(runId)) {
+                    return null;
+                }
+                int undone = 0;
+                if (!committed && !rolledBack) {
+                    String error = undo(steps);
+                    if (error != null) {
+                        span.fail();
+                        return new Recovery(runId, false, 0, error);
+                    }
+                    undone = steps.size();
+                    channel.position(channel.size());
+                    channel.write(ByteBuffer.wrap((ROLLBACK + "\n").getBytes(StandardCharsets.UTF_8)));
+                    channel.force(false);
+                }
+                if (stagingDir != null) {
+                    deleteIfExists(stagingDir);
+                    deleteStagingParent(stagingDir);
+                }
+                Files.delete(journal);
+                Metrics.count("journal.recovered");
+                return new Recovery(runId, committed, undone, null);
+            } finally {
+                if (lock.isValid()) {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private static boolean isAlive(String runId) {
+        try {
+            long pid = Long.parseLong(runId.substring(0, runId.indexOf('-')));
+            return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /** Undoes steps newest first; returns null, or what could not be undone. */
+    private static String undo(List<Entry> steps) {
+        List<String> errors = new ArrayList<>();
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            Entry step = steps.get(i);
+            try {
+                if (step.staged() == null) {
+                    deleteIfExists(step.target());
+                } else if (Files.exists(step.staged(), LinkOption.NOFOLLOW_LINKS)) {
+                    // Not staged means the rename never happened and the target is untouched
+                    deleteIfExists(step.target());
+                    Files.createDirectories(step.target().getParent());
+                    Files.move(step.staged(), step.target(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                errors.add(step.item() + ": " + e.getMessage());
+            }
+        }
+        return errors.isEmpty() ? null : String.join("; ", errors);
+    }
+
+    private static void deleteIfExists(Path path) throws IOException {
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            FileOps.deleteDirectory(path.toFile());
+        }
+    }
+
+    // .deploy-staging itself goes once the last run using it is done
+    private static void deleteStagingParent(Path stagingDir) {
+        try {
+            Files.deleteIfExists(stagingDir.getParent());
+        } catch (IOException e) {
+            // not empty: another run is staging
+        }
+    }
+
+    /** Recreates the tree at from under to, hard-linking files (copying where links fail). */
+    private static void linkTree(Path from, Path to) throws IOException {
+        Files.walkFileTree(from, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path copy = to.resolve(from.relativize(dir).toString());
+                Files.createDirectories(copy);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path copy = file.equals(from) ? to : to.resolve(from.relativize(file).toString());
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(copy, Files.readSymbolicLink(file));
+                    return FileVisitResult.CONTINUE;
+                }
+                try {
+                    Files.createLink(copy, file);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.List;
+
+/**
+ * Result of DeployPlanner: for every item, the files a deploy would add,
+ * change or delete under the config directory. DeployEngine.applyPlan()
+ * performs exactly these changes, after checking that none of the files
+ * moved on since the plan was made.
+ */
+public record DeployPlan(List<ItemPlan> items, long planMillis) {
+
+    public enum ChangeKind { ADDED, CHANGED, DELETED }
+
+    /**
+     * One file-level change. Sizes and mtimes are what the planner saw and
+     * are re-checked before the change is applied (-1 for "did not exist").
+     */
+    public record FileChange(String relPath, ChangeKind kind,
+                             long sourceSize, long sourceModified,
+                             long targetSize, long targetModified) {
+
+        /** Bytes written to the config directory by this change. */
+        public long bytes() {
+            return kind == ChangeKind.DELETED ? 0 : sourceSize;
+        }
+    }
+
+    /**
+     * Changes for one item. relPath "" stands for the item itself when it is
+     * a single file. replaceTarget is set when the target has the wrong type
+     * (file vs directory) and must be removed first.
+     */
+    public record ItemPlan(String item, boolean sourceIsDirectory, boolean replaceTarget,
+                           List<FileChange> changes, int unchanged, String error) {
+
+        public boolean hasChanges() {
+            return !changes.isEmpty() || replaceTarget;
+        }
+
+        public int count(ChangeKind kind) {
+            int n = 0;
+            for (FileChange change : changes) {
+                if (change.kind() == kind) n++;
+            }
+            return n;
+        }
+
+        public long bytes() {
+            long total = 0;
+            for (FileChange change : changes) {
+                total += change.bytes();
+            }
+            return total;
+        }
+
+        public String summary() {
+            if (error != null) {
+                return item + ": error: " + error;
+            }
+            return item + ": +" + count(ChangeKind.ADDED) + " ~" + count(ChangeKind.CHANGED)
+                    + " -" + count(ChangeKind.DELETED) + " =" + unchanged
+                    + " (" + formatBytes(bytes()) + ")";
+        }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{\"item\": ").append(Json.quote(item))
+                    .append(", \"error\": ").append(Json.quote(error))
+                    .append(", \"replaceTarget\": ").append(replaceTarget)
+                    .append(", \"added\": ").append(count(ChangeKind.ADDED))
+                    .append(", \"changed\": ").append(count(ChangeKind.CHANGED))
+                    .append(", \"deleted\": ").append(count(ChangeKind.DELETED))
+                    .append(", \"unchanged\": ").append(unchanged)
+                    .append(", \"bytes\": ").append(bytes())
+                    .append(", \"changes\": [");
+            String sep = "";
+            for (FileChange change : changes) {
+                sb.append(sep).append("{\"path\": ").append(Json.quote(change.relPath()))
+                        .append(", \"kind\": ").append(Json.quote(change.kind().name()))
+                        .append(", \"bytes\": ").append(change.bytes()).append('}');
+                sep = ", ";
+            }
+            return sb.append("]}").toString();
+        }
+    }
+
+    public long totalBytes() {
+        long total = 0;
+        for (ItemPlan item : items) {
+            total += item.bytes();
+        }
+        return total;
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
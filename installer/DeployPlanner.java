@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Dry run of a deploy: works out which files under the config directory
+ * would be added, changed or deleted, without touching anything.
+ *
+ * Per item the source and target trees are walked concurrently. Files that
+ * exist on both sides with the same size are hashed in parallel (through
+ * ContentHasher's cache, so a warm re-plan hashes nothing); files whose
+ * size differs are changed without being read.
+ */
+public class DeployPlanner {
+    private final DeployEngine engine;
+
+    public DeployPlanner(DeployEngine engine) {
+        this.engine = engine;
+    }
+
+    public DeployPlan plan(List<String> items) {
+        long start = System.nanoTime();
+        try (Metrics.Span span = Metrics.time("planDeploy", String.join(",", items));
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<CompletableFuture<DeployPlan.ItemPlan>> futures = new ArrayList<>();
+            for (String item : items) {
+                futures.add(CompletableFuture.supplyAsync(() -> planItem(item, executor), executor));
+            }
+            List<DeployPlan.ItemPlan> plans = new ArrayList<>();
+            try {
+                for (CompletableFuture<DeployPlan.ItemPlan> future : futures) {
+                    plans.add(future.join());
+                }
+            } catch (CompletionException e) {
+                span.fail();
+                throw e;
+            }
+            return new DeployPlan(plans, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private DeployPlan.ItemPlan planItem(String item, ExecutorService executor) {
+        Path source = engine.getSourceFile(item).toPath();
+        Path target = engine.getTargetFile(item).toPath();
+        try {
+            if (!Files.exists(source)) {
+                return new DeployPlan.ItemPlan(item, false, false, List.of(), 0, "not found in " + engine.getSourceDir());
+            }
+            boolean sourceIsDir = Files.isDirectory(source);
+            boolean targetExists = Files.exists(target, LinkOption.NOFOLLOW_LINKS);
+            boolean targetIsDir = Files.isDirectory(target);
+            // A link from LinkDeployer is replaced by a copy; its files are the source's own
+            boolean targetIsLink = Files.isSymbolicLink(target);
+            boolean replaceTarget = targetExists && (targetIsLink || sourceIsDir != targetIsDir);
+
+            CompletableFuture<Map<String, FileOps.FileMeta>> sourceWalk =
+                    CompletableFuture.supplyAsync(() -> walk(source, true), executor);
+            CompletableFuture<Map<String, FileOps.FileMeta>> targetWalk = targetExists && !targetIsLink
+                    ? CompletableFuture.supplyAsync(() -> walk(target, false), executor)
+                    : CompletableFuture.completedFuture(Map.of());
+            Map<String, FileOps.FileMeta> sourceFiles = sourceWalk.join();
+            Map<String, FileOps.FileMeta> targetFiles = targetWalk.join();
+
+            List<DeployPlan.FileChange> changes = new ArrayList<>();
+            List<CompletableFuture<DeployPlan.FileChange>> compares = new ArrayList<>();
+            for (Map.Entry<String, FileOps.FileMeta> entry : sourceFiles.entrySet()) {
+                String rel = entry.getKey();
+                FileOps.FileMeta src = entry.getValue();
+                FileOps.FileMeta tgt = replaceTarget ? null : targetFiles.get(rel);
+                if (tgt == null) {
+                    changes.add(change(rel, DeployPlan.ChangeKind.ADDED, src, null));
+                } else if (src.size() != tgt.size()) {
+                    changes.add(change(rel, DeployPlan.ChangeKind.CHANGED, src, tgt));
+                } else {
+                    compares.add(CompletableFuture.supplyAsync(
+                            () -> compareContent(source, target, rel, src, tgt), executor));
+                }
+            }
+            for (Map.Entry<String, FileOps.FileMeta> entry : targetFiles.entrySet()) {
+                if (replaceTarget || !sourceFiles.containsKey(entry.getKey())) {
+                    changes.add(change(entry.getKey(), DeployPlan.ChangeKind.DELETED, null, entry.getValue()));
+                }
+            }
+
+            int unchanged = 0;
+            for (CompletableFuture<DeployPlan.FileChange> compare : compares) {
+                DeployPlan.FileChange change = compare.join();
+                if (change == null) {
+                    unchanged++;
+                } else {
+                    changes.add(change);
+                }
+            }
+            changes.sort(Comparator.comparing(DeployPlan.FileChange::relPath));
+            return new DeployPlan.ItemPlan(item, sourceIsDir, replaceTarget, changes, unchanged, null);
+        } catch (CompletionException e) {
+            return new DeployPlan.ItemPlan(item, false, false, List.of(), 0, String.valueOf(e.getCause().getMessage()));
+        }
+    }
+
+    private static DeployPlan.FileChange compareContent(Path source, Path target, String rel,
+                                                        FileOps.FileMeta src, FileOps.FileMeta tgt) {
+        try {
+            return sameContent(source, target, rel, src, tgt)
+                    ? null : change(rel, DeployPlan.ChangeKind.CHANGED, src, tgt);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /** True if rel hashes the same under both roots; both metas come from FileOps.walkFiles(). */
+    public static boolean sameContent(Path source, Path target, String rel, FileOps.FileMeta src,
+                                      FileOps.FileMeta tgt) throws IOException {
+        String sourceHash = ContentHasher.hash(resolve(source, rel), src.size(), src.modified());
+        String targetHash = ContentHasher.hash(resolve(target, rel), tgt.size(), tgt.modified());
+        return sourceHash.equals(targetHash);
+    }
+
+    private static DeployPlan.FileChange change(String rel, DeployPlan.ChangeKind kind, FileOps.FileMeta src,
+                                                FileOps.FileMeta tgt) {
+        return new DeployPlan.FileChange(rel, kind,
+                src == null ? -1 : src.size(), src == null ? -1 : src.modified(),
+                tgt == null ? -1 : tgt.size(), tgt == null ? -1 : tgt.modified());
+    }
+
+    /** rel "" is the item root itself (single-file items). */
+    public static Path resolve(Path root, String rel) {
+        return rel.isEmpty() ? root : root.resolve(rel);
+    }
+
+    private static Map<String, FileOps.FileMeta> walk(Path root, boolean isSource) {
+        try {
+            return FileOps.walkFiles(root, isSource);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.awt.*;
+import java.util.HashMap;
+import java.util.Map;
+import javax.swing.*;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+
+/**
+ * Shows a DeployPlan as a tree (item, directories, files) with per-item
+ * totals. Apply closes the dialog with isApproved() true; the caller then
+ * hands the very same plan to DeployEngine.applyPlan().
+ */
+public class DeployPreviewDialog extends JDialog {
+    private boolean approved;
+
+    public DeployPreviewDialog(JFrame parent, DeployPlan plan) {
+        super(parent, "Preview Overwrite", true);
+        setSize(600, 450);
+        setLocationRelativeTo(parent);
+        setLayout(new BorderLayout(10, 10));
+
+        JLabel titleLabel = new JLabel(plan.items().size() + " item(s), "
+                + DeployPlan.formatBytes(plan.totalBytes()) + " to write (planned in " + plan.planMillis() + " ms)");
+        titleLabel.setFont(new Font("Dialog", Font.BOLD, 14));
+        titleLabel.setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));
+        add(titleLabel, BorderLayout.NORTH);
+
+        JTree tree = new JTree(new DefaultTreeModel(buildTree(plan)));
+        tree.setRootVisible(false);
+        tree.setShowsRootHandles(true);
+        tree.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        for (int row = 0; row < tree.getRowCount(); row++) {
+            tree.expandRow(row);
+        }
+        JScrollPane scrollPane = new JScrollPane(tree);
+        scrollPane.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
+        add(scrollPane, BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 10));
+        JButton applyButton = new JButton("Apply");
+        JButton cancelButton = new JButton("Cancel");
+        applyButton.addActionListener(e -> {
+            approved = true;
+            dispose();
+        });
+        cancelButton.addActionListener(e -> dispose());
+        buttonPanel.add(applyButton);
+        buttonPanel.add(cancelButton);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+
+    public boolean isApproved() {
+        return approved;
+    }
+
+    private static DefaultMutableTreeNode buildTree(DeployPlan plan) {
+        DefaultMutableTreeNode root = new DefaultMutableTreeNode("plan");
+        for (DeployPlan.ItemPlan item : plan.items()) {
+            DefaultMutableTreeNode itemNode = new DefaultMutableTreeNode(item.summary()
+                    + (item.replaceTarget() ? " [type changes, target replaced]" : ""));
+            root.add(itemNode);
+
+            Map<String, DefaultMutableTreeNode> dirs = new HashMap<>();
+            for (DeployPlan.FileChange change : item.changes()) {
+                String rel = change.relPath().isEmpty() ? item.item() : change.relPath();
+                int slash = rel.lastIndexOf('/');
+                DefaultMutableTreeNode parent = slash < 0 ? itemNode : dirNode(itemNode, dirs, rel.substring(0, slash));
+                parent.add(new DefaultMutableTreeNode(marker(change.kind()) + " " + rel.substring(slash + 1)
+                        + (change.kind() == DeployPlan.ChangeKind.DELETED ? "" : "  (" + DeployPlan.formatBytes(change.bytes()) + ")")));
+            }
+        }
+        return root;
+    }
+
+    private static DefaultMutableTreeNode dirNode(DefaultMutableTreeNode itemNode,
+                                                  Map<String, DefaultMutableTreeNode> dirs, String dir) {
+        DefaultMutableTreeNode node = dirs.get(dir);
+        if (node == null) {
+            int slash = dir.lastIndexOf('/');
+            DefaultMutableTreeNode parent = slash < 0 ? itemNode : dirNode(itemNode, dirs, dir.substring(0, slash));
+            node = new DefaultMutableTreeNode(dir.substring(slash + 1) + "/");
+            parent.add(node);
+            dirs.put(dir, node);
+        }
+        return node;
+    }
+
+    private static String marker(DeployPlan.ChangeKind kind) {
+        return switch (kind) {
+            case ADDED -> "[+]";
+            case CHANGED -> "[~]";
+            case DELETED -> "[-]";
+        };
+    }
+}
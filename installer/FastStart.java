@@ -0,0 +1,98 @@
+import java.awt.Window;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Paths and timing helpers for the fast-start build produced by build.sh:
+ * out/installer.jar plus the AppCDS archive out/installer.jsa recorded from
+ * a training run. Everything here falls back to the plain class directory
+ * when the build has not been run.
+ */
+public final class FastStart {
+    private static final String OUT_DIR = "out";
+    private static final String JAR_NAME = "installer.jar";
+    private static final String ARCHIVE_NAME = "installer.jsa";
+
+    private FastStart() {
+    }
+
+    public static File getJar() {
+        return new File(new File(System.getProperty("user.dir"), OUT_DIR), JAR_NAME);
+    }
+
+    public static File getArchive() {
+        return new File(new File(System.getProperty("user.dir"), OUT_DIR), ARCHIVE_NAME);
+    }
+
+    public static boolean isArchiveAvailable() {
+        return getJar().isFile() && getArchive().isFile();
+    }
+
+    /**
+     * Classpath matching the one build.sh trained with: the jar followed by
+     * lib/*.jar in name order. CDS only maps the archive when the runtime
+     * classpath starts with the dump-time classpath, so order matters.
+     */
+    public static String getClassPath() {
+        String currentDir = System.getProperty("user.dir");
+        StringBuilder cp = new StringBuilder(getJar().isFile() ? getJar().getAbsolutePath() : currentDir);
+        File[] jars = new File(currentDir, "lib").listFiles((dir, name) -> name.endsWith(".jar"));
+        if (jars != null) {
+            Arrays.sort(jars);
+            for (File jar : jars) {
+                cp.append(File.pathSeparator).append(jar.getAbsolutePath());
+            }
+        }
+        return cp.toString();
+    }
+
+    /** JVM options a spawned tool should get; empty when no archive was built. */
+    public static List<String> getJvmOptions() {
+        List<String> options = new ArrayList<>();
+        if (isArchiveAvailable()) {
+            options.add("-XX:SharedArchiveFile=" + getArchive().getAbsolutePath());
+        }
+        return options;
+    }
+
+    /**
+     * Calls back with the milliseconds between startNanos and the moment the
+     * window is actually opened (first WINDOW_OPENED event).
+     */
+    public static void onFirstWindow(Window window, long startNanos, LongConsumer elapsedMs) {
+        window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                window.removeWindowListener(this);
+                elapsedMs.accept((System.nanoTime() - startNanos) / 1_000_000);
+            }
+        });
+    }
+
+    /** Prints time-to-first-window measured from JVM process start. */
+    public static void reportStartup(Window window, String tool) {
+        Instant processStart = ProcessHandle.current().info().startInstant().orElse(null);
+        window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                window.removeWindowListener(this);
+                if (processStart != null) {
+                    long ms = Duration.between(processStart, Instant.now()).toMillis();
+                    report(tool, ms, "JVM start");
+                }
+            }
+        });
+    }
+
+    public static void report(String tool, long elapsedMs, String since) {
+        System.err.println("[startup] " + tool + " first window " + elapsedMs + " ms after " + since
+                + " (CDS archive: " + (isArchiveAvailable() ? "present" : "absent") + ")");
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * File copy, walk and delete helpers shared by DeployEngine,
+ * DatabaseManager, DeployJournal, the deploy planner and status scanner,
+ * MultiHomeDeployer and the backup tools (archive, reconciler).
+ */
+public final class FileOps {
+    // Never copied or deployed: backup stores inside a config would nest forever
+    static final String EXCLUDED_NAME = "backups";
+
+    /** Size and modification time (ms) of a file seen by walkFiles(). */
+    public record FileMeta(long size, long modified) {
+    }
+
+    private FileOps() {
+    }
+
+    /** Copies a file or a directory tree to destination. */
+    public static void copy(File source, File destination) throws IOException {
+        try (Metrics.Span span = Metrics.time("copyToBackup", source.getName())) {
+            try {
+                if (source.isDirectory()) {
+                    copyTree(source, destination);
+                } else {
+                    destination.getParentFile().mkdirs();
+                    copyFile(source, destination);
+                }
+            } catch (IOException e) {
+                span.fail();
+                throw e;
+            }
+        }
+    }
+
+    public static void copyDirectory(File source, File destination) throws IOException {
+        try (Metrics.Span span = Metrics.time("copyDirectory", source.getName())) {
+            try {
+                copyTree(source, destination);
+            } catch (IOException e) {
+                span.fail();
+                throw e;
+            }
+        }
+    }
+
+    private static void copyTree(File source, File destination) throws IOException {
+        if (!destination.exists()) {
+            destination.mkdirs();
+        }
+
+        File[] files = source.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equals(EXCLUDED_NAME)) {
+                    continue;
+                }
+                File newFile = new File(destination, file.getName());
+                if (file.isDirectory()) {
+                    copyTree(file, newFile);
+                } else {
+                    copyFile(file, newFile);
+                }
+            }
+        }
+    }
+
+    /** Same as walkFiles(root, source, null). */
+    public static Map<String, FileMeta> walkFiles(Path root, boolean source) throws IOException {
+        return walkFiles(root, source, null);
+    }
+
+    /**
+     * Regular files under root keyed by '/'-separated relative path; "" when
+     * root is a file. A source tree is walked the way copy() reads it: links
+     * are followed and anything named EXCLUDED_NAME is skipped. Any other
+     * tree is walked as it is. When dirs is not null, the relative paths of
+     * the directories below root are added to it.
+     */
+    public static Map<String, FileMeta> walkFiles(Path root, boolean source, List<String> dirs) throws IOException {
+        Map<String, FileMeta> files = new HashMap<>();
+        Set<FileVisitOption> options = source ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : Set.of();
+        Files.walkFileTree(root, options, Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (source && dir.getFileName().toString().equals(EXCLUDED_NAME)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (dirs != null) {
+                    dirs.add(relative(root, dir));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (source && !file.equals(root) && file.getFileName().toString().equals(EXCLUDED_NAME)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                files.put(relative(root, file), new FileMeta(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private static String relative(Path root, Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        Files.copy(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (Metrics.isEnabled()) {
+            Metrics.count("files.copied");
+            Metrics.count("bytes.copied", source.length());
+        }
+    }
+
+    /** Deletes a file or a directory tree; symlinks are deleted, not followed. */
+    public static void deleteDirectory(File directory) throws IOException {
+        try (Metrics.Span span = Metrics.time("deleteDirectory", directory.getName())) {
+            try {
+                deleteTree(directory);
+            } catch (IOException e) {
+                span.fail();
+                throw e;
+            }
+        }
+    }
+
+    private static void deleteTree(File directory) throws IOException {
+        // A link (e.g. from LinkDeployer) is removed itself, never what it points to
+        if (Files.isSymbolicLink(directory.toPath())) {
+            Files.delete(directory.toPath());
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteTree(file);
+                } else {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+        Files.delete(directory.toPath());
+    }
+}
@@ -1,32 +1,44 @@
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.nio.file.*;
+import java.util.ArrayList;
 import java.util.List;
 import javax.swing.*;
+import javax.swing.tree.TreeSelectionModel;
 
 public class FileOverwriteUI extends JFrame {
-    private JList<String> fileList;
-    private DefaultListModel<String> listModel;
+    private JTree fileTree;
+    private ConfigTreeModel treeModel;
     private JButton overwriteButton;
     private JButton restoreButton;
+    private JCheckBox linkCheckBox;
     private JTextArea statusArea;
     private JLabel sourceLabel;
     private JLabel targetLabel;
     private File sourceDir;
     private File configDir;
-    private DatabaseManager dbManager;
+    private DeployEngine engine;
 
     public FileOverwriteUI() {
         setTitle("River WM Config Overwrite Tool");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(700, 550);
         setLocationRelativeTo(null);
+        BackupReconciler.scheduleAfterStartup(this);
+        // Undo a deploy that a crash left half done, before anything else touches ~/.config
+        Thread.ofVirtual().name("deploy-journal-recover").start(() -> {
+            List<DeployJournal.Recovery> recovered =
+                    DeployJournal.recover(java.nio.file.Path.of(DatabaseManager.getBackupDir()));
+            if (!recovered.isEmpty()) {
+                List<String> lines = new ArrayList<>();
+                recovered.forEach(recovery -> lines.add(recovery.describe()));
+                SwingUtilities.invokeLater(() -> statusArea.setText(String.join("\n", lines)));
+            }
+        });
 
         // Initialize directories
         sourceDir = new File(System.getProperty("user.home"), "riverwm");
         configDir = new File(System.getProperty("user.home"), ".config");
-        dbManager = DatabaseManager.getInstance();
 
         // Main panel
         JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
@@ -43,14 +55,22 @@ public class FileOverwriteUI extends JFrame {
         infoPanel.add(targetLabel);
         mainPanel.add(infoPanel, BorderLayout.NORTH);
 
-        // Center: file list with scroll
-        listModel = new DefaultListModel<>();
-        fileList = new JList<>(listModel);
-        fileList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
-        fileList.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        loadFiles(); // Call after initializing listModel
-        JScrollPane scrollPane = new JScrollPane(fileList);
-        mainPanel.add(scrollPane, BorderLayout.CENTER);
+        // Center: lazily expanded tree; sizes and status fill in as the background scans finish
+        treeModel = new ConfigTreeModel(sourceDir, configDir);
+        fileTree = new JTree(treeModel);
+        fileTree.setRootVisible(false);
+        fileTree.setShowsRootHandles(true);
+        fileTree.getSelectionModel().setSelectionMode(TreeSelectionModel.DISCONTIGUOUS_TREE_SELECTION);
+        fileTree.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        fileTree.setCellRenderer(new ConfigTreeModel.Renderer());
+        fileTree.addTreeWillExpandListener(treeModel);
+        JScrollPane scrollPane = new JScrollPane(fileTree);
+        JLabel scanLabel = new JLabel(" ");
+        treeModel.setStatusListener(scanLabel::setText);
+        JPanel treePanel = new JPanel(new BorderLayout(0, 5));
+        treePanel.add(scrollPane, BorderLayout.CENTER);
+        treePanel.add(scanLabel, BorderLayout.SOUTH);
+        mainPanel.add(treePanel, BorderLayout.CENTER);
 
         // Bottom: buttons and status
         JPanel bottomPanel = new JPanel(new BorderLayout(10, 10));
@@ -60,16 +80,18 @@ public class FileOverwriteUI extends JFrame {
         restoreButton = new JButton("Restore");
         JButton refreshButton = new JButton("Refresh");
         JButton cancelButton = new JButton("Exit");
+        linkCheckBox = new JCheckBox("Link instead of copy");
+        linkCheckBox.setToolTipText("Make ~/.config entries symlinks to ~/riverwm; repo edits apply without a redeploy");
+        linkCheckBox.addActionListener(e ->
+                overwriteButton.setText(linkCheckBox.isSelected() ? "Link Selected" : "Overwrite Selected"));
 
         overwriteButton.addActionListener(e -> overwriteFiles());
         restoreButton.addActionListener(e -> openRestoreDialog());
-        refreshButton.addActionListener(e -> {
-            listModel.clear();
-            loadFiles();
-            statusArea.setText("File list refreshed.");
-        });
-        cancelButton.addActionListener(e -> System.exit(0));
+        refreshButton.addActionListener(e -> loadFiles());
+        // Goes through the close operation so a launcher-hosted window only disposes itself
+        cancelButton.addActionListener(e -> dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING)));
 
+        buttonPanel.add(linkCheckBox);
         buttonPanel.add(refreshButton);
         buttonPanel.add(restoreButton);
         buttonPanel.add(overwriteButton);
@@ -82,6 +104,13 @@ public class FileOverwriteUI extends JFrame {
         statusArea.setWrapStyleWord(true);
         statusArea.setFont(new Font("Monospaced", Font.PLAIN, 11));
         statusArea.setText("Ready. Select files/directories and click 'Overwrite Selected'.");
+        loadFiles();
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                treeModel.dispose();
+            }
+        });
 
         JScrollPane statusScroll = new JScrollPane(statusArea);
         bottomPanel.add(buttonPanel, BorderLayout.NORTH);
@@ -92,96 +121,123 @@ public class FileOverwriteUI extends JFrame {
         add(mainPanel);
     }
 
+    // Lists and scans off the EDT; an unchanged entry costs a stat walk on refresh
     private void loadFiles() {
         if (!sourceDir.exists() || !sourceDir.isDirectory()) {
             statusArea.setText("Error: " + sourceDir.getAbsolutePath() + " not found!");
             return;
         }
-
-        File[] files = sourceDir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                String displayName = file.getName();
-                if (file.isDirectory()) {
-                    displayName += "/";
-                }
-                listModel.addElement(displayName);
-            }
-        }
+        treeModel.refresh();
     }
 
-    private String getTargetPath(String itemName) {
-        return itemName;
+    // The SQLite driver is only loaded once a backup is actually read or written
+    private DeployEngine engine() {
+        if (engine == null) {
+            engine = new DeployEngine(sourceDir, configDir, DatabaseManager.getInstance());
+        }
+        return engine;
     }
 
     private void overwriteFiles() {
-        int[] selectedIndices = fileList.getSelectedIndices();
-        if (selectedIndices.length == 0) {
+        // Anything selected inside an item deploys that item
+        List<String> items = treeModel.selectedItems(fileTree.getSelectionPaths());
+        if (items.isEmpty()) {
             statusArea.setText("No files selected!");
             return;
         }
 
+        overwriteButton.setEnabled(false);
+        if (linkCheckBox.isSelected()) {
+            linkFiles(items);
+            return;
+        }
+        statusArea.setText("Planning " + items.size() + " item(s)...");
+        new SwingWorker<DeployPlan, Void>() {
+            protected DeployPlan doInBackground() {
+                return new DeployPlanner(engine()).plan(items);
+            }
+            protected void done() {
+                try {
+                    DeployPlan plan = get();
+                    DeployPreviewDialog preview = new DeployPreviewDialog(FileOverwriteUI.this, plan);
+                    preview.setVisible(true);
+                    if (preview.isApproved()) {
+                        applyPlan(plan);
+                        return;
+                    }
+                    statusArea.setText("Overwrite cancelled.");
+                } catch (Exception ex) {
+                    statusArea.setText("Error: " + ex.getMessage());
+                }
+                overwriteButton.setEnabled(true);
+            }
+        }.execute();
+    }
+
+    private void applyPlan(DeployPlan plan) {
+        statusArea.setText("Overwriting " + plan.items().size() + " item(s)...");
+        new SwingWorker<List<DeployEngine.ItemResult>, Void>() {
+            protected List<DeployEngine.ItemResult> doInBackground() {
+                return engine().applyPlan(plan, Runtime.getRuntime().availableProcessors());
+            }
+            protected void done() {
+                overwriteButton.setEnabled(true);
+                try {
+                    statusArea.setText(formatResults(get()));
+                    treeModel.refresh();
+                } catch (Exception ex) {
+                    statusArea.setText("Error: " + ex.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    // Links only what differs; real files in the way are backed up first, so no preview is needed
+    private void linkFiles(List<String> items) {
+        statusArea.setText("Linking " + items.size() + " item(s)...");
+        new SwingWorker<List<DeployEngine.ItemResult>, Void>() {
+            protected List<DeployEngine.ItemResult> doInBackground() {
+                return new LinkDeployer(engine()).link(items, Runtime.getRuntime().availableProcessors());
+            }
+            protected void done() {
+                overwriteButton.setEnabled(true);
+                try {
+                    statusArea.setText(formatResults(get()));
+                    treeModel.refresh();
+                } catch (Exception ex) {
+                    statusArea.setText("Error: " + ex.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private String formatResults(List<DeployEngine.ItemResult> results) {
         StringBuilder result = new StringBuilder();
         int successCount = 0;
         int errorCount = 0;
 
-        File fishDir = new File(configDir, "fish");
-        File riverDir = new File(configDir, "river");
-        fishDir.mkdirs();
-        riverDir.mkdirs();
         result.append("Ensured ~/.config/fish/ and ~/.config/river/ exist\n\n");
-
-        for (int index : selectedIndices) {
-            String itemName = listModel.getElementAt(index).replace("/", "");
-            File sourceFile = new File(sourceDir, itemName);
-            String targetSubdir = getTargetPath(itemName);
-            File targetFile = new File(configDir, targetSubdir);
-
-            try {
-                if (targetFile.exists()) {
-                    dbManager.deleteOldBackups(itemName);
-                    String backupPath = dbManager.saveBackup(itemName, targetFile.getAbsolutePath());
-                    copyToBackup(targetFile, new File(backupPath));
-                    result.append("Backed up: ").append(itemName).append(" -> ").append(backupPath).append("\n");
-                }
-
-                if (sourceFile.isDirectory()) {
-                    targetFile.getParentFile().mkdirs();
-                    if (targetFile.exists()) {
-                        deleteDirectory(targetFile);
-                    }
-                    copyDirectory(sourceFile, targetFile);
-                    result.append("Overwritten directory: ~/.config/").append(targetSubdir).append("/\n");
-                    successCount++;
-                } else {
-                    targetFile.getParentFile().mkdirs();
-                    Files.copy(sourceFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                    result.append("Overwritten file: ~/.config/").append(targetSubdir).append("\n");
-                    successCount++;
-                }
-            } catch (Exception ex) {
-                result.append("Error with ").append(itemName).append(": ").append(ex.getMessage()).append("\n");
+        for (DeployEngine.ItemResult item : results) {
+            if (item.backupPath() != null) {
+                result.append("Backed up: ").append(item.item()).append(" -> ").append(item.backupPath()).append("\n");
+            }
+            if (item.success()) {
+                result.append(item.message()).append("\n");
+                successCount++;
+            } else {
+                result.append("Error with ").append(item.item()).append(": ").append(item.message()).append("\n");
                 errorCount++;
             }
         }
 
         result.append("\n--- Summary ---\n");
         result.append("Success: ").append(successCount).append(" | Errors: ").append(errorCount);
-        statusArea.setText(result.toString());
-    }
-
-    private void copyToBackup(File source, File destination) throws IOException {
-        if (source.isDirectory()) {
-            copyDirectory(source, destination);
-        } else {
-            destination.getParentFile().mkdirs();
-            Files.copy(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        }
+        return result.toString();
     }
 
     private void openRestoreDialog() {
         try {
-            List<String> filenames = dbManager.getAllBackupFilenames();
+            List<String> filenames = engine().listBackedUpItems();
             if (filenames.isEmpty()) {
                 JOptionPane.showMessageDialog(this, "No backups found.", "Restore", JOptionPane.INFORMATION_MESSAGE);
                 return;
@@ -198,7 +254,7 @@ public class FileOverwriteUI extends JFrame {
             );
 
             if (selectedFilename != null) {
-                BackupHistoryDialog dialog = new BackupHistoryDialog(this, selectedFilename, dbManager);
+                BackupHistoryDialog dialog = new BackupHistoryDialog(this, selectedFilename, engine());
                 dialog.setVisible(true);
             }
         } catch (Exception ex) {
@@ -206,44 +262,10 @@ public class FileOverwriteUI extends JFrame {
         }
     }
 
-    private void copyDirectory(File source, File destination) throws IOException {
-        if (!destination.exists()) {
-            destination.mkdirs();
-        }
-
-        File[] files = source.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.getName().equals("backups")) {
-                    continue;
-                }
-                File newFile = new File(destination, file.getName());
-                if (file.isDirectory()) {
-                    copyDirectory(file, newFile);
-                } else {
-                    Files.copy(file.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                }
-            }
-        }
-    }
-
-    private void deleteDirectory(File directory) throws IOException {
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    deleteDirectory(file);
-                } else {
-                    Files.deleteIfExists(file.toPath());
-                }
-            }
-        }
-        Files.delete(directory.toPath());
-    }
-
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             FileOverwriteUI frame = new FileOverwriteUI();
+            FastStart.reportStartup(frame, "FileOverwriteUI");
             frame.setVisible(true);
         });
     }
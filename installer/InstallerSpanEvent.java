@@ -0,0 +1,27 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one timed installer span (backup, copy,
+ * search, pkexec call, ...). Emitted by Metrics.time() whenever a recording
+ * has the event enabled, independent of -Dinstaller.metrics.
+ */
+@Name("riverwm.installer.Span")
+@Label("Installer Span")
+@Category({"RiverWM", "Installer"})
+@Description("Timed hot path in the RiverWM installer tools")
+@StackTrace(false)
+public class InstallerSpanEvent extends jdk.jfr.Event {
+    @Label("Span")
+    public String span;
+
+    @Label("Detail")
+    @Description("Item, query or command the span worked on")
+    public String detail;
+
+    @Label("Failed")
+    public boolean failed;
+}
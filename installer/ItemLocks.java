@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-item locks on a backup store, so that two deploys, restores or
+ * prunes never work on the same item at once, whether they run in this
+ * process or another one (several FileOverwriteUI windows, the CLI).
+ *
+ * Items hash to one of STRIPES stripes. A stripe is a Semaphore within the
+ * JVM plus an OS lock on {@code <store>/.locks/<stripe>.lock} across
+ * processes; String.hashCode is fixed by the spec, so every process maps an
+ * item to the same stripe. A lease takes its stripes in ascending order,
+ * which keeps runs that lock several items from deadlocking. Unrelated
+ * items that share a stripe wait for each other, which is rare and only
+ * costs time; lock files exist only for stripes in use. The OS drops the
+ * locks of a process that dies.
+ */
+public final class ItemLocks {
+    static final int STRIPES = 1024;
+    private static final String LOCK_DIR = ".locks";
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("installer.lock.timeout", 300));
+    private static final long MAX_POLL_MS = 50;
+    private static final Map<Path, ItemLocks> stores = new ConcurrentHashMap<>();
+
+    private final Path lockDir;
+    private final Semaphore[] local = new Semaphore[STRIPES];
+
+    private ItemLocks(Path storeDir) {
+        this.lockDir = storeDir.resolve(LOCK_DIR);
+        for (int i = 0; i < STRIPES; i++) {
+            local[i] = new Semaphore(1);
+        }
+    }
+
+    /** The locks of the store in storeDir; one instance per directory in this JVM. */
+    public static ItemLocks forStore(String storeDir) {
+        Path dir = Path.of(storeDir).toAbsolutePath().normalize();
+        try {
+            // Two spellings of one directory must share the in-JVM half
+            dir = dir.toRealPath();
+        } catch (IOException e) {
+            // Not created yet; the normalized path is the best key there is
+        }
+        return stores.computeIfAbsent(dir, ItemLocks::new);
+    }
+
+    static int stripeOf(String item) {
+        // hashCode alone puts names that differ in their last character ("theme-1", "theme-2")
+        // on neighbouring stripes; mix it first (MurmurHash3 finalizer)
+        int h = item.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, STRIPES);
+    }
+
+    public Lease lock(String item) throws IOException {
+        return lock(List.of(item));
+    }
+
+    /**
+     * Locks every item, waiting up to installer.lock.timeout seconds (300)
+     * in all. Close the lease to unlock; it is not reentrant, so a holder
+     * must not lock the same items again.
+     */
+    public Lease lock(Collection<String> items) throws IOException {
+        TreeMap<Integer, List<String>> byStripe = new TreeMap<>();
+        for (String item : items) {
+            byStripe.computeIfAbsent(stripeOf(item), k -> new ArrayList<>()).add(item);
+        }
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        Lease lease = new Lease();
+        try (Metrics.Span span = Metrics.time("itemLock", items.size() + " item(s)")) {
+            try {
+                for (Map.Entry<Integer, List<String>> stripe : byStripe.entrySet()) {
+                    lease.acquire(stripe.getKey(), stripe.getValue(), deadline);
+                }
+            } catch (IOException e) {
+                span.fail();
+                lease.close();
+                throw e;
+            }
+        }
+        return lease;
+    }
+
+    /** Locked stripes; close() releases them in reverse order. */
+    public final class Lease implements AutoCloseable {
+        private final List<Integer> stripes = new ArrayList<>();
+        private final List<FileChannel> channels = new ArrayList<>();
+
+        private Lease() {
+        }
+
+        private void acquire(int stripe, List<String> items, long deadline) throws IOException {
+            try {
+                if (!local[stripe].tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    throw timedOut(items);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the lock on " + String.join(", ", items));
+            }
+            FileChannel channel = null;
+            try {
+                Files.createDirectories(lockDir);
+                channel = FileChannel.open(lockDir.resolve(stripe + ".lock"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                long pollMs = 1;
+                while (tryLock(channel) == null) {
+                    if (pollMs == 1) {
+                        Metrics.count("itemLock.waits");
+                    }
+                    if (System.nanoTime() - deadline >= 0) {
+                        throw timedOut(items);
+                    }
+                    Thread.sleep(pollMs);
+                    pollMs = Math.min(MAX_POLL_MS, pollMs * 2);
+                }
+            } catch (IOException | InterruptedException e) {
+                if (channel != null) channel.close();
+                local[stripe].release();
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the lock on " + String.join(", ", items));
+                }
+                throw (IOException) e;
+            }
+            stripes.add(stripe);
+            channels.add(channel);
+        }
+
+        private FileLock tryLock(FileChannel channel) throws IOException {
+            try {
+                return channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Held through another ItemLocks instance for the same directory in this JVM
+                return null;
+            }
+        }
+
+        private IOException timedOut(List<String> items) {
+            return new IOException(String.join(", ", items) + " is locked by another deploy, restore or prune"
+                    + " (waited " + TimeUnit.NANOSECONDS.toSeconds(TIMEOUT_NANOS) + " s)");
+        }
+
+        @Override
+        public void close() {
+            for (int i = stripes.size() - 1; i >= 0; i--) {
+                try {
+                    // Closing the channel releases its lock
+                    channels.get(i).close();
+                } catch (IOException e) {
+                    System.err.println("Item lock " + stripes.get(i) + ": " + e.getMessage());
+                } finally {
+                    local[stripes.get(i)].release();
+                }
+            }
+            stripes.clear();
+            channels.clear();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size, file count and deploy status of an entry of the source checkout
+ * (an item, or any directory or file inside one) against its counterpart
+ * in the config directory.
+ *
+ * A scan stats both trees, then hashes the files present on both sides
+ * with the same size (through ContentHasher). The result is cached per
+ * entry under a signature of every path, size and mtime seen, so a rescan
+ * of an unchanged entry is the stat walk alone. Safe to call from many
+ * threads at once.
+ */
+public class ItemStatusScanner {
+    public enum Status {
+        /** Target matches the source file for file. */
+        SAME,
+        /** Target differs; changedFiles counts added, changed and deleted files. */
+        CHANGED,
+        /** No target yet. */
+        NEW,
+        /** Target is a LinkDeployer link to this source: always current. */
+        LINKED,
+        ERROR
+    }
+
+    public record Stats(long size, int files, Status status, int changedFiles, String error) {
+        public boolean needsDeploy() {
+            return status == Status.CHANGED || status == Status.NEW;
+        }
+    }
+
+    private record Cached(long signature, Stats stats) {
+    }
+
+    private final Path sourceDir;
+    private final Path configDir;
+    private final Map<String, Cached> cache = new ConcurrentHashMap<>();
+
+    public ItemStatusScanner(Path sourceDir, Path configDir) {
+        this.sourceDir = sourceDir.toAbsolutePath();
+        this.configDir = configDir.toAbsolutePath();
+    }
+
+    /** Stats of the entry at relPath ('/'-separated, e.g. "river" or "river/scripts"). */
+    public Stats scan(String relPath) {
+        Path source = sourceDir.resolve(relPath);
+        Path target = configDir.resolve(relPath);
+        try (Metrics.Span span = Metrics.time("scanStatus", relPath)) {
+            try {
+                if (isLinkTo(target, source)) {
+                    Map<String, FileOps.FileMeta> files = FileOps.walkFiles(source, true);
+                    return new Stats(totalSize(files), files.size(), Status.LINKED, 0, null);
+                }
+                Map<String, FileOps.FileMeta> sourceFiles = FileOps.walkFiles(source, true);
+                boolean targetExists = Files.exists(target, LinkOption.NOFOLLOW_LINKS);
+                // A link elsewhere, or a file where a directory belongs, is replaced whole
+                boolean replaced = targetExists && (Files.isSymbolicLink(target)
+                        || Files.isDirectory(source) != Files.isDirectory(target));
+                Map<String, FileOps.FileMeta> targetFiles = targetExists && !replaced
+                        ? FileOps.walkFiles(target, false) : Map.of();
+
+                long signature = signature(sourceFiles, targetFiles) * 31 + (targetExists ? replaced ? 2 : 1 : 0);
+                Cached cached = cache.get(relPath);
+                if (cached != null && cached.signature() == signature) {
+                    Metrics.count("scanStatus.cached");
+                    return cached.stats();
+                }
+                Stats stats;
+                if (!targetExists) {
+                    stats = new Stats(totalSize(sourceFiles), sourceFiles.size(), Status.NEW, sourceFiles.size(), null);
+                } else {
+                    int changed = replaced ? sourceFiles.size() + 1 : countChanges(source, target, sourceFiles, targetFiles);
+                    stats = new Stats(totalSize(sourceFiles), sourceFiles.size(),
+                            changed == 0 ? Status.SAME : Status.CHANGED, changed, null);
+                }
+                cache.put(relPath, new Cached(signature, stats));
+                return stats;
+            } catch (IOException e) {
+                span.fail();
+                return new Stats(0, 0, Status.ERROR, 0, e.getMessage());
+            }
+        }
+    }
+
+    private static int countChanges(Path source, Path target, Map<String, FileOps.FileMeta> sourceFiles,
+                                    Map<String, FileOps.FileMeta> targetFiles) throws IOException {
+        int changed = 0;
+        for (Map.Entry<String, FileOps.FileMeta> entry : sourceFiles.entrySet()) {
+            FileOps.FileMeta src = entry.getValue();
+            FileOps.FileMeta tgt = targetFiles.get(entry.getKey());
+            if (tgt == null || tgt.size() != src.size()) {
+                changed++;
+                continue;
+            }
+            if (!DeployPlanner.sameContent(source, target, entry.getKey(), src, tgt)) {
+                changed++;
+            }
+        }
+        for (String rel : targetFiles.keySet()) {
+            if (!sourceFiles.containsKey(rel)) changed++;
+        }
+        return changed;
+    }
+
+    private static boolean isLinkTo(Path target, Path source) throws IOException {
+        if (!Files.isSymbolicLink(target)) {
+            return false;
+        }
+        Path link = Files.readSymbolicLink(target);
+        return target.resolveSibling(link).normalize().equals(source.normalize());
+    }
+
+    // Order-independent, so the walk order of the file system does not matter
+    private static long signature(Map<String, FileOps.FileMeta> sourceFiles,
+                                  Map<String, FileOps.FileMeta> targetFiles) {
+        long signature = 0;
+        for (Map.Entry<String, FileOps.FileMeta> entry : sourceFiles.entrySet()) {
+            signature += mix(entry.getKey().hashCode(), entry.getValue());
+        }
+        for (Map.Entry<String, FileOps.FileMeta> entry : targetFiles.entrySet()) {
+            signature ^= mix(~entry.getKey().hashCode(), entry.getValue());
+        }
+        return signature;
+    }
+
+    private static long mix(int pathHash, FileOps.FileMeta meta) {
+        long h = pathHash * 0x9E3779B97F4A7C15L + meta.size();
+        h = (h ^ (h >>> 31)) * 0xBF58476D1CE4E5B9L + meta.modified();
+        return h ^ (h >>> 29);
+    }
+
+    private static long totalSize(Map<String, FileOps.FileMeta> files) {
+        long total = 0;
+        for (FileOps.FileMeta meta : files.values()) {
+            total += meta.size();
+        }
+        return total;
+    }
+}
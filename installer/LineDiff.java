@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line diff using Myers' O(ND) algorithm in its linear-space form: the
+ * middle snake of an optimal edit path is found with a forward and a
+ * reverse search, and both halves are solved recursively. Memory is two
+ * int arrays of N + M entries no matter how far apart the inputs are.
+ *
+ * Lines are interned to ints first, so the inner loops compare ints.
+ */
+public final class LineDiff {
+    public static final int DEFAULT_CONTEXT = 3;
+
+    private final int[] a;
+    private final int[] b;
+    private final boolean[] deleted;
+    private final boolean[] inserted;
+    private final int[] forward;
+    private final int[] backward;
+
+    private LineDiff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.deleted = new boolean[a.length];
+        this.inserted = new boolean[b.length];
+        int size = a.length + b.length + 3;
+        this.forward = new int[size];
+        this.backward = new int[size];
+    }
+
+    /** Unified diff of two texts, or "" when they have the same lines. */
+    public static String unified(String labelA, String textA, String labelB, String textB, int context) {
+        List<String> linesA = textA.lines().toList();
+        List<String> linesB = textB.lines().toList();
+        Map<String, Integer> ids = new HashMap<>();
+        LineDiff diff = new LineDiff(intern(linesA, ids), intern(linesB, ids));
+        diff.compare(0, diff.a.length, 0, diff.b.length);
+        return diff.format(labelA, linesA, labelB, linesB, context);
+    }
+
+    private static int[] intern(List<String> lines, Map<String, Integer> ids) {
+        int[] out = new int[lines.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = ids.computeIfAbsent(lines.get(i), k -> ids.size());
+        }
+        return out;
+    }
+
+    /** Marks deleted lines of a[aLo, aHi) and inserted lines of b[bLo, bHi). */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi) {
+            for (int j = bLo; j < bHi; j++) inserted[j] = true;
+        } else if (bLo == bHi) {
+            for (int i = aLo; i < aHi; i++) deleted[i] = true;
+        } else {
+            // With common ends stripped the edit distance is at least 2, so
+            // the middle snake lies strictly inside and both halves shrink.
+            int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+            compare(aLo, snake[0], bLo, snake[1]);
+            compare(snake[2], aHi, snake[3], bHi);
+        }
+    }
+
+    /** Returns {xStart, yStart, xEnd, yEnd} of the middle snake, in absolute indexes. */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1]))
+                        ? forward[offset + k + 1]
+                        : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int xStart = x;
+                int yStart = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                if (odd && k >= delta - (d - 1) && k <= delta + (d - 1)
+                        && x + backward[offset + delta - k] >= n) {
+                    return new int[] {aLo + xStart, bLo + yStart, aLo + x, bLo + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1]))
+                        ? backward[offset + k + 1]
+                        : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int xStart = x;
+                int yStart = y;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                if (!odd && k >= delta - d && k <= delta + d
+                        && x + forward[offset + delta - k] >= n) {
+                    return new int[] {aHi - x, bHi - y, aHi - xStart, bHi - yStart};
+                }
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+
+    private String format(String labelA, List<String> linesA, String labelB, List<String> linesB, int context) {
+        // Walk both sequences once, collecting edit ranges as [aStart, aEnd, bStart, bEnd]
+        List<int[]> changes = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !deleted[i] && !inserted[j]) {
+                i++;
+                j++;
+                continue;
+            }
+            int aStart = i;
+            int bStart = j;
+            while (i < a.length && deleted[i]) i++;
+            while (j < b.length && inserted[j]) j++;
+            changes.add(new int[] {aStart, i, bStart, j});
+        }
+        if (changes.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("--- ").append(labelA).append('\n');
+        out.append("+++ ").append(labelB).append('\n');
+        int c = 0;
+        while (c < changes.size()) {
+            // Merge changes whose context windows touch into one hunk
+            int last = c;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * context) {
+                last++;
+            }
+            int[] first = changes.get(c);
+            int[] end = changes.get(last);
+            int aFrom = Math.max(0, first[0] - context);
+            int bFrom = Math.max(0, first[2] - context);
+            int aTo = Math.min(a.length, end[1] + context);
+            int bTo = Math.min(b.length, end[3] + context);
+            out.append("@@ -").append(range(aFrom, aTo - aFrom))
+                    .append(" +").append(range(bFrom, bTo - bFrom)).append(" @@\n");
+
+            int ai = aFrom;
+            for (int h = c; h <= last; h++) {
+                int[] change = changes.get(h);
+                while (ai < change[0]) {
+                    out.append(' ').append(linesA.get(ai++)).append('\n');
+                }
+                for (int x = change[0]; x < change[1]; x++) {
+                    out.append('-').append(linesA.get(x)).append('\n');
+                }
+                for (int y = change[2]; y < change[3]; y++) {
+                    out.append('+').append(linesB.get(y)).append('\n');
+                }
+                ai = change[1];
+            }
+            while (ai < aTo) {
+                out.append(' ').append(linesA.get(ai++)).append('\n');
+            }
+            c = last + 1;
+        }
+        return out.toString();
+    }
+
+    private static String range(int start, int length) {
+        // Unified diff numbers lines from 1; an empty range names the line before it
+        return length == 0 ? start + ",0" : length == 1 ? String.valueOf(start + 1) : (start + 1) + "," + length;
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deploy by symlink instead of copy: each item's target in the config
+ * directory becomes a link to its source in the repo, so edits in the repo
+ * take effect without a redeploy.
+ *
+ * Only what differs from that state is touched. A correct link costs one
+ * readlink; a link pointing elsewhere is swapped atomically (new link
+ * renamed over it); a real file or directory is backed up through
+ * DeployEngine.backupItem() and staged in a DeployJournal of its own before
+ * it is replaced, so it comes back if the link cannot be made or the
+ * process dies in between. removeStaleLinks() drops
+ * links into the repo whose source no longer exists. Each item is locked
+ * (ItemLocks) while it is linked.
+ */
+public class LinkDeployer {
+    private final DeployEngine engine;
+
+    public LinkDeployer(DeployEngine engine) {
+        this.engine = engine;
+    }
+
+    public List<DeployEngine.ItemResult> link(List<String> items, int jobs) {
+        engine.ensureBaseDirs();
+        try (Metrics.Span span = Metrics.time("linkDeploy", String.join(",", items))) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, items.size())));
+            try {
+                List<Future<DeployEngine.ItemResult>> futures = new ArrayList<>();
+                for (String item : items) {
+                    futures.add(pool.submit(() -> linkItem(item)));
+                }
+                List<DeployEngine.ItemResult> results = new ArrayList<>();
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        results.add(futures.get(i).get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        results.add(new DeployEngine.ItemResult(items.get(i), "link", false, null, "interrupted", 0));
+                    } catch (ExecutionException e) {
+                        results.add(new DeployEngine.ItemResult(items.get(i), "link", false, null,
+                                String.valueOf(e.getCause()), 0));
+                    }
+                }
+                if (results.stream().anyMatch(result -> !result.success())) {
+                    span.fail();
+                }
+                return results;
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    public DeployEngine.ItemResult linkItem(String item) {
+        long start = System.nanoTime();
+        Path source = engine.getSourceFile(item).toPath().toAbsolutePath().normalize();
+        Path target = engine.getTargetFile(item).toPath().toAbsolutePath().normalize();
+        String backupPath = null;
+        ItemLocks.Lease lease = null;
+        try {
+            lease = engine.lockItems(List.of(item));
+            if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException("not found in " + engine.getSourceDir());
+            }
+            if (engine.isBackupStore(item)) {
+                throw new IOException("refusing to replace the backup store " + target);
+            }
+            String message;
+            if (Files.isSymbolicLink(target)) {
+                Path current = Files.readSymbolicLink(target);
+                if (resolveLink(target, current).equals(source)) {
+                    Metrics.count("links.unchanged");
+                    return new DeployEngine.ItemResult(item, "link", true, null, "Already linked", elapsedMs(start));
+                }
+                // rename(2) replaces the old link in one step, so the item never disappears
+                Path temp = target.resolveSibling("." + target.getFileName() + ".link");
+                Files.deleteIfExists(temp);
+                Files.createSymbolicLink(temp, source);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                message = "Relinked " + target + " -> " + source + " (was -> " + current + ")";
+            } else {
+                if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                    // Closing without commit() renames the staged target back and drops the backup
+                    try (DeployJournal journal = DeployJournal.begin(engine)) {
+                        String backup = engine.backupItem(item, journal);
+                        journal.stage(item, target);
+                        Files.createSymbolicLink(target, source);
+                        journal.commit();
+                        backupPath = backup;
+                    }
+                } else {
+                    Files.createDirectories(target.getParent());
+                    Files.createSymbolicLink(target, source);
+                }
+                message = "Linked " + target + " -> " + source;
+            }
+            Metrics.count("links.created");
+            return new DeployEngine.ItemResult(item, "link", true, backupPath, message, elapsedMs(start));
+        } catch (IOException | SQLException | UnsupportedOperationException e) {
+            return new DeployEngine.ItemResult(item, "link", false, backupPath, e.getMessage(), elapsedMs(start));
+        } finally {
+            if (lease != null) lease.close();
+        }
+    }
+
+    /**
+     * Deletes links in the config directory that point into the source
+     * directory at an entry that no longer exists. Links to anywhere else
+     * are the user's and are left alone.
+     */
+    public List<DeployEngine.ItemResult> removeStaleLinks() throws IOException {
+        Path sourceDir = engine.getSourceDir().toPath().toAbsolutePath().normalize();
+        Path configDir = engine.getConfigDir().toPath();
+        List<DeployEngine.ItemResult> results = new ArrayList<>();
+        if (!Files.isDirectory(configDir)) {
+            return results;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(configDir, Files::isSymbolicLink)) {
+            for (Path link : entries) {
+                long start = System.nanoTime();
+                Path points = resolveLink(link, Files.readSymbolicLink(link));
+                if (points.startsWith(sourceDir) && !Files.exists(points, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.delete(link);
+                    Metrics.count("links.removed");
+                    results.add(new DeployEngine.ItemResult(link.getFileName().toString(), "unlink", true, null,
+                            "Removed stale link " + link + " -> " + points, elapsedMs(start)));
+                }
+            }
+        }
+        return results;
+    }
+
+    /** True if item's target is currently a link to its source. */
+    public boolean isLinked(String item) throws IOException {
+        Path target = engine.getTargetFile(item).toPath().toAbsolutePath().normalize();
+        return Files.isSymbolicLink(target) && resolveLink(target, Files.readSymbolicLink(target))
+                .equals(engine.getSourceFile(item).toPath().toAbsolutePath().normalize());
+    }
+
+    private static Path resolveLink(Path link, Path value) {
+        return link.toAbsolutePath().getParent().resolve(value).normalize();
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
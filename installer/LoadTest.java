@@ -0,0 +1,480 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Headless load test of deploy, backup, restore and prune on generated
+ * trees far larger than the repo's own (theme and icon packs, deep
+ * nesting, multi-GB wallpapers).
+ *
+ * A source tree (the ~/riverwm stand-in) of directory items holding small
+ * files at random depths, plus large single-file items, is generated from
+ * a seed: same seed and shape, same bytes. The first deploy creates the
+ * config tree; each cycle then rewrites a share of the small files and
+ * runs the UI path (DeployPlanner.plan, DeployEngine.applyPlan), rewrites
+ * again and runs the CLI path (deploy), restores every item to its newest
+ * backup and prunes.
+ *
+ * Per phase the report has item latency percentiles, throughput, peak
+ * heap (heap pool peaks, reset at each phase) and peak open file
+ * descriptors (sampled every 10 ms). The JSON report carries the shape,
+ * so a later run with --baseline can check it measured the same thing.
+ *
+ * Usage: java -cp "lib/*:." LoadTest [options]
+ *   --items N        top-level items, large ones included (default 12)
+ *   --files N        small files across the directory items (default 20000)
+ *   --depth N        deepest nesting below an item (default 6)
+ *   --fanout N       subdirectories per level (default 8)
+ *   --size BYTES     mean small-file size, exponentially distributed (default 2048)
+ *   --large N        large single-file items, like wallpapers (default 2)
+ *   --large-mb N     size of each large item (default 64)
+ *   --change PCT     small files rewritten before each deploy (default 5)
+ *   --cycles N       plan+apply / deploy / restore / prune rounds (default 3)
+ *   --keep N         versions kept by prune (default 2)
+ *   --jobs N         items in parallel (default CPU count)
+ *   --seed N         (default 1)
+ *   --dir DIR        work directory, kept afterwards (default: temp dir, deleted)
+ *   --out FILE       also write the JSON report to FILE
+ *   --baseline FILE  compare with an earlier JSON report
+ *   --json           print the JSON report instead of the table
+ *
+ * Exit status is 1 if any operation failed.
+ */
+public class LoadTest {
+    private static final int SAMPLE_MILLIS = 10;
+    private static final int BLOCK = 1024 * 1024;
+    private static final Pattern NUMBER_FIELD = Pattern.compile("\"(\\w+)\": (-?[0-9.]+)");
+
+    private final Shape shape;
+    private final Path source;
+    private final Path config;
+    private final DeployEngine engine;
+    private final Random random;
+    private final List<Path> smallFiles = new ArrayList<>();
+    private final List<String> items = new ArrayList<>();
+    private final Map<String, PhaseStats> phases = new LinkedHashMap<>();
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    private final AtomicLong peakFds = new AtomicLong();
+    private volatile boolean sampling = true;
+
+    record Shape(int items, int files, int depth, int fanout, int meanSize, int large, int largeMb,
+                 int changePct, int cycles, int keep, int jobs, long seed) {
+        String toJson() {
+            return "{\"items\": " + items + ", \"files\": " + files + ", \"depth\": " + depth
+                    + ", \"fanout\": " + fanout + ", \"meanSize\": " + meanSize + ", \"large\": " + large
+                    + ", \"largeMb\": " + largeMb + ", \"changePct\": " + changePct + ", \"cycles\": " + cycles
+                    + ", \"keep\": " + keep + ", \"jobs\": " + jobs + ", \"seed\": " + seed + "}";
+        }
+    }
+
+    private record TreeSize(long files, long bytes) {
+    }
+
+    /** Accumulated over every run of one phase. */
+    private static final class PhaseStats {
+        final String name;
+        final List<Long> latencies = new ArrayList<>();
+        int runs;
+        int errors;
+        long wallMs;
+        long bytes;
+        long files;
+        long peakHeap;
+        long peakFds;
+
+        PhaseStats(String name) {
+            this.name = name;
+        }
+
+        long percentile(double p) {
+            if (latencies.isEmpty()) return 0;
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return sorted.get(Math.max(0, (int) Math.ceil(p / 100 * sorted.size()) - 1));
+        }
+
+        double mbPerSecond() {
+            return wallMs == 0 ? 0 : bytes / 1048576.0 / (wallMs / 1000.0);
+        }
+
+        double filesPerSecond() {
+            return wallMs == 0 ? 0 : files / (wallMs / 1000.0);
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT,
+                    "{\"phase\": %s, \"runs\": %d, \"ops\": %d, \"errors\": %d, \"wallMs\": %d, \"p50Ms\": %d,"
+                            + " \"p95Ms\": %d, \"p99Ms\": %d, \"maxMs\": %d, \"mbPerSec\": %.1f, \"filesPerSec\": %.0f,"
+                            + " \"peakHeapMb\": %d, \"peakFds\": %d}",
+                    Json.quote(name), runs, latencies.size(), errors, wallMs, percentile(50), percentile(95),
+                    percentile(99), percentile(100), mbPerSecond(), filesPerSecond(), peakHeap >> 20, peakFds);
+        }
+    }
+
+    LoadTest(Shape shape, Path workDir) {
+        this.shape = shape;
+        this.source = workDir.resolve("riverwm");
+        this.config = workDir.resolve("config");
+        this.engine = new DeployEngine(source.toFile(), config.toFile(),
+                DatabaseManager.forDirectory(config.resolve("backups").toString()));
+        this.random = new Random(shape.seed());
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) heapPools.add(pool);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int itemCount = 12, files = 20000, depth = 6, fanout = 8, size = 2048, large = 2, largeMb = 64;
+        int change = 5, cycles = 3, keep = 2, jobs = Runtime.getRuntime().availableProcessors();
+        long seed = 1;
+        Path dir = null, out = null, baseline = null;
+        boolean json = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--items" -> itemCount = Integer.parseInt(args[++i]);
+                case "--files" -> files = Integer.parseInt(args[++i]);
+                case "--depth" -> depth = Integer.parseInt(args[++i]);
+                case "--fanout" -> fanout = Integer.parseInt(args[++i]);
+                case "--size" -> size = Integer.parseInt(args[++i]);
+                case "--large" -> large = Integer.parseInt(args[++i]);
+                case "--large-mb" -> largeMb = Integer.parseInt(args[++i]);
+                case "--change" -> change = Integer.parseInt(args[++i]);
+                case "--cycles" -> cycles = Integer.parseInt(args[++i]);
+                case "--keep" -> keep = Integer.parseInt(args[++i]);
+                case "--jobs" -> jobs = Integer.parseInt(args[++i]);
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                case "--dir" -> dir = Path.of(args[++i]);
+                case "--out" -> out = Path.of(args[++i]);
+                case "--baseline" -> baseline = Path.of(args[++i]);
+                case "--json" -> json = true;
+                default -> {
+                    System.err.println("Usage: LoadTest [--items N] [--files N] [--depth N] [--fanout N] [--size BYTES]"
+                            + " [--large N] [--large-mb N] [--change PCT] [--cycles N] [--keep N] [--jobs N] [--seed N]"
+                            + " [--dir DIR] [--out FILE] [--baseline FILE] [--json]");
+                    System.exit(2);
+                }
+            }
+        }
+        if (large >= itemCount) {
+            System.err.println("--large must leave at least one directory item");
+            System.exit(2);
+        }
+        Shape shape = new Shape(itemCount, files, depth, fanout, size, large, largeMb, change, cycles,
+                Math.max(1, keep), jobs, seed);
+        boolean temporary = dir == null;
+        Path workDir = temporary ? Files.createTempDirectory("riverwm-loadtest") : Files.createDirectories(dir);
+        boolean failed;
+        try {
+            LoadTest test = new LoadTest(shape, workDir);
+            String report = test.run();
+            if (out != null) {
+                Files.writeString(out, report);
+            }
+            if (json) {
+                System.out.print(report);
+            } else {
+                test.printTable();
+            }
+            if (baseline != null) {
+                compare(Files.readString(baseline), report);
+            }
+            failed = test.phases.values().stream().anyMatch(p -> p.errors > 0);
+        } finally {
+            if (temporary) {
+                FileOps.deleteDirectory(workDir.toFile());
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    String run() throws IOException, SQLException {
+        Thread sampler = Thread.ofPlatform().daemon().name("loadtest-sampler").start(this::sample);
+        long start = System.nanoTime();
+        generate();
+        long generateMs = (System.nanoTime() - start) / 1_000_000;
+        TreeSize generated = treeSize(source);
+        status("Generated " + generated.files() + " files, " + (generated.bytes() >> 20) + " MB in " + generateMs + " ms");
+
+        Files.createDirectories(config);
+        measure("initialDeploy", generated, () -> engine.deploy(items, shape.jobs()));
+        for (int cycle = 1; cycle <= shape.cycles(); cycle++) {
+            status("Cycle " + cycle + "/" + shape.cycles());
+            mutate();
+            DeployPlan[] plan = new DeployPlan[1];
+            // The planner times the whole plan, not items: one sample per run
+            measure("plan", treeSize(source), () -> {
+                plan[0] = new DeployPlanner(engine).plan(items);
+                List<String> errors = new ArrayList<>();
+                for (DeployPlan.ItemPlan item : plan[0].items()) {
+                    if (item.error() != null) errors.add(item.item() + ": " + item.error());
+                }
+                return List.of(new DeployEngine.ItemResult("(all items)", "plan", errors.isEmpty(), null,
+                        String.join("; ", errors), plan[0].planMillis()));
+            });
+            long changedFiles = plan[0].items().stream().mapToLong(item -> item.changes().size()).sum();
+            measure("apply", new TreeSize(changedFiles, plan[0].totalBytes()),
+                    () -> engine.applyPlan(plan[0], shape.jobs()));
+
+            mutate();
+            measure("deploy", treeSize(source), () -> engine.deploy(items, shape.jobs()));
+            measure("restore", treeSize(config), this::restoreNewest);
+            measure("prune", new TreeSize(0, 0), () -> engine.prune(items, shape.keep(), shape.jobs()));
+        }
+        sampling = false;
+        sampler.interrupt();
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        StringBuilder json = new StringBuilder("{\"shape\": ").append(shape.toJson()).append(",\n")
+                .append("\"java\": ").append(Json.quote(Runtime.version().toString()))
+                .append(", \"os\": ").append(Json.quote(os.getName() + " " + os.getVersion()))
+                .append(", \"cpus\": ").append(os.getAvailableProcessors())
+                .append(", \"maxHeapMb\": ").append(Runtime.getRuntime().maxMemory() >> 20)
+                .append(", \"generateMs\": ").append(generateMs)
+                .append(", \"sourceFiles\": ").append(generated.files())
+                .append(", \"sourceBytes\": ").append(generated.bytes()).append(",\n\"phases\": [\n");
+        List<PhaseStats> all = new ArrayList<>(phases.values());
+        for (int i = 0; i < all.size(); i++) {
+            json.append("  ").append(all.get(i).toJson()).append(i + 1 < all.size() ? ",\n" : "\n");
+        }
+        long peakHeap = all.stream().mapToLong(p -> p.peakHeap).max().orElse(0);
+        long fds = all.stream().mapToLong(p -> p.peakFds).max().orElse(0);
+        return json.append("],\n\"peakHeapMb\": ").append(peakHeap >> 20)
+                .append(", \"peakFds\": ").append(fds).append("}\n").toString();
+    }
+
+    /** Runs one phase, recording wall time, item latencies, heap and descriptor peaks. */
+    private void measure(String name, TreeSize size, Supplier<List<DeployEngine.ItemResult>> action) {
+        PhaseStats stats = phases.computeIfAbsent(name, PhaseStats::new);
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        peakFds.set(openFds());
+        long start = System.nanoTime();
+        List<DeployEngine.ItemResult> results = action.get();
+        long wallMs = (System.nanoTime() - start) / 1_000_000;
+        long heap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            heap += pool.getPeakUsage().getUsed();
+        }
+        stats.runs++;
+        stats.wallMs += wallMs;
+        stats.peakHeap = Math.max(stats.peakHeap, heap);
+        stats.peakFds = Math.max(stats.peakFds, Math.max(peakFds.get(), openFds()));
+        if (size != null) {
+            stats.files += size.files();
+            stats.bytes += size.bytes();
+        }
+        for (DeployEngine.ItemResult result : results) {
+            stats.latencies.add(result.millis());
+            if (!result.success()) {
+                stats.errors++;
+                System.err.println("  " + name + " " + result.item() + ": " + result.message());
+            }
+        }
+    }
+
+    private List<DeployEngine.ItemResult> restoreNewest() {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(shape.jobs(), items.size())));
+        try {
+            List<Future<DeployEngine.ItemResult>> futures = new ArrayList<>();
+            for (String item : items) {
+                futures.add(pool.submit(() -> {
+                    List<BackupInfo> versions = engine.listVersions(item);
+                    if (versions.isEmpty()) {
+                        return new DeployEngine.ItemResult(item, "restore", false, null, "no backup", 0);
+                    }
+                    int newest = versions.stream().mapToInt(BackupInfo::getVersion).max().getAsInt();
+                    return engine.restoreVersion(item, newest);
+                }));
+            }
+            List<DeployEngine.ItemResult> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (InterruptedException | ExecutionException e) {
+                    results.add(new DeployEngine.ItemResult(items.get(i), "restore", false, null, String.valueOf(e), 0));
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Heap peaks come from the pools; descriptors can only be sampled
+    private void sample() {
+        while (sampling) {
+            peakFds.accumulateAndGet(openFds(), Math::max);
+            try {
+                Thread.sleep(SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static long openFds() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.UnixOperatingSystemMXBean unix) {
+            return unix.getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    private void generate() throws IOException {
+        int directoryItems = shape.items() - shape.large();
+        List<String> dirItems = new ArrayList<>();
+        for (int i = 0; i < directoryItems; i++) {
+            dirItems.add(String.format("item%02d", i));
+        }
+        items.addAll(dirItems);
+        for (int f = 0; f < shape.files(); f++) {
+            Path dir = source.resolve(dirItems.get(random.nextInt(directoryItems)));
+            int levels = random.nextInt(shape.depth() + 1);
+            for (int level = 0; level < levels; level++) {
+                dir = dir.resolve("d" + random.nextInt(shape.fanout()));
+            }
+            Path file = dir.resolve("f" + f + ".conf");
+            Files.createDirectories(dir);
+            writeSmall(file);
+            smallFiles.add(file);
+        }
+        for (int i = 0; i < shape.large(); i++) {
+            String name = String.format("wallpaper%02d.jpg", i);
+            writeLarge(source.resolve(name));
+            items.add(name);
+        }
+    }
+
+    /** Rewrites changePct percent of the small files with new content (and usually a new size). */
+    private void mutate() throws IOException {
+        int count = (int) ((long) smallFiles.size() * shape.changePct() / 100);
+        for (int i = 0; i < count; i++) {
+            writeSmall(smallFiles.get(random.nextInt(smallFiles.size())));
+        }
+    }
+
+    private void writeSmall(Path file) throws IOException {
+        int size = (int) Math.min(shape.meanSize() * 8L, (long) (-shape.meanSize() * Math.log(1 - random.nextDouble())));
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        Files.write(file, data);
+    }
+
+    private void writeLarge(Path file) throws IOException {
+        byte[] block = new byte[BLOCK];
+        random.nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long i = 0; i < (long) shape.largeMb(); i++) {
+                // Every block differs, so nothing downstream can dedupe them
+                for (int b = 0; b < 8; b++) {
+                    block[b] = (byte) (i >>> (8 * b));
+                }
+                out.write(block);
+            }
+        }
+    }
+
+    private static TreeSize treeSize(Path root) throws IOException {
+        long[] totals = new long[2];
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.getFileName().toString().equals("backups") || dir.getFileName().toString().startsWith(".")
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                totals[0]++;
+                totals[1] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return new TreeSize(totals[0], totals[1]);
+    }
+
+    private void printTable() {
+        System.out.printf("%-14s %4s %5s %4s %9s %7s %7s %7s %7s %8s %9s %8s %5s%n", "phase", "runs", "ops", "err",
+                "wall ms", "p50", "p95", "p99", "max", "MB/s", "files/s", "heap MB", "fds");
+        for (PhaseStats p : phases.values()) {
+            System.out.printf("%-14s %4d %5d %4d %9d %7d %7d %7d %7d %8.1f %9.0f %8d %5d%n", p.name, p.runs,
+                    p.latencies.size(), p.errors, p.wallMs, p.percentile(50), p.percentile(95), p.percentile(99),
+                    p.percentile(100), p.mbPerSecond(), p.filesPerSecond(), p.peakHeap >> 20, p.peakFds);
+        }
+    }
+
+    private static void status(String message) {
+        System.err.println("[" + message + "]");
+    }
+
+    /** Per phase, the change of the headline numbers against an earlier report of the same shape. */
+    static void compare(String baseline, String current) {
+        String baseShape = shapeOf(baseline);
+        if (!baseShape.equals(shapeOf(current))) {
+            System.out.println("Baseline shape differs, numbers are not comparable: " + baseShape);
+            return;
+        }
+        Map<String, Map<String, Double>> before = phaseFields(baseline);
+        Map<String, Map<String, Double>> after = phaseFields(current);
+        System.out.printf("%-14s %16s %16s %16s %16s%n", "vs baseline", "wall ms", "p95", "MB/s", "heap MB");
+        for (Map.Entry<String, Map<String, Double>> entry : after.entrySet()) {
+            Map<String, Double> old = before.get(entry.getKey());
+            if (old == null) continue;
+            StringBuilder line = new StringBuilder(String.format("%-14s", entry.getKey()));
+            for (String field : List.of("wallMs", "p95Ms", "mbPerSec", "peakHeapMb")) {
+                line.append(String.format(Locale.ROOT, " %16s",
+                        delta(old.getOrDefault(field, 0.0), entry.getValue().getOrDefault(field, 0.0))));
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static String delta(double before, double after) {
+        String change = before == 0 ? "" : String.format(Locale.ROOT, " (%+.0f%%)", (after - before) / before * 100);
+        return String.format(Locale.ROOT, "%.0f%s", after, change);
+    }
+
+    private static String shapeOf(String report) {
+        int start = report.indexOf("\"shape\": ");
+        return start < 0 ? "" : report.substring(start, report.indexOf('}', start) + 1);
+    }
+
+    // The report puts one phase per line
+    private static Map<String, Map<String, Double>> phaseFields(String report) {
+        Map<String, Map<String, Double>> result = new LinkedHashMap<>();
+        for (String line : report.split("\n")) {
+            int at = line.indexOf("\"phase\": \"");
+            if (at < 0) continue;
+            String name = line.substring(at + 10, line.indexOf('"', at + 10));
+            Map<String, Double> fields = new LinkedHashMap<>();
+            Matcher m = NUMBER_FIELD.matcher(line);
+            while (m.find()) {
+                fields.put(m.group(1), Double.parseDouble(m.group(2)));
+            }
+            result.put(name, fields);
+        }
+        return result;
+    }
+}
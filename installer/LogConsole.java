@@ -0,0 +1,200 @@
+import java.awt.*;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Document;
+
+/**
+ * Log view that can be fed from any thread.
+ *
+ * append() only pushes onto a lock-free queue. The first append after a
+ * flush schedules one Swing timer tick (~one frame later) that drains
+ * everything queued so far and inserts it into the document as a single
+ * string. Retained lines live in a fixed-size ring buffer; the document is
+ * trimmed from the top so it never grows past the same limit.
+ *
+ * The filter field shows only lines containing its text; the find field
+ * highlights the next match.
+ */
+public class LogConsole extends JPanel {
+    private static final int DEFAULT_MAX_LINES = 5000;
+    private static final int FLUSH_DELAY_MS = 16;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final javax.swing.Timer flushTimer;
+
+    // Ring buffer and view state below are only touched on the EDT
+    private final String[] ring;
+    private int head;
+    private int size;
+    private int shownLines;
+    private String filter = "";
+
+    private final JTextArea textArea;
+    private final JScrollPane scrollPane;
+    private final JTextField filterField;
+    private final JTextField findField;
+
+    public LogConsole(int rows, int columns) {
+        this(rows, columns, DEFAULT_MAX_LINES);
+    }
+
+    public LogConsole(int rows, int columns, int maxLines) {
+        super(new BorderLayout());
+        ring = new String[maxLines];
+
+        textArea = new JTextArea(rows, columns);
+        textArea.setEditable(false);
+        textArea.setFont(new Font("Monospaced", Font.PLAIN, 11));
+        scrollPane = new JScrollPane(textArea);
+        add(scrollPane, BorderLayout.CENTER);
+
+        JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 2));
+        filterField = new JTextField(14);
+        findField = new JTextField(14);
+        JButton findNextButton = new JButton("Next");
+        searchPanel.add(new JLabel("Filter:"));
+        searchPanel.add(filterField);
+        searchPanel.add(new JLabel("Find:"));
+        searchPanel.add(findField);
+        searchPanel.add(findNextButton);
+        add(searchPanel, BorderLayout.NORTH);
+
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { applyFilter(); }
+            public void removeUpdate(DocumentEvent e) { applyFilter(); }
+            public void changedUpdate(DocumentEvent e) { applyFilter(); }
+        });
+        findField.addActionListener(e -> findNext());
+        findNextButton.addActionListener(e -> findNext());
+
+        flushTimer = new javax.swing.Timer(FLUSH_DELAY_MS, e -> flush());
+        flushTimer.setRepeats(false);
+    }
+
+    /** Thread-safe. Multi-line messages are split into separate log lines. */
+    public void append(String message) {
+        for (String line : message.split("\n", -1)) {
+            pending.add(line);
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(flushTimer::restart);
+        }
+    }
+
+    /** Thread-safe. Drops retained and queued lines. */
+    public void clear() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(this::clear);
+            return;
+        }
+        pending.clear();
+        head = 0;
+        size = 0;
+        shownLines = 0;
+        textArea.setText("");
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        StringBuilder batch = new StringBuilder();
+        int added = 0;
+        String line;
+        while ((line = pending.poll()) != null) {
+            store(line);
+            if (matches(line)) {
+                batch.append(line).append('\n');
+                added++;
+            }
+        }
+        if (added == 0) return;
+
+        boolean atBottom = isScrolledToBottom();
+        Document doc = textArea.getDocument();
+        try {
+            doc.insertString(doc.getLength(), batch.toString(), null);
+            shownLines += added;
+            if (shownLines > ring.length) {
+                int excess = shownLines - ring.length;
+                doc.remove(0, textArea.getLineStartOffset(excess));
+                shownLines -= excess;
+            }
+        } catch (BadLocationException e) {
+            rebuildView();
+        }
+        if (atBottom) {
+            textArea.setCaretPosition(doc.getLength());
+        }
+    }
+
+    private void store(String line) {
+        int tail = (head + size) % ring.length;
+        ring[tail] = line;
+        if (size < ring.length) {
+            size++;
+        } else {
+            head = (head + 1) % ring.length;
+        }
+    }
+
+    private boolean matches(String line) {
+        return filter.isEmpty() || line.toLowerCase(Locale.ROOT).contains(filter);
+    }
+
+    private void applyFilter() {
+        filter = filterField.getText().trim().toLowerCase(Locale.ROOT);
+        rebuildView();
+    }
+
+    private void rebuildView() {
+        StringBuilder text = new StringBuilder();
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            String line = ring[(head + i) % ring.length];
+            if (matches(line)) {
+                text.append(line).append('\n');
+                count++;
+            }
+        }
+        textArea.setText(text.toString());
+        shownLines = count;
+        textArea.setCaretPosition(textArea.getDocument().getLength());
+    }
+
+    private void findNext() {
+        String needle = findField.getText().toLowerCase(Locale.ROOT);
+        textArea.getHighlighter().removeAllHighlights();
+        if (needle.isEmpty()) return;
+
+        String haystack = textArea.getText().toLowerCase(Locale.ROOT);
+        int from = textArea.getCaretPosition();
+        int index = haystack.indexOf(needle, from);
+        if (index < 0) {
+            index = haystack.indexOf(needle); // wrap around
+        }
+        if (index < 0) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        try {
+            textArea.getHighlighter().addHighlight(index, index + needle.length(),
+                    DefaultHighlighter.DefaultPainter);
+            textArea.setCaretPosition(index + needle.length());
+            Rectangle r = textArea.modelToView2D(index).getBounds();
+            textArea.scrollRectToVisible(r);
+        } catch (BadLocationException e) {
+            // Text changed underneath us; the next search starts fresh
+        }
+    }
+
+    private boolean isScrolledToBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+    }
+}
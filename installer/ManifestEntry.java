@@ -0,0 +1,10 @@
+/**
+ * One file of a backup version as recorded in backup_files. relPath is
+ * '/'-separated and "" for single-file backups. A packed file has no copy
+ * on disk; its content is in backup_content under sha256.
+ */
+public record ManifestEntry(String relPath, long size, String sha256, boolean packed) {
+    public ManifestEntry(String relPath, long size, String sha256) {
+        this(relPath, size, sha256, false);
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers, counters and histograms for the installer hot paths.
+ *
+ * Collection is off unless -Dinstaller.metrics=true or
+ * -Dinstaller.metrics.dump=<file> is given. ENABLED is a static final, so
+ * the JIT drops the collection code entirely when it is off. Timed spans
+ * are also emitted as InstallerSpanEvent for JDK Flight Recorder; that
+ * costs an allocation the JIT can scalar-replace when no recording runs.
+ *
+ * With installer.metrics.dump the metrics are written at JVM exit, as
+ * Prometheus text when the file name ends in .prom, as JSON otherwise.
+ */
+public final class Metrics {
+    private static final String DUMP_PATH = System.getProperty("installer.metrics.dump");
+    private static final boolean ENABLED = Boolean.getBoolean("installer.metrics") || DUMP_PATH != null;
+
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Span NOOP = new Span(null, null, null);
+
+    static {
+        if (DUMP_PATH != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    dump(Path.of(DUMP_PATH));
+                } catch (IOException e) {
+                    System.err.println("Metrics dump failed: " + e.getMessage());
+                }
+            }, "metrics-dump"));
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /** Starts a timed span; close it (try-with-resources) to record it. */
+    public static Span time(String name, String detail) {
+        InstallerSpanEvent event = new InstallerSpanEvent();
+        if (!ENABLED && !event.isEnabled()) {
+            return NOOP;
+        }
+        event.begin();
+        return new Span(name, detail, event);
+    }
+
+    public static void count(String name) {
+        count(name, 1);
+    }
+
+    public static void count(String name, long delta) {
+        if (ENABLED) {
+            COUNTERS.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+        }
+    }
+
+    /** Records a non-duration value (bytes, file counts) into a histogram. */
+    public static void record(String name, long value) {
+        if (ENABLED) {
+            HISTOGRAMS.computeIfAbsent(name, k -> new Histogram()).record(value);
+        }
+    }
+
+    public static final class Span implements AutoCloseable {
+        private final String name;
+        private final String detail;
+        private final InstallerSpanEvent event;
+        private final long startNanos;
+        private boolean failed;
+
+        private Span(String name, String detail, InstallerSpanEvent event) {
+            this.name = name;
+            this.detail = detail;
+            this.event = event;
+            this.startNanos = event == null ? 0 : System.nanoTime();
+        }
+
+        /** Marks the span as failed; counted as <name>.errors. */
+        public void fail() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            if (event == null) {
+                return;
+            }
+            if (ENABLED) {
+                record(name + ".nanos", System.nanoTime() - startNanos);
+                if (failed) {
+                    count(name + ".errors");
+                }
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.span = name;
+                event.detail = detail;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    /** Power-of-two buckets: bucket i holds values in [2^(i-1), 2^i). */
+    private static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+            count.increment();
+            sum.add(v);
+            max.accumulate(v);
+        }
+
+        /** Smallest bucket upper bound that covers the given fraction of samples. */
+        long percentile(double fraction) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long threshold = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= threshold) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        static long upperBound(int bucket) {
+            return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket);
+        }
+    }
+
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder("{\n  \"counters\": {");
+        String sep = "\n";
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(COUNTERS).entrySet()) {
+            sb.append(sep).append("    ").append(Json.quote(e.getKey())).append(": ").append(e.getValue().sum());
+            sep = ",\n";
+        }
+        sb.append("\n  },\n  \"histograms\": {");
+        sep = "\n";
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            Histogram h = e.getValue();
+            sb.append(sep).append("    ").append(Json.quote(e.getKey())).append(": {")
+                    .append("\"count\": ").append(h.count.sum())
+                    .append(", \"sum\": ").append(h.sum.sum())
+                    .append(", \"max\": ").append(h.max.get())
+                    .append(", \"p50\": ").append(h.percentile(0.50))
+                    .append(", \"p90\": ").append(h.percentile(0.90))
+                    .append(", \"p99\": ").append(h.percentile(0.99))
+                    .append("}");
+            sep = ",\n";
+        }
+        return sb.append("\n  }\n}\n").toString();
+    }
+
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(COUNTERS).entrySet()) {
+            String name = promName(e.getKey()) + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            String name = promName(e.getKey());
+            Histogram h = e.getValue();
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < h.buckets.length - 1; i++) {
+                long inBucket = h.buckets[i].sum();
+                if (inBucket == 0 && cumulative == 0) continue;
+                cumulative += inBucket;
+                // Bucket i holds values < 2^i, i.e. <= 2^i - 1
+                sb.append(name).append("_bucket{le=\"").append(Histogram.upperBound(i) - 1).append("\"} ")
+                        .append(cumulative).append('\n');
+                if (cumulative == h.count.sum()) break;
+            }
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(h.count.sum()).append('\n');
+            sb.append(name).append("_sum ").append(h.sum.sum()).append('\n');
+            sb.append(name).append("_count ").append(h.count.sum()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String promName(String name) {
+        return "riverwm_installer_" + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    public static void dump(Path file) throws IOException {
+        String text = file.getFileName().toString().endsWith(".prom") ? toPrometheus() : toJson();
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(file, text, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deploys the same source checkout to several homes at once (other user
+ * accounts on a shared machine, or a staged chroot's /home/<user>).
+ *
+ * Each home is its own DeployEngine: config directory <home>/.config and
+ * backup store <home>/.config/backups, so backups and history stay with
+ * the home they were taken from. The source side is shared: the first
+ * (home, item) task that needs an item reads and hashes its files once,
+ * and every home is written from that copy, which is dropped when the
+ * item's last home is done. Files over CACHE_LIMIT are hashed once but
+ * copied from disk per home.
+ *
+ * A home whose item already matches the source (same files, sizes and
+ * hashes) is left alone and not backed up. Each home's run has its own
+ * DeployJournal and holds that home's item locks until it commits or rolls
+ * back: a failure rolls back that home only. When the process runs as a
+ * different user than the home's owner (root deploying for others), what
+ * was written, backups included, is handed to the owner afterwards.
+ */
+public class MultiHomeDeployer {
+    private static final int CACHE_LIMIT = 4 * 1024 * 1024;
+
+    private final File sourceDir;
+    private final List<File> homes;
+    private final List<DeployEngine> engines = new ArrayList<>();
+    private final Map<String, CompletableFuture<SourceItem>> sourceCache = new ConcurrentHashMap<>();
+
+    /** A source file as read once: data is null for files over CACHE_LIMIT. */
+    private record SourceFile(String relPath, Path path, long size, String sha256, byte[] data,
+                              Set<PosixFilePermission> permissions) {
+    }
+
+    private record SourceItem(boolean directory, Map<String, SourceFile> files, List<String> dirs) {
+    }
+
+    public record TargetResult(File home, List<DeployEngine.ItemResult> results) {
+    }
+
+    public MultiHomeDeployer(File sourceDir, List<File> homes) {
+        this.sourceDir = sourceDir;
+        this.homes = List.copyOf(homes);
+        for (File home : homes) {
+            engines.add(DeployEngine.forHome(sourceDir, home));
+        }
+    }
+
+    /** Versions kept per item in every home's store, counting the new one. */
+    public void setRetainVersions(int retainVersions) {
+        engines.forEach(engine -> engine.setRetainVersions(retainVersions));
+    }
+
+    /**
+     * Deploys items to every home, up to jobs (home, item) pairs at a time.
+     * Tasks are ordered item by item, so all homes are written from one
+     * item's cached files before the next item is read.
+     */
+    public List<TargetResult> deploy(List<String> items, int jobs) {
+        try (Metrics.Span span = Metrics.time("multiHomeDeploy", homes.size() + " homes, " + items.size() + " items")) {
+            engines.forEach(DeployEngine::ensureBaseDirs);
+            List<ItemLocks.Lease> leases = new ArrayList<>(Collections.nCopies(homes.size(), null));
+            List<DeployJournal> journals = new ArrayList<>(Collections.nCopies(homes.size(), null));
+            List<String> journalErrors = new ArrayList<>(Collections.nCopies(homes.size(), null));
+            // Stores are locked in path order, so runs over overlapping homes cannot deadlock
+            List<Integer> lockOrder = new ArrayList<>();
+            for (int h = 0; h < homes.size(); h++) {
+                lockOrder.add(h);
+            }
+            lockOrder.sort(Comparator.comparing(h -> engines.get(h).getDatabase().getStoreDir()));
+            for (int h : lockOrder) {
+                try {
+                    leases.set(h, engines.get(h).lockItems(items));
+                    journals.set(h, DeployJournal.begin(engines.get(h)));
+                } catch (IOException e) {
+                    journalErrors.set(h, (leases.get(h) == null ? "" : "deploy journal: ") + e.getMessage());
+                }
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, items.size() * homes.size())));
+            Map<Integer, List<Future<DeployEngine.ItemResult>>> byHome = new HashMap<>();
+            // Homes still to deploy each item; the last one drops the item from sourceCache
+            Map<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+            for (String item : items) {
+                pending.computeIfAbsent(item, k -> new AtomicInteger()).addAndGet(homes.size());
+            }
+            try {
+                for (String item : items) {
+                    for (int h = 0; h < homes.size(); h++) {
+                        DeployEngine engine = engines.get(h);
+                        DeployJournal journal = journals.get(h);
+                        String error = journalErrors.get(h);
+                        byHome.computeIfAbsent(h, k -> new ArrayList<>()).add(pool.submit(() -> {
+                            try {
+                                return error != null
+                                        ? new DeployEngine.ItemResult(item, "deploy", false, null, error, 0)
+                                        : deployItem(engine, journal, item);
+                            } finally {
+                                if (pending.get(item).decrementAndGet() == 0) {
+                                    sourceCache.remove(item);
+                                }
+                            }
+                        }));
+                    }
+                }
+                List<TargetResult> results = new ArrayList<>();
+                for (int h = 0; h < homes.size(); h++) {
+                    List<DeployEngine.ItemResult> itemResults = new ArrayList<>();
+                    List<Future<DeployEngine.ItemResult>> futures = byHome.getOrDefault(h, List.of());
+                    for (int i = 0; i < futures.size(); i++) {
+                        itemResults.add(await(futures.get(i), items.get(i)));
+                    }
+                    if (journals.get(h) != null) {
+                        itemResults = DeployEngine.finishRun(journals.get(h), itemResults);
+                    }
+                    results.add(new TargetResult(homes.get(h), itemResults));
+                }
+                for (int h = 0; h < homes.size(); h++) {
+                    adoptOwnership(homes.get(h), engines.get(h), items);
+                }
+                if (results.stream().anyMatch(target -> target.results().stream().anyMatch(r -> !r.success()))) {
+                    span.fail();
+                }
+                return results;
+            } finally {
+                pool.shutdown();
+                for (DeployJournal journal : journals) {
+                    closeQuietly(journal);
+                }
+                for (ItemLocks.Lease lease : leases) {
+                    if (lease != null) lease.close();
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(DeployJournal journal) {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Deploy journal " + journal.getRunId() + ": " + e.getMessage());
+        }
+    }
+
+    private static DeployEngine.ItemResult await(Future<DeployEngine.ItemResult> future, String item) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new DeployEngine.ItemResult(item, "deploy", false, null, "interrupted", 0);
+        } catch (ExecutionException e) {
+            return new DeployEngine.ItemResult(item, "deploy", false, null, String.valueOf(e.getCause()), 0);
+        }
+    }
+
+    private DeployEngine.ItemResult deployItem(DeployEngine engine, DeployJournal journal, String item) {
+        long start = System.nanoTime();
+        Path target = engine.getTargetFile(item).toPath();
+        String backupPath = null;
+        try {
+            if (engine.isBackupStore(item)) {
+                throw new IOException("refusing to overwrite the backup store " + target);
+            }
+            SourceItem source = sourceItem(item);
+            boolean linked = Files.isSymbolicLink(target);
+            if (!linked && matches(source, target)) {
+                Metrics.count("multiHome.unchanged");
+                return new DeployEngine.ItemResult(item, "deploy", true, null, "Unchanged", elapsedMs(start));
+            }
+            if (!linked && Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                backupPath = engine.backupItem(item, journal);
+            }
+            journal.stage(item, target);
+            write(source, target);
+            journal.done(item);
+            return new DeployEngine.ItemResult(item, "deploy", true, backupPath,
+                    "Written " + source.files().size() + " file(s) to " + target, elapsedMs(start));
+        } catch (IOException | SQLException e) {
+            return new DeployEngine.ItemResult(item, "deploy", false, backupPath, e.getMessage(), elapsedMs(start));
+        } catch (CompletionException e) {
+            return new DeployEngine.ItemResult(item, "deploy", false, backupPath,
+                    String.valueOf(e.getCause().getMessage()), elapsedMs(start));
+        }
+    }
+
+    /** The item's files, read by whichever task asks first; the others wait for that read. */
+    private SourceItem sourceItem(String item) {
+        CompletableFuture<SourceItem> mine = new CompletableFuture<>();
+        CompletableFuture<SourceItem> existing = sourceCache.putIfAbsent(item, mine);
+        if (existing != null) {
+            Metrics.count("sourceCache.hits");
+            return existing.join();
+        }
+        try (Metrics.Span span = Metrics.time("readSource", item)) {
+            try {
+                mine.complete(readSource(new File(sourceDir, item)));
+            } catch (IOException e) {
+                span.fail();
+                mine.completeExceptionally(e);
+            }
+        }
+        return mine.join();
+    }
+
+    private static SourceItem readSource(File root) throws IOException {
+        if (!root.exists()) {
+            throw new IOException("not found in " + root.getParent());
+        }
+        Path rootPath = root.toPath();
+        Map<String, SourceFile> files = new HashMap<>();
+        List<String> dirs = new ArrayList<>();
+        for (Map.Entry<String, FileOps.FileMeta> entry : FileOps.walkFiles(rootPath, true, dirs).entrySet()) {
+            String rel = entry.getKey();
+            files.put(rel, readFile(DeployPlanner.resolve(rootPath, rel), rel, entry.getValue().size()));
+        }
+        return new SourceItem(root.isDirectory(), files, dirs);
+    }
+
+    private static SourceFile readFile(Path path, String rel, long size) throws IOException {
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+        if (size > CACHE_LIMIT) {
+            return new SourceFile(rel, path, size, ContentHasher.hash(path), null, permissions);
+        }
+        byte[] data = Files.readAllBytes(path);
+        if (Metrics.isEnabled()) {
+            Metrics.count("sourceCache.bytes", data.length);
+        }
+        return new SourceFile(rel, path, data.length, ContentHasher.hashBytes(data), data, permissions);
+    }
+
+    /** True if target holds exactly the source's files with the same content. */
+    private static boolean matches(SourceItem source, Path target) throws IOException {
+        if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS) || Files.isDirectory(target) != source.directory()) {
+            return false;
+        }
+        Map<String, FileOps.FileMeta> targetFiles = FileOps.walkFiles(target, false);
+        if (!targetFiles.keySet().equals(source.files().keySet())) {
+            return false;
+        }
+        for (SourceFile file : source.files().values()) {
+            if (targetFiles.get(file.relPath()).size() != file.size()) {
+                return false;
+            }
+        }
+        for (SourceFile file : source.files().values()) {
+            Path path = DeployPlanner.resolve(target, file.relPath());
+            long modified = targetFiles.get(file.relPath()).modified();
+            if (!ContentHasher.hash(path, file.size(), modified).equals(file.sha256())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(SourceItem source, Path target) throws IOException {
+        Files.createDirectories(source.directory() ? target : target.getParent());
+        for (String dir : source.dirs()) {
+            Files.createDirectories(target.resolve(dir));
+        }
+        for (SourceFile file : source.files().values()) {
+            Path to = DeployPlanner.resolve(target, file.relPath());
+            if (file.data() != null) {
+                Files.write(to, file.data());
+            } else {
+                Files.copy(file.path(), to, StandardCopyOption.REPLACE_EXISTING);
+            }
+            setPermissions(to, file.permissions());
+            if (Metrics.isEnabled()) {
+                Metrics.count("files.copied");
+                Metrics.count("bytes.copied", file.size());
+            }
+        }
+    }
+
+    // Not through symlinks: a link in the target must not change the file it points to
+    private static void setPermissions(Path path, Set<PosixFilePermission> permissions) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (!view.readAttributes().isSymbolicLink()) {
+            view.setPermissions(permissions);
+        }
+    }
+
+    /**
+     * Gives the home's owner what this run created for them: the deployed
+     * items and the backup store. Nothing to do when deploying to one's own
+     * home; without root, chown fails and is reported once.
+     */
+    private static void adoptOwnership(File home, DeployEngine engine, List<String> items) {
+        try {
+            UserPrincipal owner = Files.getOwner(home.toPath());
+            if (owner.getName().equals(System.getProperty("user.name"))) {
+                return;
+            }
+            List<Path> roots = new ArrayList<>();
+            roots.add(engine.getConfigDir().toPath());
+            for (String item : items) {
+                roots.add(engine.getTargetFile(item).toPath());
+            }
+            roots.add(Path.of(engine.getDatabase().getStoreDir()));
+            for (Path root : roots) {
+                if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) continue;
+                if (root.equals(engine.getConfigDir().toPath())) {
+                    chown(root, owner);
+                    continue;
+                }
+                Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        chown(dir, owner);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        chown(file, owner);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.println("Could not hand " + home + " files to their owner: " + e.getMessage());
+        }
+    }
+
+    // Symlinks are skipped: handing over the link's target could give away files outside the home
+    private static void chown(Path path, UserPrincipal owner) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        PosixFileAttributes attrs = view.readAttributes();
+        if (!attrs.isSymbolicLink() && !attrs.owner().equals(owner)) {
+            view.setOwner(owner);
+        }
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
@@ -0,0 +1,444 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Download phase of a two-phase package transaction.
+ *
+ * resolve() asks xbps which archives a transaction needs (xbps-install -n)
+ * and their repodata checksums (xbps-query -R -p filename-sha256). fetch()
+ * then downloads them into a staging cache, jobs at a time, hashing each
+ * archive while it streams and moving it into place only if the hash
+ * matches. The install phase is a single xbps-install --cachedir over the
+ * staging cache, which finds every archive and downloads nothing.
+ *
+ * Downloads run as the user; only the install needs root. Repositories
+ * may be http(s):// URLs, file:// URLs or plain paths.
+ *
+ * Self-test against a loopback HTTP or file:// repository stand-in:
+ *   java -cp "lib/*:." PackageFetcher --selftest [--file] [--jobs N] [--files N] [--size KB] [--latency MS]
+ * --latency delays each HTTP response, standing in for a mirror's round trip.
+ */
+public class PackageFetcher {
+    public static final int DEFAULT_JOBS = 4;
+    public static final Path DEFAULT_CACHE = Path.of(System.getProperty("user.home"), ".cache", "riverwm", "xbps");
+
+    private static final Duration QUERY_TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(15);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Download actions of xbps-install -n; remove/hold/configure need no archive
+    private static final List<String> FETCH_ACTIONS = List.of("install", "update", "reinstall", "downgrade", "download");
+
+    /** One archive of a transaction, as xbps-install -n reports it plus its repodata checksum. */
+    public record PackageFile(String pkgver, String arch, String repository, long size, String sha256) {
+        public String fileName() {
+            return pkgver + "." + arch + ".xbps";
+        }
+    }
+
+    public record FileResult(PackageFile pkg, boolean success, boolean cached, long bytes, long millis, String message) {
+        public String toJson() {
+            return "{\"pkgver\": " + Json.quote(pkg.pkgver())
+                    + ", \"success\": " + success
+                    + ", \"cached\": " + cached
+                    + ", \"bytes\": " + bytes
+                    + ", \"millis\": " + millis
+                    + ", \"message\": " + Json.quote(message) + "}";
+        }
+    }
+
+    public record Report(List<FileResult> files, long bytes, long millis, int jobs) {
+        public boolean success() {
+            return files.stream().allMatch(FileResult::success);
+        }
+
+        /** Downloaded bytes (cache hits excluded) over the wall time of the phase. */
+        public double megabytesPerSecond() {
+            return millis == 0 ? 0 : bytes / 1_048_576.0 / (millis / 1000.0);
+        }
+
+        public String describe() {
+            long cached = files.stream().filter(FileResult::cached).count();
+            long failed = files.stream().filter(result -> !result.success()).count();
+            return "Fetched " + (files.size() - cached - failed) + " archive(s), " + cached + " already cached, "
+                    + failed + " failed: " + DeployPlan.formatBytes(bytes) + " in " + millis + " ms ("
+                    + String.format("%.1f", megabytesPerSecond()) + " MB/s, " + jobs + " parallel)";
+        }
+
+        public String toJson() {
+            return "{\"files\": " + files.size()
+                    + ", \"bytes\": " + bytes
+                    + ", \"millis\": " + millis
+                    + ", \"jobs\": " + jobs
+                    + ", \"mbPerSecond\": " + String.format("%.2f", megabytesPerSecond())
+                    + ", \"success\": " + success() + "}";
+        }
+    }
+
+    private final Path cacheDir;
+    private final HttpClient http;
+    private final Consumer<String> log;
+    private volatile boolean cancelled;
+
+    public PackageFetcher(Path cacheDir, Consumer<String> log) {
+        this.cacheDir = cacheDir;
+        this.log = log;
+        this.http = HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    public Path getCacheDir() {
+        return cacheDir;
+    }
+
+    /** Stops starting new downloads; the ones in flight stop at their next read. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Archives the transaction for packages needs, from the local copy of
+     * the repository index. Checksums are looked up concurrently.
+     */
+    public static List<PackageFile> resolve(List<String> packages) throws IOException, InterruptedException {
+        List<String[]> planned = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        try (Metrics.Span span = Metrics.time("resolveTransaction", String.join(" ", packages))) {
+            List<String> cmd = new ArrayList<>(List.of("xbps-install", "-n"));
+            cmd.addAll(packages);
+            ProcessRunner.Result result = ProcessRunner.run(cmd, QUERY_TIMEOUT, line -> {
+                if (line.isError()) {
+                    errors.add(line.text());
+                    return;
+                }
+                // pkgver action arch repository [installed-size download-size]
+                String[] parts = line.text().trim().split("\\s+");
+                if (parts.length >= 4 && FETCH_ACTIONS.contains(parts[1])) {
+                    planned.add(parts);
+                }
+            });
+            if (!result.succeeded()) {
+                span.fail();
+                throw new IOException("xbps-install -n " + result.describe()
+                        + (errors.isEmpty() ? "" : ": " + String.join("; ", errors)));
+            }
+
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<PackageFile>> futures = new ArrayList<>();
+                for (String[] parts : planned) {
+                    futures.add(executor.submit(() -> lookup(parts)));
+                }
+                List<PackageFile> files = new ArrayList<>();
+                for (Future<PackageFile> future : futures) {
+                    try {
+                        files.add(future.get());
+                    } catch (ExecutionException e) {
+                        span.fail();
+                        throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                    }
+                }
+                return files;
+            }
+        }
+    }
+
+    private static PackageFile lookup(String[] parts) throws IOException, InterruptedException {
+        String pkgver = parts[0];
+        List<String> values = new ArrayList<>();
+        ProcessRunner.Result result = ProcessRunner.run(
+                List.of("xbps-query", "-R", "-p", "filename-sha256,filename-size", pkgver), QUERY_TIMEOUT, line -> {
+                    if (!line.isError()) values.add(line.text().trim());
+                });
+        if (!result.succeeded() || values.isEmpty() || values.get(0).isEmpty()) {
+            throw new IOException("no repodata checksum for " + pkgver);
+        }
+        long size = values.size() > 1 ? parseLong(values.get(1)) : -1;
+        return new PackageFile(pkgver, parts[2], parts[3], size, values.get(0));
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public Report fetch(List<PackageFile> files, int jobs) throws IOException {
+        Files.createDirectories(cacheDir);
+        int parallel = Math.max(1, Math.min(jobs, files.size()));
+        long start = System.nanoTime();
+        try (Metrics.Span span = Metrics.time("fetchPackages", files.size() + " archives")) {
+            ExecutorService pool = Executors.newFixedThreadPool(parallel);
+            try {
+                List<Future<FileResult>> futures = new ArrayList<>();
+                for (PackageFile file : files) {
+                    futures.add(pool.submit(() -> fetchOne(file)));
+                }
+                List<FileResult> results = new ArrayList<>();
+                long bytes = 0;
+                for (int i = 0; i < futures.size(); i++) {
+                    FileResult result;
+                    try {
+                        result = futures.get(i).get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        cancel();
+                        result = new FileResult(files.get(i), false, false, 0, 0, "interrupted");
+                    } catch (ExecutionException e) {
+                        result = new FileResult(files.get(i), false, false, 0, 0, String.valueOf(e.getCause()));
+                    }
+                    if (!result.cached()) bytes += result.bytes();
+                    results.add(result);
+                }
+                Report report = new Report(results, bytes, (System.nanoTime() - start) / 1_000_000, parallel);
+                if (!report.success()) span.fail();
+                Metrics.count("fetch.bytes", bytes);
+                return report;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private FileResult fetchOne(PackageFile pkg) {
+        long start = System.nanoTime();
+        Path target = cacheDir.resolve(pkg.fileName());
+        if (cancelled) {
+            return new FileResult(pkg, false, false, 0, 0, "cancelled");
+        }
+        try {
+            if (Files.isRegularFile(target) && ContentHasher.hash(target).equalsIgnoreCase(pkg.sha256())) {
+                Metrics.count("fetch.cached");
+                return new FileResult(pkg, true, true, Files.size(target), elapsedMs(start), "already in cache");
+            }
+            Path part = cacheDir.resolve(pkg.fileName() + ".part");
+            String sha;
+            long bytes;
+            try (InputStream in = open(pkg.repository(), pkg.fileName());
+                 OutputStream out = Files.newOutputStream(part)) {
+                MessageDigest digest = ContentHasher.newDigest();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                bytes = 0;
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    if (cancelled) {
+                        throw new IOException("cancelled");
+                    }
+                    digest.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    bytes += n;
+                }
+                sha = HexFormat.of().formatHex(digest.digest());
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(part);
+                throw e;
+            }
+            if (!sha.equalsIgnoreCase(pkg.sha256())) {
+                Files.deleteIfExists(part);
+                Metrics.count("fetch.checksumMismatch");
+                return new FileResult(pkg, false, false, bytes, elapsedMs(start),
+                        "checksum mismatch: got " + sha + ", repodata has " + pkg.sha256());
+            }
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            fetchSignature(pkg);
+            long millis = elapsedMs(start);
+            log.accept("Fetched " + pkg.fileName() + " (" + DeployPlan.formatBytes(bytes) + ", " + millis + " ms)");
+            return new FileResult(pkg, true, false, bytes, millis, "verified");
+        } catch (IOException e) {
+            return new FileResult(pkg, false, false, 0, elapsedMs(start), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new FileResult(pkg, false, false, 0, elapsedMs(start), "interrupted");
+        }
+    }
+
+    /**
+     * xbps checks the archive signature of a remote repository next to the
+     * archive in the cache. Newer repositories sign with .sig2, older ones
+     * with .sig; local repositories usually have neither.
+     */
+    private void fetchSignature(PackageFile pkg) throws InterruptedException {
+        for (String suffix : List.of(".sig2", ".sig")) {
+            String name = pkg.fileName() + suffix;
+            try (InputStream in = open(pkg.repository(), name)) {
+                Path part = cacheDir.resolve(name + ".part");
+                Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(part, cacheDir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                return;
+            } catch (IOException e) {
+                // Try the other format; an unsigned local repository has none
+            }
+        }
+    }
+
+    private InputStream open(String repository, String name) throws IOException, InterruptedException {
+        if (repository.startsWith("http://") || repository.startsWith("https://")) {
+            URI uri = URI.create(repository.endsWith("/") ? repository + name : repository + "/" + name);
+            HttpResponse<InputStream> response = http.send(HttpRequest.newBuilder(uri).GET().build(),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() != 200) {
+                response.body().close();
+                throw new IOException(uri + ": HTTP " + response.statusCode()
+                        + (response.statusCode() == 404 ? " (repository index out of date? run xbps-install -S)" : ""));
+            }
+            return response.body();
+        }
+        Path dir = repository.startsWith("file:") ? Path.of(URI.create(repository)) : Path.of(repository);
+        try {
+            return Files.newInputStream(dir.resolve(name));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(dir.resolve(name) + " not found");
+        }
+    }
+
+    /** Install command for the second phase: everything from the staging cache, one transaction. */
+    public List<String> installCommand(List<String> packages) {
+        List<String> cmd = new ArrayList<>(List.of("xbps-install", "-y", "--cachedir", cacheDir.toString()));
+        cmd.addAll(packages);
+        return cmd;
+    }
+
+    /** Deletes archives of completed transactions from the staging cache. */
+    public void clean(List<PackageFile> files) {
+        for (PackageFile file : files) {
+            for (String suffix : List.of("", ".sig2", ".sig")) {
+                try {
+                    Files.deleteIfExists(cacheDir.resolve(file.fileName() + suffix));
+                } catch (IOException e) {
+                    // Left for the next clean
+                }
+            }
+        }
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean selfTest = false;
+        boolean fileRepo = false;
+        int jobs = DEFAULT_JOBS;
+        int count = 32;
+        int sizeKb = 2048;
+        int latencyMs = 0;
+        List<String> packages = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--selftest" -> selfTest = true;
+                case "--file" -> fileRepo = true;
+                case "--jobs" -> jobs = Integer.parseInt(args[++i]);
+                case "--files" -> count = Integer.parseInt(args[++i]);
+                case "--size" -> sizeKb = Integer.parseInt(args[++i]);
+                case "--latency" -> latencyMs = Integer.parseInt(args[++i]);
+                default -> packages.add(args[i]);
+            }
+        }
+        if (selfTest) {
+            System.exit(selfTest(fileRepo, jobs, count, sizeKb, latencyMs) ? 0 : 1);
+        }
+        if (packages.isEmpty()) {
+            System.err.println("Usage: PackageFetcher [--jobs N] packages... | --selftest [--file] [--jobs N] [--files N] [--size KB] [--latency MS]");
+            System.exit(2);
+        }
+        // Download only: what the package installer's first phase does
+        PackageFetcher fetcher = new PackageFetcher(DEFAULT_CACHE, System.out::println);
+        Report report = fetcher.fetch(resolve(packages), jobs);
+        System.out.println(report.describe());
+        System.exit(report.success() ? 0 : 1);
+    }
+
+    /**
+     * Builds a repository of random archives in a temp directory, serves it
+     * on loopback (or as file://) and fetches it. One archive's published
+     * checksum is wrong on purpose: the run passes only if exactly that one
+     * is rejected. A second fetch must then come entirely from cache.
+     */
+    private static boolean selfTest(boolean fileRepo, int jobs, int count, int sizeKb, int latencyMs)
+            throws IOException {
+        Path root = Files.createTempDirectory("fetch-selftest");
+        Path repoDir = Files.createDirectories(root.resolve("repo"));
+        List<PackageFile> files = new ArrayList<>();
+        byte[] data = new byte[sizeKb * 1024];
+        HttpServer server = null;
+        try {
+            String repository = repoDir.toUri().toString();
+            if (!fileRepo) {
+                server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+                server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+                server.createContext("/", exchange -> {
+                    try {
+                        Thread.sleep(latencyMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    Path file = repoDir.resolve(exchange.getRequestURI().getPath().substring(1)).normalize();
+                    if (!file.startsWith(repoDir) || !Files.isRegularFile(file)) {
+                        exchange.sendResponseHeaders(404, -1);
+                        exchange.close();
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, Files.size(file));
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        Files.copy(file, out);
+                    }
+                });
+                server.start();
+                repository = "http://127.0.0.1:" + server.getAddress().getPort();
+            }
+            for (int i = 0; i < count; i++) {
+                ThreadLocalRandom.current().nextBytes(data);
+                PackageFile file = new PackageFile("selftest-" + i + "-1.0_1", "x86_64", repository, data.length,
+                        i == 0 ? "0".repeat(64) : ContentHasher.hashBytes(data));
+                Files.write(repoDir.resolve(file.fileName()), data);
+                files.add(file);
+            }
+
+            PackageFetcher fetcher = new PackageFetcher(root.resolve("cache"), line -> { });
+            Report first = fetcher.fetch(files, jobs);
+            Report second = fetcher.fetch(files.subList(1, files.size()), jobs);
+            long rejected = first.files().stream().filter(result -> !result.success()).count();
+            boolean firstRejected = !first.files().get(0).success()
+                    && first.files().get(0).message().startsWith("checksum mismatch");
+            boolean allCached = second.files().stream().allMatch(FileResult::cached);
+            boolean ok = rejected == 1 && firstRejected && allCached;
+            System.out.println((fileRepo ? "file:// " : "loopback http ") + first.describe());
+            System.out.println("re-fetch: " + second.describe());
+            System.out.println("{\"repository\": " + Json.quote(fileRepo ? "file" : "http")
+                    + ", \"fetch\": " + first.toJson()
+                    + ", \"refetchMillis\": " + second.millis()
+                    + ", \"passed\": " + ok + "}");
+            return ok;
+        } finally {
+            if (server != null) server.stop(0);
+            FileOps.deleteDirectory(root.toFile());
+        }
+    }
+}
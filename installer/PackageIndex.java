@@ -0,0 +1,438 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * On-disk index of the repository package list, memory-mapped so search
+ * works as soon as the file is open, without running xbps-query or
+ * parsing anything.
+ *
+ * Layout (big-endian, offsets relative to the section start):
+ *   header    magic, format, SHA-256 of the repodata it was built from,
+ *             entry and trigram counts, section offsets
+ *   entries   per package, sorted by name: text offset, name length,
+ *             pkgver length, description length (4 ints)
+ *   trigrams  sorted keys (3 lower-cased bytes) with posting offset and
+ *             count (3 ints), binary searched
+ *   postings  ascending entry ids per trigram, delta + varint encoded
+ *   strings   UTF-8 pkgver followed by description, per entry
+ *
+ * A query of 3+ bytes intersects the postings of its trigrams, then
+ * confirms each candidate with a case-insensitive substring match on
+ * pkgver or description, which is what xbps-query -R -s matches. Shorter
+ * queries scan the entries. Neither step allocates per candidate; Strings
+ * are only made for the rows asked for.
+ *
+ * The index is rebuilt (from xbps-query -R -s "") only when the checksum
+ * of the repodata files under /var/db/xbps changes, and replaced by rename
+ * so a mapping of the previous file stays valid.
+ */
+public final class PackageIndex {
+    public static final Path DEFAULT_PATH = Path.of(System.getProperty("user.home"), ".cache", "riverwm", "package-index.bin");
+
+    private static final Path REPODATA_DIR = Path.of("/var/db/xbps");
+    private static final Duration QUERY_TIMEOUT = Duration.ofSeconds(120);
+    private static final int MAGIC = 0x504B4958; // "PKIX"
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 16;
+    private static final int TRIGRAM_SIZE = 12;
+    private static final int FINGERPRINT_OFFSET = 8;
+
+    private final MappedByteBuffer buf;
+    private final String fingerprint;
+    private final int entryCount;
+    private final int trigramCount;
+    private final int entriesOff;
+    private final int trigramsOff;
+    private final int postingsOff;
+    private final int stringsOff;
+
+    private PackageIndex(MappedByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT) {
+            throw new IOException("not a package index (or an older format)");
+        }
+        byte[] sha = new byte[32];
+        buf.get(FINGERPRINT_OFFSET, sha);
+        this.fingerprint = HexFormat.of().formatHex(sha);
+        this.entryCount = buf.getInt(40);
+        this.trigramCount = buf.getInt(44);
+        this.entriesOff = buf.getInt(48);
+        this.trigramsOff = buf.getInt(52);
+        this.postingsOff = buf.getInt(56);
+        this.stringsOff = buf.getInt(60);
+        if (stringsOff > buf.capacity() || entriesOff + (long) entryCount * ENTRY_SIZE > trigramsOff) {
+            throw new IOException("package index is truncated");
+        }
+    }
+
+    public static PackageIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new PackageIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** The index at DEFAULT_PATH as it is, current or not; null if there is none or it is unreadable. */
+    public static PackageIndex openExisting() {
+        try {
+            return Files.exists(DEFAULT_PATH) ? open(DEFAULT_PATH) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns current if it was built from the repodata now on disk,
+     * otherwise rebuilds DEFAULT_PATH and returns the new index. Without
+     * repodata (not a Void system) current is returned unchanged.
+     */
+    public static PackageIndex ensureCurrent(PackageIndex current) throws IOException, InterruptedException {
+        String repodata = repodataFingerprint();
+        if (repodata == null || (current != null && current.fingerprint.equals(repodata))) {
+            return current;
+        }
+        try (Metrics.Span span = Metrics.time("buildPackageIndex", null)) {
+            List<XbpsParser.PackageLine> packages = new ArrayList<>();
+            ProcessRunner.Result result = ProcessRunner.run(List.of("xbps-query", "-R", "-s", ""), QUERY_TIMEOUT, line -> {
+                if (line.isError()) return;
+                XbpsParser.PackageLine pkg = XbpsParser.parseLine(line.text());
+                if (pkg != null) packages.add(pkg);
+            });
+            if (!result.succeeded()) {
+                span.fail();
+                throw new IOException("xbps-query -R -s " + result.describe());
+            }
+            write(DEFAULT_PATH, packages, repodata);
+        }
+        return open(DEFAULT_PATH);
+    }
+
+    /** SHA-256 over the names and contents of all *-repodata files; null if there are none. */
+    public static String repodataFingerprint() throws IOException {
+        if (!Files.isDirectory(REPODATA_DIR)) {
+            return null;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(REPODATA_DIR, "*-repodata")) {
+            stream.forEach(files::add);
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+        files.sort(null);
+        MessageDigest digest = ContentHasher.newDigest();
+        for (Path file : files) {
+            digest.update(file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(HexFormat.of().parseHex(ContentHasher.hash(file)));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /** Writes an index of packages (deduplicated by name) to file via a temp file and rename. */
+    public static void write(Path file, List<XbpsParser.PackageLine> packages, String fingerprint) throws IOException {
+        Map<String, XbpsParser.PackageLine> byName = new TreeMap<>();
+        for (XbpsParser.PackageLine pkg : packages) {
+            byName.putIfAbsent(pkg.name(), pkg);
+        }
+        List<XbpsParser.PackageLine> sorted = new ArrayList<>(byName.values());
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        ByteBuffer entries = ByteBuffer.allocate(sorted.size() * ENTRY_SIZE);
+        Map<Integer, IntList> postings = new TreeMap<>();
+        Set<Integer> seen = new HashSet<>();
+        for (int id = 0; id < sorted.size(); id++) {
+            XbpsParser.PackageLine pkg = sorted.get(id);
+            byte[] pkgver = pkg.pkgver().getBytes(StandardCharsets.UTF_8);
+            byte[] desc = pkg.description().getBytes(StandardCharsets.UTF_8);
+            entries.putInt(strings.size())
+                    .putInt(pkg.name().getBytes(StandardCharsets.UTF_8).length)
+                    .putInt(pkgver.length)
+                    .putInt(desc.length);
+            strings.write(pkgver);
+            strings.write(desc);
+            seen.clear();
+            addTrigrams(pkgver, seen);
+            addTrigrams(desc, seen);
+            for (int key : seen) {
+                postings.computeIfAbsent(key, k -> new IntList()).add(id);
+            }
+        }
+
+        ByteBuffer trigrams = ByteBuffer.allocate(postings.size() * TRIGRAM_SIZE);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (Map.Entry<Integer, IntList> entry : postings.entrySet()) {
+            IntList ids = entry.getValue();
+            trigrams.putInt(entry.getKey()).putInt(encoded.size()).putInt(ids.size);
+            int previous = 0;
+            for (int i = 0; i < ids.size; i++) {
+                writeVarint(encoded, ids.values[i] - previous);
+                previous = ids.values[i];
+            }
+        }
+
+        int entriesOff = HEADER_SIZE;
+        int trigramsOff = entriesOff + entries.capacity();
+        int postingsOff = trigramsOff + trigrams.capacity();
+        int stringsOff = postingsOff + encoded.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC).putInt(FORMAT)
+                .put(HexFormat.of().parseHex(fingerprint))
+                .putInt(sorted.size()).putInt(postings.size())
+                .putInt(entriesOff).putInt(trigramsOff).putInt(postingsOff).putInt(stringsOff);
+
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ByteBuffer section : List.of(header.flip(), entries.flip(), trigrams.flip(),
+                    ByteBuffer.wrap(encoded.toByteArray()), ByteBuffer.wrap(strings.toByteArray()))) {
+                while (section.hasRemaining()) channel.write(section);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Metrics.record("packageIndex.entries", sorted.size());
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    /** True for queries xbps treats as shell patterns; the index only does substrings. */
+    public static boolean isPattern(String query) {
+        return query.indexOf('*') >= 0 || query.indexOf('?') >= 0 || query.indexOf('[') >= 0;
+    }
+
+    /** Ids of up to limit packages whose pkgver or description contains query (case-insensitive), by name. */
+    public int[] search(String query, int limit) {
+        byte[] q = lower(query.getBytes(StandardCharsets.UTF_8));
+        if (q.length == 0 || limit <= 0) {
+            return new int[0];
+        }
+        int[] hits = new int[Math.min(limit, entryCount)];
+        int found = 0;
+        if (q.length < 3) {
+            for (int id = 0; id < entryCount && found < hits.length; id++) {
+                if (matches(id, q)) hits[found++] = id;
+            }
+            return Arrays.copyOf(hits, found);
+        }
+
+        // One cursor per distinct trigram: position in postings, current id, ids left
+        int keys = 0;
+        int[] slots = new int[q.length - 2];
+        for (int i = 0; i + 2 < q.length; i++) {
+            int slot = findTrigram(key(q, i));
+            if (slot < 0) {
+                return new int[0];
+            }
+            boolean duplicate = false;
+            for (int k = 0; k < keys && !duplicate; k++) duplicate = slots[k] == slot;
+            if (!duplicate) slots[keys++] = slot;
+        }
+        int[] pos = new int[keys];
+        int[] cur = new int[keys];
+        int[] left = new int[keys];
+        int shortest = 0;
+        for (int k = 0; k < keys; k++) {
+            int at = trigramsOff + slots[k] * TRIGRAM_SIZE;
+            pos[k] = postingsOff + buf.getInt(at + 4);
+            left[k] = buf.getInt(at + 8);
+            cur[k] = -1;
+            if (left[k] < left[shortest]) shortest = k;
+        }
+        candidates:
+        while (left[shortest] > 0 && found < hits.length) {
+            int id = next(shortest, pos, cur, left);
+            for (int k = 0; k < keys; k++) {
+                if (k == shortest) continue;
+                while (cur[k] < id) {
+                    if (left[k] == 0) break candidates;
+                    next(k, pos, cur, left);
+                }
+                if (cur[k] != id) continue candidates;
+            }
+            if (matches(id, q)) hits[found++] = id;
+        }
+        return Arrays.copyOf(hits, found);
+    }
+
+    private int next(int k, int[] pos, int[] cur, int[] left) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get(pos[k]++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        cur[k] = (cur[k] < 0 ? 0 : cur[k]) + value;
+        left[k]--;
+        return cur[k];
+    }
+
+    private int findTrigram(int key) {
+        int lo = 0;
+        int hi = trigramCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = buf.getInt(trigramsOff + mid * TRIGRAM_SIZE);
+            if (value < key) lo = mid + 1;
+            else if (value > key) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private boolean matches(int id, byte[] q) {
+        int at = entriesOff + id * ENTRY_SIZE;
+        int text = stringsOff + buf.getInt(at);
+        int pkgverLen = buf.getInt(at + 8);
+        int descLen = buf.getInt(at + 12);
+        return contains(text, pkgverLen, q) || contains(text + pkgverLen, descLen, q);
+    }
+
+    private boolean contains(int start, int length, byte[] q) {
+        outer:
+        for (int i = start, last = start + length - q.length; i <= last; i++) {
+            for (int j = 0; j < q.length; j++) {
+                if (lower(buf.get(i + j)) != q[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public String name(int id) {
+        int at = entriesOff + id * ENTRY_SIZE;
+        return string(stringsOff + buf.getInt(at), buf.getInt(at + 4));
+    }
+
+    public String pkgver(int id) {
+        int at = entriesOff + id * ENTRY_SIZE;
+        return string(stringsOff + buf.getInt(at), buf.getInt(at + 8));
+    }
+
+    public String description(int id) {
+        int at = entriesOff + id * ENTRY_SIZE;
+        return string(stringsOff + buf.getInt(at) + buf.getInt(at + 8), buf.getInt(at + 12));
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void addTrigrams(byte[] text, Set<Integer> keys) {
+        byte[] lower = lower(text);
+        for (int i = 0; i + 2 < lower.length; i++) {
+            keys.add(key(lower, i));
+        }
+    }
+
+    private static int key(byte[] bytes, int i) {
+        return (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+    }
+
+    // ASCII only, like strcasestr in the C locale
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+    private static byte[] lower(byte[] bytes) {
+        byte[] lower = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) lower[i] = lower(bytes[i]);
+        return lower;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static final class IntList {
+        int[] values = new int[8];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Builds an index from captured xbps-query -R -s output and times
+     * opening it and the first search:
+     *   java -cp "lib/*:." PackageIndex FILE [--copies N] [queries...]
+     * --copies repeats the list under renamed packages, for repo-sized tests.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: PackageIndex XBPS_QUERY_OUTPUT [--copies N] [queries...]");
+            System.exit(2);
+        }
+        int copies = 1;
+        List<String> queries = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--copies")) copies = Integer.parseInt(args[++i]);
+            else queries.add(args[i]);
+        }
+        List<XbpsParser.PackageLine> packages = new ArrayList<>();
+        for (String line : Files.readAllLines(Path.of(args[0]))) {
+            XbpsParser.PackageLine pkg = XbpsParser.parseLine(line);
+            if (pkg == null) continue;
+            packages.add(pkg);
+            for (int c = 1; c < copies; c++) {
+                String name = pkg.name() + "-c" + c;
+                packages.add(new XbpsParser.PackageLine(name, name + pkg.pkgver().substring(pkg.name().length()),
+                        pkg.description()));
+            }
+        }
+        Path file = Files.createTempFile("package-index", ".bin");
+        try {
+            long start = System.nanoTime();
+            write(file, packages, "0".repeat(64));
+            System.out.printf("built %d entries, %d KB in %.1f ms%n", packages.size(), Files.size(file) / 1024,
+                    (System.nanoTime() - start) / 1e6);
+            for (String query : queries.isEmpty() ? List.of("wayland", "sh") : queries) {
+                start = System.nanoTime();
+                PackageIndex index = open(file);
+                int[] ids = index.search(query, Integer.MAX_VALUE);
+                String first = ids.length > 0 ? index.name(ids[0]) : "-";
+                double firstMs = (System.nanoTime() - start) / 1e6;
+                start = System.nanoTime();
+                index.search(query, Integer.MAX_VALUE);
+                System.out.printf("%-12s %6d hits, first %-24s open+search %.2f ms, repeat %.3f ms%n",
+                        query, ids.length, first, firstMs, (System.nanoTime() - start) / 1e6);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -3,20 +3,33 @@ import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.time.Duration;
 import java.util.*;
 import java.util.List;
 
 public class PackageInstallerApp extends JFrame {
+    private static final Duration QUERY_TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration TRANSACTION_TIMEOUT = Duration.ofMinutes(30);
+    // Rows shown for an index search; a one-letter query matches most of the repository
+    private static final int MAX_RESULTS = 2000;
 
     private JTextField searchField;
     private JTable pkgTable;
     private DefaultTableModel model;
-    private JTextArea logArea;
+    private LogConsole logConsole;
     private JButton installSelectedBtn;
     private JButton uninstallSelectedBtn;
+    private JButton cancelBtn;
+    private JCheckBox preDownloadBox;
+    private JSpinner downloadJobsSpinner;
 
-    private Set<String> installed = new HashSet<>();
+    private volatile Set<String> installed = new HashSet<>();
     private javax.swing.Timer searchTimer;
+    private ProcessRunner.Handle searchHandle;
+    private volatile ProcessRunner.Handle actionHandle;
+    private volatile boolean actionCancelled;
+    private volatile PackageFetcher actionFetcher;
+    private volatile PackageIndex packageIndex;
 
     public PackageInstallerApp() {
         super("Void Linux Package Search & Installer");
@@ -30,9 +43,20 @@ public class PackageInstallerApp extends JFrame {
 
         installSelectedBtn = new JButton("Install Selected");
         uninstallSelectedBtn = new JButton("Uninstall Selected");
+        cancelBtn = new JButton("Cancel");
+        cancelBtn.setEnabled(false);
+        // Two-phase install: parallel verified download, then one xbps-install from that cache
+        preDownloadBox = new JCheckBox("Pre-download", true);
+        preDownloadBox.setToolTipText("Download all archives in parallel first, then install them in one transaction");
+        downloadJobsSpinner = new JSpinner(new SpinnerNumberModel(PackageFetcher.DEFAULT_JOBS, 1, 16, 1));
+        downloadJobsSpinner.setToolTipText("Parallel downloads");
+        preDownloadBox.addActionListener(e -> downloadJobsSpinner.setEnabled(preDownloadBox.isSelected()));
         JPanel btns = new JPanel();
+        btns.add(preDownloadBox);
+        btns.add(downloadJobsSpinner);
         btns.add(installSelectedBtn);
         btns.add(uninstallSelectedBtn);
+        btns.add(cancelBtn);
         top.add(btns, BorderLayout.EAST);
         add(top, BorderLayout.NORTH);
 
@@ -47,14 +71,39 @@ public class PackageInstallerApp extends JFrame {
         pkgTable = new JTable(model);
         add(new JScrollPane(pkgTable), BorderLayout.CENTER);
 
-        logArea = new JTextArea(10, 60);
-        logArea.setEditable(false);
-        add(new JScrollPane(logArea), BorderLayout.SOUTH);
+        logConsole = new LogConsole(10, 60);
+        add(logConsole, BorderLayout.SOUTH);
 
         initListeners();
-        refreshInstalled();
 
         setVisible(true);
+        // xbps-query -l takes a while; the window is usable before it finishes
+        refreshInstalled();
+        loadPackageIndex();
+    }
+
+    /**
+     * Maps the on-disk package index as it is, so search works at once,
+     * then checks it against the repodata and swaps in a rebuilt one if
+     * the repositories changed. Until an index exists, search runs
+     * xbps-query.
+     */
+    private void loadPackageIndex() {
+        Thread.ofVirtual().name("package-index").start(() -> {
+            PackageIndex index = PackageIndex.openExisting();
+            packageIndex = index;
+            try {
+                PackageIndex current = PackageIndex.ensureCurrent(index);
+                if (current != index) {
+                    packageIndex = current;
+                    log("Package index rebuilt: " + current.size() + " packages");
+                }
+            } catch (IOException e) {
+                log("Package index not updated: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
     }
 
     private void initListeners() {
@@ -63,33 +112,61 @@ public class PackageInstallerApp extends JFrame {
 
         searchField.addKeyListener(new KeyAdapter() {
             public void keyReleased(KeyEvent e) {
+                // Debounce only matters when each search starts an xbps-query
+                searchTimer.setInitialDelay(packageIndex != null ? 0 : 300);
                 searchTimer.restart(); // delay search
             }
         });
 
         installSelectedBtn.addActionListener(e -> operateSelected(true));
         uninstallSelectedBtn.addActionListener(e -> operateSelected(false));
+        cancelBtn.addActionListener(e -> cancelPackageAction());
     }
 
     private void refreshInstalled() {
-        installed.clear();
-        try {
-            Process p = new ProcessBuilder("xbps-query", "-l").start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.trim().split("\\s+");
-                if (parts.length >= 2) {
-                    installed.add(parts[1].split("-")[0]);
+        new SwingWorker<Set<String>, Void>() {
+            protected Set<String> doInBackground() throws Exception {
+                return readInstalled();
+            }
+            protected void done() {
+                try {
+                    installed = get();
+                } catch (Exception ex) {
+                    log("Error reading installed packages: " + ex.getMessage());
+                }
+                if (!searchField.getText().trim().isEmpty()) {
+                    performSearch(); // update installed states
                 }
             }
-            p.waitFor();
-        } catch (Exception ex) {
-            log("Error reading installed packages: " + ex.getMessage());
+        }.execute();
+    }
+
+    private Set<String> readInstalled() throws IOException, InterruptedException {
+        Set<String> result = new HashSet<>();
+        try (Metrics.Span span = Metrics.time("refreshInstalled", null)) {
+            ProcessRunner.Result run = ProcessRunner.run(List.of("xbps-query", "-l"), QUERY_TIMEOUT, line -> {
+                if (line.isError()) return;
+                XbpsParser.PackageLine pkg = XbpsParser.parseLine(line.text());
+                if (pkg != null) {
+                    result.add(pkg.name());
+                }
+            });
+            if (!run.succeeded()) {
+                span.fail();
+                throw new IOException("xbps-query -l " + run.describe());
+            }
         }
+        Metrics.record("installed.packages", result.size());
+        return result;
     }
 
     private void performSearch() {
+        // A newer query supersedes whatever search is still running
+        if (searchHandle != null) {
+            searchHandle.cancel();
+            searchHandle = null;
+        }
+
         String query = searchField.getText().trim();
         if (query.isEmpty()) {
             model.setRowCount(0);
@@ -100,31 +177,69 @@ public class PackageInstallerApp extends JFrame {
         for (int i = 0; i < model.getRowCount(); i++) {
             prev.put((String) model.getValueAt(i, 0), (Boolean) model.getValueAt(i, 3));
         }
-        model.setRowCount(0);
 
+        Set<String> installedNow = installed;
+        PackageIndex index = packageIndex;
+        if (index != null && !PackageIndex.isPattern(query)) {
+            searchIndex(index, query, installedNow, prev);
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>();
+        Metrics.Span span = Metrics.time("performSearch", query);
         try {
-            ProcessBuilder pb = new ProcessBuilder("xbps-query", "-R", "-s", query);
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split("\\s+", 3);
-                if (parts.length >= 2) {
-                    String nameVer = parts[1].trim();
-                    String pkgName = nameVer.split("-")[0];
-                    String desc = parts.length > 2 ? parts[2] : "";
-                    boolean isInst = installed.contains(pkgName);
-                    boolean wasChecked = prev.getOrDefault(pkgName, false);
-                    model.addRow(new Object[]{pkgName, desc, isInst ? "Yes" : "No", wasChecked});
+            ProcessRunner.Handle handle = ProcessRunner.start(
+                    List.of("xbps-query", "-R", "-s", query), QUERY_TIMEOUT, line -> {
+                if (line.isError()) return;
+                XbpsParser.PackageLine pkg = XbpsParser.parseLine(line.text());
+                if (pkg != null) {
+                    boolean isInst = installedNow.contains(pkg.name());
+                    boolean wasChecked = prev.getOrDefault(pkg.name(), false);
+                    rows.add(new Object[]{pkg.name(), pkg.description(), isInst ? "Yes" : "No", wasChecked});
                 }
-            }
-            p.waitFor();
-        } catch (Exception ex) {
+            });
+            searchHandle = handle;
+            handle.result().whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+                if (error != null || !result.succeeded()) span.fail();
+                span.close();
+                if (searchHandle != handle) return;
+                searchHandle = null;
+                if (error != null) {
+                    log("Search error: " + error.getMessage());
+                    return;
+                }
+                model.setRowCount(0);
+                for (Object[] row : rows) model.addRow(row);
+                if (result.timedOut()) log("Search for '" + query + "' " + result.describe());
+            }));
+        } catch (IOException ex) {
+            span.fail();
+            span.close();
             log("Search error: " + ex.getMessage());
         }
     }
 
+    /** Same matches as xbps-query -R -s, from the mapped index, on the EDT. */
+    private void searchIndex(PackageIndex index, String query, Set<String> installedNow, Map<String, Boolean> prev) {
+        int[] ids;
+        try (Metrics.Span span = Metrics.time("indexSearch", query)) {
+            try {
+                ids = index.search(query, MAX_RESULTS);
+            } catch (RuntimeException e) {
+                span.fail();
+                throw e;
+            }
+        }
+        model.setRowCount(0);
+        for (int id : ids) {
+            String name = index.name(id);
+            model.addRow(new Object[]{name, index.description(id), installedNow.contains(name) ? "Yes" : "No",
+                    prev.getOrDefault(name, false)});
+        }
+        if (ids.length == MAX_RESULTS) {
+            log("Showing the first " + MAX_RESULTS + " matches for '" + query + "'");
+        }
+    }
+
     private void operateSelected(boolean install) {
         List<String> selected = new ArrayList<>();
         for (int i = 0; i < model.getRowCount(); i++) {
@@ -141,15 +256,29 @@ public class PackageInstallerApp extends JFrame {
 
     private void runPackageAction(List<String> packages, boolean install) {
         log((install ? "Installing " : "Removing ") + packages);
-        new SwingWorker<Void, String>() {
+        actionCancelled = false;
+        installSelectedBtn.setEnabled(false);
+        uninstallSelectedBtn.setEnabled(false);
+        cancelBtn.setEnabled(true);
+        boolean twoPhase = install && preDownloadBox.isSelected();
+        int downloadJobs = (Integer) downloadJobsSpinner.getValue();
+        new SwingWorker<Void, Void>() {
             protected Void doInBackground() throws Exception {
+                if (twoPhase) {
+                    installTwoPhase(packages, downloadJobs);
+                    return null;
+                }
                 for (String pkg : packages) {
+                    if (actionCancelled) {
+                        log("Cancelled, skipping remaining packages.");
+                        break;
+                    }
                     if (install && installed.contains(pkg)) {
-                        publish(pkg + " already installed, skipping.");
+                        log(pkg + " already installed, skipping.");
                         continue;
                     }
                     if (!install && !installed.contains(pkg)) {
-                        publish(pkg + " not installed, skipping.");
+                        log(pkg + " not installed, skipping.");
                         continue;
                     }
                     List<String> cmd = new ArrayList<>();
@@ -167,31 +296,111 @@ public class PackageInstallerApp extends JFrame {
                         cmd.add(pkg);
                     }
 
-                    ProcessBuilder pb = new ProcessBuilder(cmd);
-                    pb.redirectErrorStream(true);
-                    Process p = pb.start();
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                    String l;
-                    while ((l = reader.readLine()) != null) publish(l);
-                    p.waitFor();
+                    try (Metrics.Span span = Metrics.time("pkexec", String.join(" ", cmd.subList(4, cmd.size())))) {
+                        actionHandle = ProcessRunner.start(cmd, TRANSACTION_TIMEOUT, line -> log(line.text()));
+                        ProcessRunner.Result result = actionHandle.await();
+                        actionHandle = null;
+                        if (!result.succeeded()) {
+                            span.fail();
+                            log(pkg + ": " + result.describe());
+                        }
+                    }
                 }
                 return null;
             }
-            protected void process(List<String> chunks) {
-                for (String s : chunks) log(s);
-            }
             protected void done() {
+                try {
+                    get();
+                } catch (Exception ex) {
+                    log("Package action failed: " + ex.getMessage());
+                }
+                installSelectedBtn.setEnabled(true);
+                uninstallSelectedBtn.setEnabled(true);
+                cancelBtn.setEnabled(false);
                 refreshInstalled();
-                performSearch(); // update installed states
             }
         }.execute();
     }
 
+    /**
+     * Phase 1 resolves the transaction and fetches every archive into the
+     * staging cache, downloadJobs at a time, verified against repodata.
+     * Phase 2 installs all packages from that cache in one pkexec call. If
+     * any download fails nothing is installed.
+     */
+    private void installTwoPhase(List<String> packages, int downloadJobs) throws IOException, InterruptedException {
+        List<String> wanted = new ArrayList<>();
+        for (String pkg : packages) {
+            if (installed.contains(pkg)) {
+                log(pkg + " already installed, skipping.");
+            } else {
+                wanted.add(pkg);
+            }
+        }
+        if (wanted.isEmpty()) {
+            return;
+        }
+        PackageFetcher fetcher = new PackageFetcher(PackageFetcher.DEFAULT_CACHE, this::log);
+        actionFetcher = fetcher;
+        List<PackageFetcher.PackageFile> files;
+        try {
+            log("Resolving transaction...");
+            files = PackageFetcher.resolve(wanted);
+            if (actionCancelled) {
+                log("Cancelled before download.");
+                return;
+            }
+            log("Downloading " + files.size() + " archive(s), " + downloadJobs + " at a time...");
+            PackageFetcher.Report report = fetcher.fetch(files, downloadJobs);
+            for (PackageFetcher.FileResult result : report.files()) {
+                if (!result.success()) log(result.pkg().pkgver() + ": " + result.message());
+            }
+            log(report.describe());
+            if (!report.success() || actionCancelled) {
+                log("Download incomplete, nothing installed.");
+                return;
+            }
+        } finally {
+            actionFetcher = null;
+        }
+
+        List<String> cmd = new ArrayList<>(List.of("pkexec", "env", "DISPLAY=" + System.getenv("DISPLAY"),
+                "_JAVA_AWT_WM_NONREPARENTING=1"));
+        cmd.addAll(fetcher.installCommand(wanted));
+        try (Metrics.Span span = Metrics.time("pkexec", String.join(" ", cmd.subList(4, cmd.size())))) {
+            actionHandle = ProcessRunner.start(cmd, TRANSACTION_TIMEOUT, line -> log(line.text()));
+            ProcessRunner.Result result = actionHandle.await();
+            actionHandle = null;
+            if (!result.succeeded()) {
+                span.fail();
+                log("Install from cache: " + result.describe());
+                return;
+            }
+        }
+        fetcher.clean(files);
+    }
+
+    private void cancelPackageAction() {
+        actionCancelled = true;
+        PackageFetcher fetcher = actionFetcher;
+        if (fetcher != null) {
+            fetcher.cancel();
+        }
+        ProcessRunner.Handle handle = actionHandle;
+        if (handle != null) {
+            handle.cancel();
+        }
+        log("Cancelling...");
+    }
+
     private void log(String msg) {
-        logArea.append(msg + "\n");
+        logConsole.append(msg);
     }
 
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(PackageInstallerApp::new);
+        SwingUtilities.invokeLater(() -> {
+            PackageInstallerApp frame = new PackageInstallerApp();
+            FastStart.reportStartup(frame, "PackageInstallerApp");
+        });
     }
 }
\ No newline at end of file
@@ -0,0 +1,199 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Shared process execution for the installer tools.
+ *
+ * Each started process gets three virtual threads: one reader per output
+ * stream and one that delivers lines to the caller's sink. Readers hand lines
+ * over through a bounded queue, so a slow sink stops the readers, which in
+ * turn makes the child block on a full pipe instead of growing the heap.
+ * A fourth virtual thread enforces the timeout.
+ *
+ * The sink is called on the delivery thread, never on the EDT.
+ */
+public final class ProcessRunner {
+    /** No timeout; the process may run until it exits or is cancelled. */
+    public static final Duration NO_TIMEOUT = Duration.ZERO;
+
+    private static final int QUEUE_CAPACITY = 256;
+    private static final Line END_OF_STREAM = new Line(Stream.STDOUT, null);
+
+    public enum Stream { STDOUT, STDERR }
+
+    public record Line(Stream stream, String text) {
+        public boolean isError() {
+            return stream == Stream.STDERR;
+        }
+    }
+
+    public record Result(int exitCode, boolean timedOut, boolean cancelled) {
+        public boolean succeeded() {
+            return exitCode == 0 && !timedOut && !cancelled;
+        }
+
+        public String describe() {
+            if (timedOut) return "timed out";
+            if (cancelled) return "cancelled";
+            return "exit code " + exitCode;
+        }
+    }
+
+    private ProcessRunner() {
+    }
+
+    public static Handle start(List<String> command, Duration timeout, Consumer<Line> sink) throws IOException {
+        return start(new ProcessBuilder(command), timeout, sink);
+    }
+
+    /**
+     * Starts a process from a configured builder (environment, working
+     * directory). Output redirection on the builder is ignored; both streams
+     * are always piped to the sink.
+     */
+    public static Handle start(ProcessBuilder pb, Duration timeout, Consumer<Line> sink) throws IOException {
+        pb.redirectErrorStream(false);
+        pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
+        pb.redirectError(ProcessBuilder.Redirect.PIPE);
+        Handle handle = new Handle(pb.start(), sink);
+        handle.startThreads(timeout);
+        return handle;
+    }
+
+    /** Runs a process to completion, blocking the calling thread. */
+    public static Result run(List<String> command, Duration timeout, Consumer<Line> sink)
+            throws IOException, InterruptedException {
+        return start(command, timeout, sink).await();
+    }
+
+    public static final class Handle {
+        private final Process process;
+        private final Consumer<Line> sink;
+        private final BlockingQueue<Line> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+        private volatile boolean timedOut;
+        private volatile boolean cancelled;
+
+        private Handle(Process process, Consumer<Line> sink) {
+            this.process = process;
+            this.sink = sink;
+        }
+
+        private void startThreads(Duration timeout) {
+            Thread.ofVirtual().name("proc-stdout-" + process.pid())
+                    .start(() -> pump(process.getInputStream(), Stream.STDOUT));
+            Thread.ofVirtual().name("proc-stderr-" + process.pid())
+                    .start(() -> pump(process.getErrorStream(), Stream.STDERR));
+            Thread.ofVirtual().name("proc-deliver-" + process.pid()).start(this::deliver);
+            if (timeout != null && !timeout.isZero() && !timeout.isNegative()) {
+                Thread.ofVirtual().name("proc-timeout-" + process.pid()).start(() -> watch(timeout));
+            }
+        }
+
+        private void pump(InputStream in, Stream stream) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    queue.put(new Line(stream, line));
+                }
+            } catch (IOException e) {
+                // Stream closed because the process was killed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    queue.put(END_OF_STREAM);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void deliver() {
+            int openStreams = 2;
+            try {
+                while (openStreams > 0) {
+                    Line line = queue.take();
+                    if (line == END_OF_STREAM) {
+                        openStreams--;
+                    } else {
+                        try {
+                            sink.accept(line);
+                        } catch (RuntimeException e) {
+                            System.err.println("Process output sink failed: " + e.getMessage());
+                        }
+                    }
+                }
+                int exitCode = process.waitFor();
+                result.complete(new Result(exitCode, timedOut, cancelled));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(e);
+            }
+        }
+
+        private void watch(Duration timeout) {
+            try {
+                if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                    timedOut = true;
+                    killTree();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Kills the process and everything it spawned. Children that changed
+         * credentials (the root side of pkexec) may refuse the signal; they
+         * exit when their parent's pipes close.
+         */
+        public void cancel() {
+            if (process.isAlive()) {
+                cancelled = true;
+                killTree();
+            }
+        }
+
+        private void killTree() {
+            List<ProcessHandle> descendants = process.descendants().toList();
+            process.destroyForcibly();
+            descendants.forEach(ProcessHandle::destroyForcibly);
+        }
+
+        public boolean isAlive() {
+            return process.isAlive();
+        }
+
+        public long pid() {
+            return process.pid();
+        }
+
+        /** Completes after the process exited and all of its output was delivered. */
+        public CompletableFuture<Result> result() {
+            return result;
+        }
+
+        public Result await() throws InterruptedException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Process delivery failed", e.getCause());
+            } catch (InterruptedException e) {
+                cancel();
+                throw e;
+            }
+        }
+    }
+}
@@ -1,9 +1,8 @@
 import java.awt.*;
 import java.awt.event.*;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.*;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import javax.swing.*;
@@ -11,12 +10,15 @@ import javax.swing.*;
 public class ServiceManagerApp extends JFrame {
     private static final String ENABLED_SERVICES_DIR = "/var/service/";
     private static final String AVAILABLE_SERVICES_DIR = "/etc/sv/";
+    // Includes the time spent in the PolicyKit password prompt
+    private static final Duration COMMAND_TIMEOUT = Duration.ofMinutes(5);
 
     private JList<String> disabledList;
     private JList<String> enabledList;
     private DefaultListModel<String> disabledModel;
     private DefaultListModel<String> enabledModel;
-    private JTextArea logArea;
+    private LogConsole logConsole;
+    private JButton applyButton;
 
     public ServiceManagerApp() {
         List<String> allServices = fetchServices();
@@ -96,12 +98,10 @@ public class ServiceManagerApp extends JFrame {
 
     private JPanel createControlPanel() {
         JPanel controlPanel = new JPanel(new BorderLayout());
-        logArea = new JTextArea(10, 50);
-        logArea.setEditable(false);
-        logArea.setFont(new Font("Monospaced", Font.PLAIN, 11));
-        controlPanel.add(new JScrollPane(logArea), BorderLayout.CENTER);
+        logConsole = new LogConsole(10, 50);
+        controlPanel.add(logConsole, BorderLayout.CENTER);
 
-        JButton applyButton = new JButton("Apply Service Changes");
+        applyButton = new JButton("Apply Service Changes");
         applyButton.addActionListener(this::applyServiceChanges);
         controlPanel.add(applyButton, BorderLayout.SOUTH);
 
@@ -117,7 +117,7 @@ public class ServiceManagerApp extends JFrame {
     }
 
     private void applyServiceChanges(ActionEvent e) {
-        logArea.setText("");
+        logConsole.clear();
         List<String> toEnable = new ArrayList<>();
         List<String> toDisable = new ArrayList<>();
 
@@ -129,46 +129,57 @@ public class ServiceManagerApp extends JFrame {
             if (isServiceEnabled(disabledModel.getElementAt(i)))
                 toDisable.add(disabledModel.getElementAt(i));
 
-        performServiceChanges(toEnable, toDisable);
+        applyButton.setEnabled(false);
+        Thread.ofVirtual().name("service-changes").start(() -> {
+            performServiceChanges(toEnable, toDisable);
+            SwingUtilities.invokeLater(() -> applyButton.setEnabled(true));
+        });
     }
 
     private void performServiceChanges(List<String> enableServices, List<String> disableServices) {
         for (String s : disableServices) {
-            logArea.append("Disabling: " + s + "\n");
+            log("Disabling: " + s);
             runPkexecCommand("sv", "down", s);
             runPkexecCommand("rm", "-f", ENABLED_SERVICES_DIR + s);
         }
         for (String s : enableServices) {
-            logArea.append("Enabling: " + s + "\n");
+            log("Enabling: " + s);
             runPkexecCommand("ln", "-sf", AVAILABLE_SERVICES_DIR + s, ENABLED_SERVICES_DIR + s);
             runPkexecCommand("sv", "up", s);
         }
-        logArea.append("\nDone.\n");
+        log("\nDone.");
     }
 
     private void runPkexecCommand(String... cmd) {
-        try {
-            // Build full command with pkexec
-            List<String> fullCmd = new ArrayList<>();
-            fullCmd.add("pkexec");  // ask PolicyKit for privileged exec :contentReference[oaicite:3]{index=3}
-            for (String c : cmd) fullCmd.add(c);
-
-            ProcessBuilder pb = new ProcessBuilder(fullCmd);
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                logArea.append("  " + line + "\n");
+        // Build full command with pkexec
+        List<String> fullCmd = new ArrayList<>();
+        fullCmd.add("pkexec");  // ask PolicyKit for privileged exec
+        fullCmd.addAll(List.of(cmd));
+
+        try (Metrics.Span span = Metrics.time("pkexec", String.join(" ", cmd))) {
+            try {
+                ProcessRunner.Result result = ProcessRunner.run(fullCmd, COMMAND_TIMEOUT,
+                        line -> log((line.isError() ? "  ! " : "  ") + line.text()));
+                if (!result.succeeded()) {
+                    span.fail();
+                    log("  " + String.join(" ", cmd) + ": " + result.describe());
+                }
+            } catch (IOException | InterruptedException ex) {
+                span.fail();
+                log("Error: " + ex.getMessage());
             }
-            p.waitFor();
-        } catch (IOException | InterruptedException ex) {
-            logArea.append("Error: " + ex.getMessage() + "\n");
         }
     }
 
+    private void log(String msg) {
+        logConsole.append(msg);
+    }
+
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new ServiceManagerApp().setVisible(true));
+        SwingUtilities.invokeLater(() -> {
+            ServiceManagerApp frame = new ServiceManagerApp();
+            FastStart.reportStartup(frame, "ServiceManagerApp");
+            frame.setVisible(true);
+        });
     }
 }
\ No newline at end of file
@@ -0,0 +1,365 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * setup/install.sh as a task graph. Each task runs one or more functions
+ * of setup/lib in its own bash process and declares the tasks it needs;
+ * tasks whose dependencies are done run concurrently, at most jobs at a
+ * time, so the config copies, the Neovim clone and service enablement no
+ * longer wait behind the package install and the VPL build.
+ *
+ * Every task's output goes to its own log under ~/.cache/riverwm/setup/
+ * and is checkpointed in the backups database as it finishes. A resumed
+ * run skips tasks whose last run succeeded with the same script and lib
+ * sources (the fingerprint), so after a failure only the failed task and
+ * what depends on it run again. A failed task blocks its dependents; the
+ * rest of the graph still runs.
+ */
+public class SetupGraph {
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_BLOCKED = "blocked";
+    public static final String STATUS_RESUMED = "resumed";
+
+    private static final Duration TASK_TIMEOUT = Duration.ofHours(2);
+    // sudo's default credential cache lasts 5 minutes; the VPL build takes longer
+    private static final Duration SUDO_REFRESH = Duration.ofMinutes(1);
+    private static final Path LOG_ROOT = Path.of(System.getProperty("user.home"), ".cache", "riverwm", "setup");
+    private static final List<String> COMMON_LIBS = List.of("utils.sh", "config.sh");
+
+    /** script is bash run after sourcing utils.sh, config.sh and lib. */
+    public record Task(String name, String description, List<String> deps, String lib, String script, boolean root) {
+    }
+
+    /** The most recent recorded outcome of a task, from any run. */
+    public record Checkpoint(String status, String fingerprint, long millis, String finishedAt) {
+        public boolean done() {
+            return STATUS_OK.equals(status) || STATUS_RESUMED.equals(status);
+        }
+    }
+
+    public record TaskResult(String task, String status, long millis, int exitCode, String logPath, String message) {
+        public boolean success() {
+            return STATUS_OK.equals(status) || STATUS_RESUMED.equals(status);
+        }
+
+        public String toJson() {
+            return "{\"task\": " + Json.quote(task)
+                    + ", \"status\": " + Json.quote(status)
+                    + ", \"millis\": " + millis
+                    + ", \"exitCode\": " + exitCode
+                    + ", \"log\": " + Json.quote(logPath)
+                    + ", \"message\": " + Json.quote(message) + "}";
+        }
+    }
+
+    private final Path setupDir;
+    private final DatabaseManager db;
+    // Topological order
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+    private Consumer<String> output = line -> { };
+
+    public SetupGraph(Path setupDir, List<Task> declared, DatabaseManager db) {
+        this.setupDir = setupDir;
+        this.db = db;
+        Map<String, Task> byName = new LinkedHashMap<>();
+        for (Task task : declared) {
+            if (byName.put(task.name(), task) != null) {
+                throw new IllegalArgumentException("duplicate task " + task.name());
+            }
+        }
+        for (Task task : declared) {
+            visit(task, byName, new LinkedHashSet<>());
+        }
+    }
+
+    private void visit(Task task, Map<String, Task> byName, Set<String> path) {
+        if (tasks.containsKey(task.name())) {
+            return;
+        }
+        if (!path.add(task.name())) {
+            throw new IllegalArgumentException("dependency cycle: " + String.join(" -> ", path) + " -> " + task.name());
+        }
+        for (String dep : task.deps()) {
+            Task needed = byName.get(dep);
+            if (needed == null) {
+                throw new IllegalArgumentException(task.name() + " depends on unknown task " + dep);
+            }
+            visit(needed, byName, path);
+        }
+        path.remove(task.name());
+        tasks.put(task.name(), task);
+    }
+
+    /** The steps of install.sh main(), with the ordering each one actually needs. */
+    public static SetupGraph standard(Path setupDir, DatabaseManager db) {
+        return new SetupGraph(setupDir, List.of(
+                new Task("preflight", "not root, git present", List.of(), "utils.sh",
+                        "check_not_root; cmd_exists git || sudo xbps-install -Sy git", true),
+                new Task("directories", "config and screenshot directories", List.of("preflight"), "config_apps.sh",
+                        "create_directories", false),
+                new Task("packages", "xbps package install", List.of("preflight"), "packages.sh",
+                        "install_packages", true),
+                new Task("vpl", "Intel VPL GPU runtime source build", List.of("packages"), "vpl.sh",
+                        "setup_intel_vpl", true),
+                new Task("river-config", "River, Mako and init script", List.of("directories"), "config_apps.sh",
+                        "link_river_config; link_mako_config; make_init_executable", false),
+                new Task("fish-config", "Fish config and VPL environment", List.of("directories"), "config_apps.sh",
+                        "link_fish_config; update_fish_env", false),
+                new Task("alacritty-config", "Alacritty config", List.of("directories"), "config_apps.sh",
+                        "link_alacritty_config", false),
+                new Task("neovim-config", "AstroNvim template clone", List.of("directories"), "config_apps.sh",
+                        "setup_neovim_config", false),
+                new Task("services", "runit service links", List.of("packages"), "services.sh",
+                        "enable_services", true),
+                new Task("fish-shell", "Fish as login shell", List.of("packages"), "config_apps.sh",
+                        "set_fish_shell", true),
+                new Task("permissions", "ownership of ~/.config and ~/Pictures",
+                        List.of("river-config", "fish-config", "alacritty-config", "neovim-config"), "config_apps.sh",
+                        "fix_permissions", false)
+        ), db);
+    }
+
+    /** Receives every output line of every task, prefixed with "[task] ". */
+    public void setOutput(Consumer<String> output) {
+        this.output = output;
+    }
+
+    public List<Task> getTasks() {
+        return new ArrayList<>(tasks.values());
+    }
+
+    /** names and everything they depend on, in topological order; all tasks when names is empty. */
+    public List<Task> select(List<String> names) {
+        if (names.isEmpty()) {
+            return getTasks();
+        }
+        Set<String> wanted = new LinkedHashSet<>();
+        for (String name : names) {
+            if (!tasks.containsKey(name)) {
+                throw new IllegalArgumentException("unknown task " + name + " (tasks: " + String.join(", ", tasks.keySet()) + ")");
+            }
+            addWithDeps(name, wanted);
+        }
+        List<Task> selected = new ArrayList<>();
+        for (Task task : tasks.values()) {
+            if (wanted.contains(task.name())) selected.add(task);
+        }
+        return selected;
+    }
+
+    private void addWithDeps(String name, Set<String> wanted) {
+        if (wanted.add(name)) {
+            for (String dep : tasks.get(name).deps()) addWithDeps(dep, wanted);
+        }
+    }
+
+    /** Tasks grouped by depth: everything in a wave can run at the same time. */
+    public List<List<Task>> waves(List<Task> selected) {
+        Map<String, Integer> depth = new LinkedHashMap<>();
+        List<List<Task>> waves = new ArrayList<>();
+        for (Task task : selected) {
+            int level = 0;
+            for (String dep : task.deps()) {
+                level = Math.max(level, depth.getOrDefault(dep, -1) + 1);
+            }
+            depth.put(task.name(), level);
+            while (waves.size() <= level) waves.add(new ArrayList<>());
+            waves.get(level).add(task);
+        }
+        return waves;
+    }
+
+    /** Hash of what the task would execute: its script, the shared libs and its own lib. */
+    public String fingerprint(Task task) throws IOException {
+        StringBuilder sb = new StringBuilder(task.script()).append('\0');
+        List<String> libs = new ArrayList<>(COMMON_LIBS);
+        if (!libs.contains(task.lib())) libs.add(task.lib());
+        for (String lib : libs) {
+            sb.append(Files.readString(setupDir.resolve("lib").resolve(lib), StandardCharsets.UTF_8)).append('\0');
+        }
+        return ContentHasher.hashBytes(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Tasks a resumed run would skip: done last time, and unchanged since. */
+    public Set<String> completed(List<Task> selected) throws IOException, SQLException {
+        Map<String, Checkpoint> checkpoints = db.getSetupCheckpoints();
+        Set<String> done = new LinkedHashSet<>();
+        for (Task task : selected) {
+            Checkpoint checkpoint = checkpoints.get(task.name());
+            if (checkpoint != null && checkpoint.done() && checkpoint.fingerprint().equals(fingerprint(task))) {
+                done.add(task.name());
+            }
+        }
+        return done;
+    }
+
+    public Map<String, Checkpoint> checkpoints() throws SQLException {
+        return db.getSetupCheckpoints();
+    }
+
+    public List<TaskResult> run(List<Task> selected, int jobs, boolean resume) throws IOException, SQLException {
+        Set<String> skip = resume ? completed(selected) : Set.of();
+        int runId = db.beginSetupRun();
+        Path logDir = LOG_ROOT.resolve("run-" + runId);
+        Files.createDirectories(logDir);
+
+        Thread sudoKeeper = null;
+        boolean needsRoot = selected.stream().anyMatch(task -> task.root() && !skip.contains(task.name()));
+        try (Metrics.Span span = Metrics.time("setup", selected.size() + " tasks");
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            if (needsRoot) {
+                authenticateSudo();
+                sudoKeeper = Thread.ofVirtual().name("setup-sudo").start(SetupGraph::keepSudoAlive);
+            }
+            Semaphore slots = new Semaphore(Math.max(1, jobs));
+            Map<String, CompletableFuture<TaskResult>> futures = new LinkedHashMap<>();
+            for (Task task : selected) {
+                List<CompletableFuture<TaskResult>> deps = new ArrayList<>();
+                for (String dep : task.deps()) {
+                    CompletableFuture<TaskResult> future = futures.get(dep);
+                    if (future != null) deps.add(future);
+                }
+                futures.put(task.name(), CompletableFuture.allOf(deps.toArray(CompletableFuture[]::new))
+                        .thenApplyAsync(ignored -> {
+                            TaskResult result = runOrSkip(task, deps, skip, slots, logDir);
+                            checkpoint(runId, task, result);
+                            return result;
+                        }, executor));
+            }
+            List<TaskResult> results = new ArrayList<>();
+            for (CompletableFuture<TaskResult> future : futures.values()) {
+                results.add(future.join());
+            }
+            boolean failed = results.stream().anyMatch(result -> !result.success());
+            if (failed) span.fail();
+            db.finishSetupRun(runId, failed ? STATUS_FAILED : STATUS_OK);
+            return results;
+        } finally {
+            if (sudoKeeper != null) sudoKeeper.interrupt();
+        }
+    }
+
+    private TaskResult runOrSkip(Task task, List<CompletableFuture<TaskResult>> deps, Set<String> skip,
+                                 Semaphore slots, Path logDir) {
+        for (CompletableFuture<TaskResult> dep : deps) {
+            TaskResult needed = dep.join();
+            if (!needed.success()) {
+                return new TaskResult(task.name(), STATUS_BLOCKED, 0, -1, null, "needs " + needed.task());
+            }
+        }
+        if (skip.contains(task.name())) {
+            return new TaskResult(task.name(), STATUS_RESUMED, 0, 0, null, "done in an earlier run");
+        }
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new TaskResult(task.name(), STATUS_FAILED, 0, -1, null, "interrupted");
+        }
+        try {
+            return runTask(task, logDir.resolve(task.name() + ".log"));
+        } finally {
+            slots.release();
+        }
+    }
+
+    private TaskResult runTask(Task task, Path log) {
+        long start = System.nanoTime();
+        output.accept("[" + task.name() + "] started: " + task.description());
+        try (Metrics.Span span = Metrics.time("setupTask", task.name());
+             BufferedWriter writer = Files.newBufferedWriter(log, StandardCharsets.UTF_8)) {
+            ProcessBuilder pb = new ProcessBuilder("bash", "-c", preamble(task) + task.script(),
+                    "setup-" + task.name(), setupDir.toString());
+            pb.directory(setupDir.toFile());
+            // Nothing may wait for an answer on stdin; sudo and chsh prompt on the terminal
+            pb.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+            ProcessRunner.Result result = ProcessRunner.start(pb, TASK_TIMEOUT, line -> {
+                try {
+                    writer.write(line.text());
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                output.accept("[" + task.name() + "] " + line.text());
+            }).await();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            if (!result.succeeded()) {
+                span.fail();
+                return new TaskResult(task.name(), STATUS_FAILED, millis, result.exitCode(), log.toString(),
+                        result.describe() + ", see " + log);
+            }
+            return new TaskResult(task.name(), STATUS_OK, millis, 0, log.toString(), "done");
+        } catch (IOException e) {
+            return new TaskResult(task.name(), STATUS_FAILED, (System.nanoTime() - start) / 1_000_000, -1,
+                    log.toString(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new TaskResult(task.name(), STATUS_FAILED, (System.nanoTime() - start) / 1_000_000, -1,
+                    log.toString(), "interrupted");
+        }
+    }
+
+    private static String preamble(Task task) {
+        StringBuilder sb = new StringBuilder("set -euo pipefail\n");
+        List<String> libs = new ArrayList<>(COMMON_LIBS);
+        if (!libs.contains(task.lib())) libs.add(task.lib());
+        for (String lib : libs) {
+            sb.append("source \"$1/lib/").append(lib).append("\"\n");
+        }
+        return sb.toString();
+    }
+
+    private void checkpoint(int runId, Task task, TaskResult result) {
+        try {
+            String fingerprint = result.success() ? fingerprint(task) : null;
+            db.saveSetupTask(runId, result, fingerprint);
+        } catch (IOException | SQLException e) {
+            System.err.println("Checkpoint for " + task.name() + " not saved: " + e.getMessage());
+        }
+    }
+
+    /** Asks for the password once, on the terminal, before any task runs. */
+    private static void authenticateSudo() throws IOException {
+        try {
+            Process process = new ProcessBuilder("sudo", "-v").inheritIO().start();
+            if (process.waitFor() != 0) {
+                throw new IOException("sudo authentication failed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during sudo authentication");
+        }
+    }
+
+    private static void keepSudoAlive() {
+        try {
+            while (true) {
+                Thread.sleep(SUDO_REFRESH);
+                new ProcessBuilder("sudo", "-n", "-v").start().waitFor();
+            }
+        } catch (InterruptedException e) {
+            // Run finished
+        } catch (IOException e) {
+            System.err.println("sudo refresh failed: " + e.getMessage());
+        }
+    }
+}
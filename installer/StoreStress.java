@@ -0,0 +1,371 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Multi-process stress test of one shared config directory and backup
+ * store: what happens when several FileOverwriteUI windows or CLI runs
+ * deploy at the same time.
+ *
+ * Each phase starts --procs JVMs that wait for a common start signal and
+ * then run --rounds rounds each. Every worker has its own source tree and
+ * rewrites the files of the items it deploys before each deploy, with a
+ * first line naming the worker and round. In the "distinct" phase every
+ * worker deploys items of its own; in the "shared" phase all of them
+ * deploy, restore and prune the same items. Now and then a worker scrubs
+ * the whole store instead, so scrubs overlap backups still being written;
+ * any version it finds damaged counts as an error, since nothing here
+ * corrupts a backup.
+ *
+ * Afterwards the store is checked:
+ * - no item has two rows with one version, and no two versions share a backup path
+ * - every version's files match its manifest
+ * - every version and every deployed item holds the files of a single
+ *   deploy (one worker and round), i.e. same-item operations never interleaved
+ * - no journal or staging directory was left behind
+ * The report also has each phase's wall time, lock waits and SQLite busy
+ * retries, from the workers' metrics dumps.
+ *
+ * Usage: java -cp "lib/*:." StoreStress [options]
+ *   --procs N     worker processes per phase (default 8)
+ *   --rounds N    rounds per worker (default 20)
+ *   --files N     files per item (default 24)
+ *   --dir DIR     work directory, kept afterwards (default: temp dir, deleted)
+ *   --json        print the report as JSON, one phase per line
+ *
+ * Exit status is 1 if any operation failed or any check found a problem.
+ */
+public class StoreStress {
+    private static final String[] PHASES = {"distinct", "shared"};
+    private static final int SHARED_ITEMS = 2;
+    private static final int OWN_ITEMS = 2;
+    // Around DatabaseManager.PACK_THRESHOLD, so versions mix packed and copied files
+    private static final int MAX_FILE_SIZE = 2 * DatabaseManager.PACK_THRESHOLD;
+    private static final Pattern COUNTER = Pattern.compile("\"([\\w.]+)\": (\\d+)");
+    private static final Pattern HISTOGRAM_SUM = Pattern.compile("\"([\\w.]+)\": \\{\"count\": (\\d+), \"sum\": (\\d+)");
+
+    private record PhaseReport(String phase, int procs, long ops, long errors, long stale, long wallMs,
+                               long lockWaits, long lockWaitMs, long busyRetries) {
+        String toJson() {
+            return String.format(Locale.ROOT,
+                    "{\"phase\": %s, \"procs\": %d, \"ops\": %d, \"errors\": %d, \"stale\": %d, \"wallMs\": %d,"
+                            + " \"opsPerSec\": %.1f, \"lockWaits\": %d, \"lockWaitMs\": %d, \"busyRetries\": %d}",
+                    Json.quote(phase), procs, ops, errors, stale, wallMs, opsPerSecond(), lockWaits, lockWaitMs,
+                    busyRetries);
+        }
+
+        double opsPerSecond() {
+            return wallMs == 0 ? 0 : ops * 1000.0 / wallMs;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int procs = 8, rounds = 20, files = 24;
+        Path dir = null;
+        boolean json = false;
+        int worker = -1;
+        String phase = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--procs" -> procs = Integer.parseInt(args[++i]);
+                case "--rounds" -> rounds = Integer.parseInt(args[++i]);
+                case "--files" -> files = Integer.parseInt(args[++i]);
+                case "--dir" -> dir = Path.of(args[++i]);
+                case "--json" -> json = true;
+                case "--worker" -> worker = Integer.parseInt(args[++i]);
+                case "--phase" -> phase = args[++i];
+                default -> {
+                    System.err.println("Usage: StoreStress [--procs N] [--rounds N] [--files N] [--dir DIR] [--json]");
+                    System.exit(2);
+                }
+            }
+        }
+        if (worker >= 0) {
+            System.exit(runWorker(dir, phase, worker, rounds, files));
+        }
+
+        boolean temporary = dir == null;
+        Path workDir = temporary ? Files.createTempDirectory("riverwm-stress") : Files.createDirectories(dir);
+        boolean failed = false;
+        try {
+            List<PhaseReport> reports = new ArrayList<>();
+            for (String name : PHASES) {
+                status("phase " + name + ": " + procs + " processes x " + rounds + " rounds");
+                reports.add(runPhase(workDir, name, procs, rounds, files));
+            }
+            List<String> problems = verify(workDir);
+            for (PhaseReport report : reports) {
+                failed |= report.errors() > 0;
+                System.out.println(json ? report.toJson() : String.format(Locale.ROOT,
+                        "%-9s %3d procs %5d ops %4d errors %4d stale %7d ms %7.1f ops/s   lock waits %4d (%d ms)"
+                                + "   busy retries %d",
+                        report.phase(), report.procs(), report.ops(), report.errors(), report.stale(), report.wallMs(),
+                        report.opsPerSecond(), report.lockWaits(), report.lockWaitMs(), report.busyRetries()));
+            }
+            if (json) {
+                StringBuilder sb = new StringBuilder("{\"problems\": [");
+                String sep = "";
+                for (String problem : problems) {
+                    sb.append(sep).append(Json.quote(problem));
+                    sep = ", ";
+                }
+                System.out.println(sb.append("]}"));
+            } else {
+                problems.forEach(problem -> System.out.println("PROBLEM: " + problem));
+                System.out.println(problems.isEmpty() ? "Store consistent." : problems.size() + " problem(s).");
+            }
+            failed |= !problems.isEmpty();
+        } finally {
+            if (temporary) {
+                FileOps.deleteDirectory(workDir.toFile());
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static PhaseReport runPhase(Path workDir, String phase, int procs, int rounds, int files)
+            throws IOException, InterruptedException {
+        Path go = workDir.resolve("go-" + phase);
+        List<Process> processes = new ArrayList<>();
+        for (int w = 0; w < procs; w++) {
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (!arg.startsWith("-Dinstaller.metrics")) command.add(arg);
+            }
+            command.add("-Dinstaller.metrics.dump=" + metricsFile(workDir, phase, w));
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"), "StoreStress",
+                    "--worker", String.valueOf(w), "--phase", phase, "--dir", workDir.toString(),
+                    "--rounds", String.valueOf(rounds), "--files", String.valueOf(files)));
+            processes.add(new ProcessBuilder(command).redirectErrorStream(true).start());
+        }
+        // Every worker writes its ready file once its JVM is up; then all start together
+        for (int w = 0; w < procs; w++) {
+            Path ready = workDir.resolve("ready-" + phase + "-" + w);
+            while (!Files.exists(ready) && processes.get(w).isAlive()) {
+                Thread.sleep(5);
+            }
+        }
+        long start = System.nanoTime();
+        Files.createFile(go);
+        long ops = 0, errors = 0, stale = 0, lockWaits = 0, lockWaitNanos = 0, busyRetries = 0;
+        for (int w = 0; w < procs; w++) {
+            Process process = processes.get(w);
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            int exit = process.waitFor();
+            for (String line : output.split("\n")) {
+                if (line.startsWith("ops ")) {
+                    String[] parts = line.split(" ");
+                    ops += Long.parseLong(parts[1]);
+                    errors += Long.parseLong(parts[3]);
+                    stale += Long.parseLong(parts[5]);
+                } else if (!line.isBlank()) {
+                    System.err.println("[" + phase + " " + w + "] " + line);
+                }
+            }
+            if (exit != 0 && exit != 1) {
+                errors++;
+                System.err.println("[" + phase + " " + w + "] exited with " + exit);
+            }
+            Path metrics = metricsFile(workDir, phase, w);
+            if (Files.exists(metrics)) {
+                String text = Files.readString(metrics);
+                lockWaits += counter(text, "itemLock.waits");
+                busyRetries += counter(text, "db.busyRetries");
+                Matcher m = HISTOGRAM_SUM.matcher(text);
+                while (m.find()) {
+                    if (m.group(1).equals("itemLock.nanos")) lockWaitNanos += Long.parseLong(m.group(3));
+                }
+            }
+        }
+        long wallMs = (System.nanoTime() - start) / 1_000_000;
+        return new PhaseReport(phase, procs, ops, errors, stale, wallMs, lockWaits, lockWaitNanos / 1_000_000, busyRetries);
+    }
+
+    private static Path metricsFile(Path workDir, String phase, int worker) {
+        return workDir.resolve("metrics").resolve(phase + "-" + worker + ".json");
+    }
+
+    private static long counter(String metrics, String name) {
+        Matcher m = COUNTER.matcher(metrics);
+        while (m.find()) {
+            if (m.group(1).equals(name)) return Long.parseLong(m.group(2));
+        }
+        return 0;
+    }
+
+    /**
+     * One worker process. Prints "ops N errors M stale S" and any failure
+     * messages; exit status 1 if an operation failed. A restore of a version
+     * another worker pruned after it was listed is refused, and counted as
+     * stale rather than failed: that is the expected outcome.
+     */
+    private static int runWorker(Path workDir, String phase, int worker, int rounds, int files) throws Exception {
+        Path source = workDir.resolve("src-" + worker);
+        Path config = workDir.resolve("config");
+        DeployEngine engine = new DeployEngine(source.toFile(), config.toFile(),
+                DatabaseManager.forDirectory(config.resolve("backups").toString()));
+        engine.setRetainVersions(3);
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < (phase.equals("shared") ? SHARED_ITEMS : OWN_ITEMS); i++) {
+            items.add(phase.equals("shared") ? "shared-" + i : "own-" + worker + "-" + i);
+        }
+        Random random = new Random(worker * 7919L + phase.hashCode());
+        Files.createFile(workDir.resolve("ready-" + phase + "-" + worker));
+        while (!Files.exists(workDir.resolve("go-" + phase))) {
+            Thread.sleep(2);
+        }
+
+        long ops = 0, errors = 0, stale = 0;
+        for (int round = 0; round < rounds; round++) {
+            List<DeployEngine.ItemResult> results = new ArrayList<>();
+            int op = random.nextInt(10);
+            if (op == 0 && round > 0) {
+                results.addAll(engine.prune(items, 2, 2));
+            } else if (op == 2 && round > 0) {
+                BackupScrubber scrubber = new BackupScrubber(engine.getDatabase());
+                scrubber.setJobs(2);
+                scrubber.setBytesPerSecond(0);
+                for (BackupScrubber.VersionResult result : scrubber.scrub(List.of(), null)) {
+                    ops++;
+                    if (result.state().equals(BackupInfo.STATUS_DAMAGED) || result.state().equals("error")) {
+                        errors++;
+                        System.out.println("scrub " + result.backup().getFilename() + " v" + result.backup().getVersion()
+                                + ": " + result.state() + " " + String.join("; ", result.problems()));
+                    }
+                }
+            } else if (op == 1 && round > 0) {
+                String item = items.get(random.nextInt(items.size()));
+                List<BackupInfo> versions = engine.listVersions(item);
+                if (!versions.isEmpty()) {
+                    results.add(engine.restore(versions.get(0)));
+                }
+            } else {
+                for (String item : items) {
+                    writeItem(source.resolve(item), "w" + worker + " r" + round, files, random);
+                }
+                results.addAll(engine.deploy(items, 2));
+            }
+            for (DeployEngine.ItemResult result : results) {
+                ops++;
+                if (!result.success() && result.message().contains("no longer exists")) {
+                    stale++;
+                } else if (!result.success()) {
+                    errors++;
+                    System.out.println(result.action() + " " + result.item() + ": " + result.message());
+                }
+            }
+        }
+        System.out.println("ops " + ops + " errors " + errors + " stale " + stale);
+        return errors == 0 ? 0 : 1;
+    }
+
+    /** Rewrites every file of the item; each starts with the tag of this deploy. */
+    private static void writeItem(Path item, String tag, int files, Random random) throws IOException {
+        Files.createDirectories(item.resolve("sub"));
+        for (int f = 0; f < files; f++) {
+            Path file = item.resolve((f % 3 == 0 ? "sub/" : "") + "f" + f + ".conf");
+            byte[] body = new byte[random.nextInt(MAX_FILE_SIZE)];
+            random.nextBytes(body);
+            byte[] head = (tag + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] data = new byte[head.length + body.length];
+            System.arraycopy(head, 0, data, 0, head.length);
+            System.arraycopy(body, 0, data, head.length, body.length);
+            Files.write(file, data);
+        }
+    }
+
+    private static List<String> verify(Path workDir) throws IOException, SQLException {
+        List<String> problems = new ArrayList<>();
+        Path config = workDir.resolve("config");
+        Path store = config.resolve("backups");
+        DatabaseManager db = DatabaseManager.forDirectory(store.toString());
+        Set<String> paths = new HashSet<>();
+        int versions = 0;
+        for (String item : new TreeSet<>(db.getAllBackupFilenames())) {
+            Set<Integer> seen = new HashSet<>();
+            for (BackupInfo backup : db.getVersions(item)) {
+                versions++;
+                String name = item + " v" + backup.getVersion();
+                if (!seen.add(backup.getVersion())) problems.add(name + " recorded twice");
+                if (!paths.add(backup.getBackupPath())) problems.add(name + " shares its backup path " + backup.getBackupPath());
+                List<ManifestEntry> manifest = db.getManifest(backup.getId());
+                if (manifest.isEmpty()) {
+                    problems.add(name + " has no manifest");
+                    continue;
+                }
+                List<String> shas = new ArrayList<>();
+                for (ManifestEntry entry : manifest) {
+                    if (entry.packed()) shas.add(entry.sha256());
+                }
+                Map<String, byte[]> packed = db.getPackedContent(shas);
+                Map<String, byte[]> contents = new LinkedHashMap<>();
+                for (ManifestEntry entry : manifest) {
+                    byte[] data = entry.packed() ? packed.get(entry.sha256())
+                            : readIfExists(DeployPlanner.resolve(Path.of(backup.getBackupPath()), entry.relPath()));
+                    if (data == null || !ContentHasher.hashBytes(data).equals(entry.sha256())) {
+                        problems.add(name + " " + entry.relPath() + " missing or does not match its manifest");
+                    } else {
+                        contents.put(entry.relPath(), data);
+                    }
+                }
+                checkSingleTag(name, contents, problems);
+            }
+        }
+        try (var entries = Files.list(config)) {
+            for (Path item : entries.filter(Files::isDirectory).toList()) {
+                String name = item.getFileName().toString();
+                if (name.equals("backups") || name.equals(DeployJournal.STAGING_DIR) || name.equals("river")) continue;
+                Map<String, byte[]> contents = new LinkedHashMap<>();
+                for (ManifestEntry entry : BackupScrubber.listEntries(item)) {
+                    contents.put(entry.relPath(), Files.readAllBytes(DeployPlanner.resolve(item, entry.relPath())));
+                }
+                checkSingleTag("deployed " + name, contents, problems);
+            }
+        }
+        for (Path leftover : List.of(store.resolve(DeployJournal.JOURNAL_DIR), config.resolve(DeployJournal.STAGING_DIR))) {
+            if (Files.isDirectory(leftover)) {
+                try (var entries = Files.list(leftover)) {
+                    long count = entries.count();
+                    if (count > 0) problems.add(count + " leftover entr(ies) in " + leftover);
+                }
+            }
+        }
+        status("checked " + versions + " version(s)");
+        return problems;
+    }
+
+    private static void checkSingleTag(String name, Map<String, byte[]> contents, List<String> problems) {
+        Set<String> tags = new TreeSet<>();
+        for (byte[] data : contents.values()) {
+            int end = 0;
+            while (end < data.length && data[end] != '\n') end++;
+            tags.add(new String(data, 0, end, StandardCharsets.UTF_8));
+        }
+        if (tags.size() > 1) {
+            problems.add(name + " mixes files of several deploys: " + tags);
+        }
+    }
+
+    private static byte[] readIfExists(Path file) throws IOException {
+        return Files.isRegularFile(file) ? Files.readAllBytes(file) : null;
+    }
+
+    private static void status(String message) {
+        System.err.println("[stress] " + message);
+    }
+}
@@ -1,11 +1,23 @@
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import javax.swing.*;
 
 public class VoidLauncher extends JFrame {
+    // Tools escalate per command through pkexec, so they can share this JVM.
+    // -Dvoidlauncher.subprocess=true restores the old one-JVM-per-tool behaviour.
+    private static final boolean SUBPROCESS_MODE = Boolean.getBoolean("voidlauncher.subprocess");
+    private static final int TRAINING_DURATION_MS = 5000;
+
     private JLabel statusLabel;
+    private final Map<String, JFrame> openTools = new HashMap<>();
 
     public VoidLauncher() {
         setTitle("Void Launcher");
@@ -26,17 +38,17 @@ public class VoidLauncher extends JFrame {
         JButton btn1 = new JButton("Service Manager");
         btn1.setFont(new Font("Monospaced", Font.PLAIN, 12));
         btn1.setFocusPainted(false);
-        btn1.addActionListener(e -> launchAppThreaded("ServiceManagerApp"));
+        btn1.addActionListener(e -> launchApp("ServiceManagerApp", ServiceManagerApp::new));
 
         JButton btn2 = new JButton("Package Installer");
         btn2.setFont(new Font("Monospaced", Font.PLAIN, 12));
         btn2.setFocusPainted(false);
-        btn2.addActionListener(e -> launchAppThreaded("PackageInstallerApp"));
+        btn2.addActionListener(e -> launchApp("PackageInstallerApp", PackageInstallerApp::new));
 
         JButton btn3 = new JButton("FileOverwriteUI");
         btn3.setFont(new Font("Monospaced", Font.PLAIN, 12));
         btn3.setFocusPainted(false);
-        btn3.addActionListener(e -> launchAppWithoutSudo("FileOverwriteUI"));
+        btn3.addActionListener(e -> launchApp("FileOverwriteUI", FileOverwriteUI::new));
 
         buttonPanel.add(btn1);
         buttonPanel.add(btn2);
@@ -50,94 +62,113 @@ public class VoidLauncher extends JFrame {
         mainPanel.add(statusLabel, BorderLayout.SOUTH);
 
         add(mainPanel);
+        FastStart.reportStartup(this, "VoidLauncher");
         setVisible(true);
     }
 
-    private String getClassPath() {
-        String currentDir = System.getProperty("user.dir");
-        File libDir = new File(currentDir, "lib");
-        File[] jars = libDir.listFiles((dir, name) -> name.endsWith(".jar"));
-        StringBuilder cp = new StringBuilder(currentDir);
-        if (jars != null) {
-            for (File jar : jars) {
-                cp.append(":").append(jar.getAbsolutePath());
-            }
+    private void launchAppThreaded(String appName) {
+        statusLabel.setText("Launching " + appName + "...");
+
+        List<String> cmd = new ArrayList<>(List.of(
+                "env",
+                "DISPLAY=" + System.getenv("DISPLAY"),
+                "_JAVA_AWT_WM_NONREPARENTING=1",
+                "java"
+        ));
+        cmd.addAll(FastStart.getJvmOptions());
+        cmd.addAll(List.of("-cp", FastStart.getClassPath(), appName));
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+
+        Map<String, String> env = pb.environment();
+        env.put("DISPLAY", System.getenv("DISPLAY"));
+        env.put("_JAVA_AWT_WM_NONREPARENTING", "1");
+
+        pb.directory(new File(System.getProperty("user.dir")));
+
+        try {
+            ProcessRunner.Handle handle = ProcessRunner.start(pb, ProcessRunner.NO_TIMEOUT, line ->
+                    (line.isError() ? System.err : System.out).println(line.text()));
+            handle.result().whenComplete((result, error) ->
+                    SwingUtilities.invokeLater(() -> statusLabel.setText("Ready")));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(
+                    this,
+                    "Error launching " + appName + ":\n" + e.getMessage(),
+                    "Launch Failed",
+                    JOptionPane.ERROR_MESSAGE
+            );
+            statusLabel.setText("Ready");
         }
-        return cp.toString();
     }
 
-    private void launchAppThreaded(String appName) {
-        new Thread(() -> {
-            statusLabel.setText("Launching " + appName + "...");
+    private void launchApp(String appName, Supplier<JFrame> factory) {
+        if (SUBPROCESS_MODE) {
+            launchAppThreaded(appName);
+        } else {
+            openInProcess(appName, factory);
+        }
+    }
 
-            try {
-                ProcessBuilder pb = new ProcessBuilder(
-                        "env",
-                        "DISPLAY=" + System.getenv("DISPLAY"),
-                        "_JAVA_AWT_WM_NONREPARENTING=1",
-                        "java", "-cp", getClassPath(), appName
-                );
-
-                Map<String, String> env = pb.environment();
-                env.put("DISPLAY", System.getenv("DISPLAY"));
-                env.put("_JAVA_AWT_WM_NONREPARENTING", "1");
-
-                pb.directory(new File(System.getProperty("user.dir")));
-                pb.inheritIO();
-
-                Process process = pb.start();
-                process.waitFor();
-                statusLabel.setText("Ready");
-
-            } catch (IOException | InterruptedException e) {
-                SwingUtilities.invokeLater(() -> {
-                    JOptionPane.showMessageDialog(
-                            VoidLauncher.this,
-                            "Error launching " + appName + ":\n" + e.getMessage(),
-                            "Launch Failed",
-                            JOptionPane.ERROR_MESSAGE
-                    );
-                    statusLabel.setText("Ready");
-                });
-            }
-        }).start();
+    /**
+     * Opens a tool as a window of this JVM. Classes, look-and-feel and the
+     * DatabaseManager singleton are already loaded, so this only builds the frame.
+     * A second click on an open tool brings its window to the front.
+     */
+    private void openInProcess(String appName, Supplier<JFrame> factory) {
+        JFrame existing = openTools.get(appName);
+        if (existing != null && existing.isDisplayable()) {
+            existing.toFront();
+            existing.requestFocus();
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            JFrame frame = factory.get();
+            frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosed(WindowEvent e) {
+                    openTools.remove(appName);
+                }
+            });
+            openTools.put(appName, frame);
+            FastStart.onFirstWindow(frame, start, elapsedMs -> {
+                statusLabel.setText(appName + " opened in " + elapsedMs + " ms");
+                FastStart.report(appName, elapsedMs, "click");
+            });
+            frame.setVisible(true);
+        } catch (RuntimeException e) {
+            openTools.remove(appName);
+            JOptionPane.showMessageDialog(
+                    this,
+                    "Error opening " + appName + ":\n" + e.getMessage(),
+                    "Launch Failed",
+                    JOptionPane.ERROR_MESSAGE
+            );
+            statusLabel.setText("Ready");
+        }
     }
 
-    private void launchAppWithoutSudo(String appName) {
+    /**
+     * Training run for build.sh: opens every tool once and touches the backup
+     * database so the classes they load end up in the AppCDS archive, then exits.
+     */
+    private void runTraining() {
+        openInProcess("ServiceManagerApp", ServiceManagerApp::new);
+        openInProcess("PackageInstallerApp", PackageInstallerApp::new);
+        openInProcess("FileOverwriteUI", FileOverwriteUI::new);
         new Thread(() -> {
-            statusLabel.setText("Launching " + appName + "...");
-
             try {
-                ProcessBuilder pb = new ProcessBuilder(
-                        "env",
-                        "DISPLAY=" + System.getenv("DISPLAY"),
-                        "_JAVA_AWT_WM_NONREPARENTING=1",
-                        "java", "-cp", getClassPath(), appName
-                );
-
-                Map<String, String> env = pb.environment();
-                env.put("DISPLAY", System.getenv("DISPLAY"));
-                env.put("_JAVA_AWT_WM_NONREPARENTING", "1");
-
-                pb.directory(new File(System.getProperty("user.dir")));
-                pb.inheritIO();
-
-                Process process = pb.start();
-                process.waitFor();
-                statusLabel.setText("Ready");
-
-            } catch (IOException | InterruptedException e) {
-                SwingUtilities.invokeLater(() -> {
-                    JOptionPane.showMessageDialog(
-                            VoidLauncher.this,
-                            "Error launching " + appName + ":\n" + e.getMessage(),
-                            "Launch Failed",
-                            JOptionPane.ERROR_MESSAGE
-                    );
-                    statusLabel.setText("Ready");
-                });
+                DatabaseManager.getInstance().getAllBackupFilenames();
+            } catch (Exception e) {
+                System.err.println("Training: database not reachable: " + e.getMessage());
             }
         }).start();
+
+        javax.swing.Timer exitTimer = new javax.swing.Timer(TRAINING_DURATION_MS, e -> System.exit(0));
+        exitTimer.setRepeats(false);
+        exitTimer.start();
     }
 
     public static void main(String[] args) {
@@ -146,6 +177,12 @@ public class VoidLauncher extends JFrame {
         } catch (Exception e) {
             e.printStackTrace();
         }
-        SwingUtilities.invokeLater(VoidLauncher::new);
+        boolean training = args.length > 0 && args[0].equals("--train");
+        SwingUtilities.invokeLater(() -> {
+            VoidLauncher launcher = new VoidLauncher();
+            if (training) {
+                launcher.runTraining();
+            }
+        });
     }
 }
\ No newline at end of file
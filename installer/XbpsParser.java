@@ -0,0 +1,35 @@
+/**
+ * Parsing of xbps-query output lines.
+ *
+ * Both `xbps-query -l` ("ii name-1.2_1  description") and
+ * `xbps-query -R -s` ("[*] name-1.2_1  description") put the pkgver in the
+ * second column.
+ */
+public final class XbpsParser {
+
+    public record PackageLine(String name, String pkgver, String description) {
+    }
+
+    private XbpsParser() {
+    }
+
+    /**
+     * Strips the version from a pkgver. Package names may contain dashes
+     * (xbps-src, font-awesome); the version never does, so the name is
+     * everything before the last one.
+     */
+    public static String packageName(String pkgver) {
+        int dash = pkgver.lastIndexOf('-');
+        return dash > 0 ? pkgver.substring(0, dash) : pkgver;
+    }
+
+    /** Returns null for lines that do not describe a package. */
+    public static PackageLine parseLine(String line) {
+        String[] parts = line.trim().split("\\s+", 3);
+        if (parts.length < 2) {
+            return null;
+        }
+        String description = parts.length > 2 ? parts[2] : "";
+        return new PackageLine(packageName(parts[1]), parts[1], description);
+    }
+}
@@ -0,0 +1,98 @@
+#!/bin/bash
+#
+# build.sh - Package the installer tools and record an AppCDS archive
+#
+# Produces:
+#   out/installer.jar   all installer classes, main class VoidLauncher
+#   out/installer.jsa   dynamic AppCDS archive from a training run
+#
+# The training run opens every tool once (VoidLauncher --train) and needs a
+# display. Pass --no-train to only build the jar.
+#
+# Requires JDK 21 or newer (virtual threads).
+#
+
+set -euo pipefail
+
+INSTALLER_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)"
+OUT_DIR="$INSTALLER_DIR/out"
+JAR="$OUT_DIR/installer.jar"
+ARCHIVE="$OUT_DIR/installer.jsa"
+MIN_JAVA=21
+
+#######################################
+# Build the runtime classpath: jar first, then lib/*.jar sorted by name.
+# Must match FastStart.getClassPath() or the archive is not mapped.
+# Arguments:
+#   None
+# Outputs:
+#   Classpath on stdout
+#######################################
+runtime_classpath() {
+    local cp="$JAR"
+    local jar
+    for jar in $(find "$INSTALLER_DIR/lib" -maxdepth 1 -name '*.jar' 2>/dev/null | sort); do
+        cp="$cp:$jar"
+    done
+    echo "$cp"
+}
+
+#######################################
+# Exit with a clear message unless javac is JDK MIN_JAVA or newer; older
+# compilers fail later with errors about Thread.ofVirtual and friends.
+# Arguments:
+#   None
+#######################################
+check_jdk() {
+    local version
+    if ! version="$(javac -version 2>&1)"; then
+        echo "javac not found; the installer needs JDK $MIN_JAVA or newer" >&2
+        exit 1
+    fi
+    # "javac 21.0.1", "javac 17", "javac 1.8.0_392"
+    local major="${version#javac }"
+    major="${major%%.*}"
+    if [[ ! "$major" =~ ^[0-9]+$ ]] || (( major < MIN_JAVA )); then
+        echo "Found $version; the installer needs JDK $MIN_JAVA or newer" >&2
+        exit 1
+    fi
+}
+
+#######################################
+# Compile all sources and package them into out/installer.jar
+# Arguments:
+#   None
+#######################################
+build_jar() {
+    echo "Compiling installer classes..."
+    rm -rf "$OUT_DIR/classes"
+    mkdir -p "$OUT_DIR/classes"
+    javac -d "$OUT_DIR/classes" -cp "$INSTALLER_DIR/lib/*" "$INSTALLER_DIR"/*.java
+    jar --create --file "$JAR" --main-class VoidLauncher -C "$OUT_DIR/classes" .
+    echo "Wrote $JAR"
+}
+
+#######################################
+# Record the AppCDS archive from a training run of the launcher
+# Arguments:
+#   None
+#######################################
+record_archive() {
+    echo "Recording AppCDS archive (training run)..."
+    rm -f "$ARCHIVE"
+    (cd "$INSTALLER_DIR" && _JAVA_AWT_WM_NONREPARENTING=1 java \
+        -XX:ArchiveClassesAtExit="$ARCHIVE" \
+        --enable-native-access=ALL-UNNAMED \
+        -cp "$(runtime_classpath)" VoidLauncher --train)
+    echo "Wrote $ARCHIVE"
+}
+
+main() {
+    check_jdk
+    build_jar
+    if [[ "${1:-}" != "--no-train" ]]; then
+        record_archive
+    fi
+}
+
+main "$@"
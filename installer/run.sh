@@ -0,0 +1,39 @@
+#!/bin/bash
+#
+# run.sh - Start an installer tool, using the fast-start build when present
+#
+# Usage: ./run.sh [VoidLauncher|FileOverwriteUI|ServiceManagerApp|PackageInstallerApp] [args...]
+#
+# Uses out/installer.jar and out/installer.jsa from build.sh if they exist,
+# otherwise the classes compiled next to the sources. Needs Java 21 or newer.
+#
+
+set -euo pipefail
+
+INSTALLER_DIR="$(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)"
+JAR="$INSTALLER_DIR/out/installer.jar"
+ARCHIVE="$INSTALLER_DIR/out/installer.jsa"
+
+tool="VoidLauncher"
+if [[ $# -gt 0 && "$1" != -* ]]; then
+    tool="$1"
+    shift
+fi
+
+if [[ -f "$JAR" ]]; then
+    cp="$JAR"
+else
+    cp="$INSTALLER_DIR"
+fi
+for jar in $(find "$INSTALLER_DIR/lib" -maxdepth 1 -name '*.jar' 2>/dev/null | sort); do
+    cp="$cp:$jar"
+done
+
+jvm_opts=(--enable-native-access=ALL-UNNAMED)
+if [[ -f "$JAR" && -f "$ARCHIVE" ]]; then
+    jvm_opts+=("-XX:SharedArchiveFile=$ARCHIVE")
+fi
+
+cd "$INSTALLER_DIR"
+export _JAVA_AWT_WM_NONREPARENTING=1
+exec java "${jvm_opts[@]}" -cp "$cp" "$tool" "$@"
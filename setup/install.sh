@@ -51,6 +51,24 @@ preflight_checks() {
     log_info "Pre-flight checks passed"
 }
 
+#######################################
+# Run the steps as a parallel task graph (ConfigCli setup) instead of in
+# sequence. Needs Java and a built installer; falls back to the sequential
+# run otherwise.
+# Arguments:
+#   Options for ConfigCli setup (--resume, --jobs N, --dry-run, tasks...)
+# Returns:
+#   Does not return when the installer is available
+#######################################
+run_parallel() {
+    local installer_dir="$SCRIPT_DIR/../installer"
+    
+    if cmd_exists java && { [[ -f "$installer_dir/out/installer.jar" ]] || [[ -f "$installer_dir/ConfigCli.class" ]]; }; then
+        exec "$installer_dir/run.sh" ConfigCli setup --setup "$SCRIPT_DIR" "$@"
+    fi
+    log_warn "Java or the built installer not found, running steps in sequence"
+}
+
 #######################################
 # Main installation routine
 # Arguments:
@@ -96,5 +114,9 @@ main() {
 }
 
 # Run main function
+if [[ "${1:-}" == "--parallel" ]]; then
+    shift
+    run_parallel "$@"
+fi
 main "$@"
 